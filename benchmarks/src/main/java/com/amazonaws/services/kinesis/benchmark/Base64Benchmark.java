@@ -0,0 +1,45 @@
+package com.amazonaws.services.kinesis.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.utils.Tool;
+
+/**
+ * Base64 encoding used by the legacy JSON records.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Base64Benchmark {
+
+    @Param({"64", "1024", "16384", "262144", "1048576"})
+    public int payloadSize;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        data = Payloads.payload(payloadSize);
+    }
+
+    @Benchmark
+    public String toBase64() {
+        return Tool.toBase64(data);
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.amazonaws.services.kinesis.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.consumer.KMSRecordProcessor;
+import com.amazonaws.services.kinesis.consumer.RecordProcessorFixture;
+import com.amazonaws.services.kinesis.crypto.CipherSuite;
+import com.amazonaws.services.kinesis.kms.DataKey;
+import com.amazonaws.services.kinesis.kms.DataKeyCache;
+import com.amazonaws.services.kinesis.kms.KMSDecryptionService;
+import com.amazonaws.services.kinesis.local.InMemoryKms;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.producer.Generator;
+
+/**
+ * Consumer side: parse, resolve the data key through the cache and decrypt a batch of records
+ * through KMSRecordProcessor.processRecords. Scores are per record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class DecryptBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+    // Records of a batch cycle through this many bytes of distinct payloads at most, so a batch of
+    // 1 MB payloads per thread fits in a default heap
+    private static final int MAX_DISTINCT_BYTES = 16 * 1024 * 1024;
+
+    @Param({"64", "1024", "16384", "262144", "1048576"})
+    public int payloadSize;
+
+    // JSON records are always AES/ECB; the others are the binary envelope with that cipher suite
+    @Param({Payloads.JSON, "aes-ecb", "aes-gcm"})
+    public String envelope;
+
+    /**
+     * KMS stand-in and key cache shared by every benchmark thread, like the worker-wide service.
+     */
+    @State(Scope.Benchmark)
+    public static class Shared {
+        InMemoryKms kms;
+        KMSDecryptionService decryptionService;
+        ExecutorService checkpointExecutor;
+
+        @Setup
+        public void setup() {
+            kms = new InMemoryKms();
+            decryptionService = new KMSDecryptionService(kms.client(),
+                    new DataKeyCache(1000, 1, TimeUnit.HOURS));
+            checkpointExecutor = Executors.newSingleThreadExecutor();
+        }
+
+        @TearDown
+        public void tearDown() {
+            checkpointExecutor.shutdown();
+        }
+    }
+
+    private KMSRecordProcessor processor;
+    private List<Record> records;
+
+    @Setup
+    public void setup(Shared shared) throws Exception {
+        processor = RecordProcessorFixture.processor(shared.decryptionService, shared.checkpointExecutor);
+
+        CipherSuite cipherSuite = Payloads.JSON.equals(envelope) ? null : CipherSuite.fromName(envelope);
+        DataKey key = Payloads.dataKey(shared.kms);
+        byte[] data = Payloads.payload(payloadSize);
+
+        // Each payload is encrypted under its own partition key, which the authenticated suites check
+        int distinct = Math.max(1, Math.min(BATCH_SIZE, MAX_DISTINCT_BYTES / payloadSize));
+        ByteBuffer[] payloads = new ByteBuffer[distinct];
+        for (int i = 0; i < distinct; i++) {
+            String partitionKey = "partitionKey-" + i;
+            payloads[i] = Payloads.JSON.equals(envelope)
+                    ? Generator.EncryptDataAsJson(key, data)
+                    : Generator.EncryptDataAsEnvelope(cipherSuite, key, partitionKey, data, (byte) 0);
+        }
+
+        records = new ArrayList<Record>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            records.add(RecordProcessorFixture.record(i, "partitionKey-" + i % distinct,
+                    payloads[i % distinct].duplicate()));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void processBatch() {
+        processor.processRecords(records, RecordProcessorFixture.NO_OP_CHECKPOINTER);
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void processBatchMultiThreaded() {
+        processor.processRecords(records, RecordProcessorFixture.NO_OP_CHECKPOINTER);
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.amazonaws.services.kinesis.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.crypto.CipherSuite;
+import com.amazonaws.services.kinesis.kms.DataKey;
+import com.amazonaws.services.kinesis.local.InMemoryKms;
+import com.amazonaws.services.kinesis.producer.Generator;
+
+/**
+ * Producer side: encrypt a payload and wrap it in the JSON or binary envelope.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class EncryptBenchmark {
+
+    private static final String PARTITION_KEY = "partitionKey-0";
+
+    @Param({"64", "1024", "16384", "262144", "1048576"})
+    public int payloadSize;
+
+    // JSON records are always AES/ECB; the others are the binary envelope with that cipher suite
+    @Param({Payloads.JSON, "aes-ecb", "aes-gcm"})
+    public String envelope;
+
+    private CipherSuite cipherSuite;
+    private DataKey key;
+    private byte[] data;
+
+    @Setup
+    public void setup() throws Exception {
+        cipherSuite = Payloads.JSON.equals(envelope) ? null : CipherSuite.fromName(envelope);
+        key = Payloads.dataKey(new InMemoryKms());
+        data = Payloads.payload(payloadSize);
+    }
+
+    @Benchmark
+    public ByteBuffer encrypt() {
+        return encryptOnce();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ByteBuffer encryptMultiThreaded() {
+        return encryptOnce();
+    }
+
+    private ByteBuffer encryptOnce() {
+        if (Payloads.JSON.equals(envelope)) {
+            return Generator.EncryptDataAsJson(key, data);
+        }
+        return Generator.EncryptDataAsEnvelope(cipherSuite, key, PARTITION_KEY, data, (byte) 0);
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.amazonaws.services.kinesis.benchmark;
+
+import com.amazonaws.services.kinesis.consumer.RecordProcessorFixture;
+import com.amazonaws.services.kinesis.kms.DataKey;
+import com.amazonaws.services.kinesis.local.InMemoryKms;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+final class Payloads {
+
+    static final String JSON = "json";
+
+    private Payloads() {
+    }
+
+    /**
+     * @return printable ASCII of the given size, the same payloads the allocation test decrypts
+     */
+    static byte[] payload(int size) {
+        return RecordProcessorFixture.payload(size);
+    }
+
+    static DataKey dataKey(InMemoryKms kms) {
+        return DataKey.getRandomDataKey(kms.client(), "benchmark");
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.amazonaws.services.kinesis.compression;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses payloads with one codec, but sends a payload uncompressed when compression would
+ * not save enough to pay for itself. Safe to use from several threads.
+ *
+ * Payloads below a minimum size are never compressed. For large payloads a sample from the start
+ * is compressed first and the payload is skipped if the sample does not shrink. A thread whose
+ * payloads keep failing the check stops trying for a while, then probes again.
+ */
+public class AdaptiveCompressor {
+
+    /**
+     * A payload and the codec it is compressed with, {@link Codec#NONE} if it was left as is.
+     */
+    public static final class Compressed {
+        private final Codec codec;
+        private final byte[] data;
+
+        private Compressed(Codec codec, byte[] data) {
+            this.codec = codec;
+            this.data = data;
+        }
+
+        public Codec getCodec() {
+            return codec;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    public static final double DEFAULT_MIN_SAVINGS = 0.1;
+    public static final int DEFAULT_MIN_SIZE = 64;
+
+    private static final int SAMPLE_SIZE = 4096;
+
+    // After this many payloads in a row fail the check, a thread skips the next SKIP_AFTER_MISSES payloads
+    private static final int MAX_CONSECUTIVE_MISSES = 8;
+    private static final int SKIP_AFTER_MISSES = 64;
+
+    private final Codec codec;
+    private final double maxRatio;
+    private final int minSize;
+
+    // Per thread: consecutive misses, payloads left to skip
+    private final ThreadLocal<int[]> backoff = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[2];
+        }
+    };
+
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    public AdaptiveCompressor(Codec codec) {
+        this(codec, DEFAULT_MIN_SAVINGS, DEFAULT_MIN_SIZE);
+    }
+
+    /**
+     * @param minSavings fraction of the size compression must save, e.g. 0.1 for 10%
+     * @param minSize payloads smaller than this are never compressed
+     */
+    public AdaptiveCompressor(Codec codec, double minSavings, int minSize) {
+        if (codec == Codec.NONE) {
+            throw new IllegalArgumentException("codec must compress");
+        }
+        this.codec = codec;
+        this.maxRatio = 1.0 - minSavings;
+        this.minSize = minSize;
+    }
+
+    public Compressed compress(byte[] data) {
+        bytesIn.addAndGet(data.length);
+        if (data.length < minSize) {
+            return skip(data);
+        }
+
+        int[] state = backoff.get();
+        if (state[1] > 0) {
+            state[1]--;
+            return skip(data);
+        }
+
+        if (data.length > 2 * SAMPLE_SIZE
+                && Codec.LZ.compress(Arrays.copyOf(data, SAMPLE_SIZE)).length > SAMPLE_SIZE * maxRatio) {
+            return miss(state, data);
+        }
+
+        byte[] out = codec.compress(data);
+        if (out.length > data.length * maxRatio) {
+            return miss(state, data);
+        }
+
+        state[0] = 0;
+        compressed.incrementAndGet();
+        bytesOut.addAndGet(out.length);
+        return new Compressed(codec, out);
+    }
+
+    private Compressed miss(int[] state, byte[] data) {
+        if (++state[0] >= MAX_CONSECUTIVE_MISSES) {
+            state[0] = 0;
+            state[1] = SKIP_AFTER_MISSES;
+        }
+        return skip(data);
+    }
+
+    private Compressed skip(byte[] data) {
+        skipped.incrementAndGet();
+        bytesOut.addAndGet(data.length);
+        return new Compressed(Codec.NONE, data);
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public long getCompressed() {
+        return compressed.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return bytes out over bytes in, counting skipped payloads at their full size
+     */
+    public double getRatio() {
+        long in = bytesIn.get();
+        return in == 0 ? 1.0 : (double) bytesOut.get() / in;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AdaptiveCompressor[codec=%s, compressed=%d, skipped=%d, ratio=%.3f]",
+                codec.getName(), getCompressed(), getSkipped(), getRatio());
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.amazonaws.services.kinesis.compression;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression applied to a payload before it is encrypted, identified in the envelope by a
+ * one-byte codec ID.
+ *
+ * Compressed payloads start with their uncompressed length as a 4-byte big-endian int, so the
+ * consumer can size its output buffer before decompressing.
+ */
+public enum Codec {
+
+    /**
+     * Identity codec; envelopes skip it, but its payloads still carry the length header.
+     */
+    NONE((byte) 0, "none") {
+        @Override
+        byte[] compressBody(byte[] data) {
+            byte[] out = new byte[HEADER_LENGTH + data.length];
+            System.arraycopy(data, 0, out, HEADER_LENGTH, data.length);
+            return out;
+        }
+
+        @Override
+        void decompressBody(ByteBuffer in, ByteBuffer out) throws DataFormatException {
+            if (in.remaining() != out.remaining()) {
+                throw new DataFormatException("Uncompressed payload does not match its length");
+            }
+            out.put(in);
+        }
+    },
+
+    /**
+     * Raw deflate; the better ratio of the two.
+     */
+    DEFLATE((byte) 1, "deflate") {
+        @Override
+        byte[] compressBody(byte[] data) {
+            Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[HEADER_LENGTH + data.length + data.length / 1000 + 64];
+            int length = HEADER_LENGTH;
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return Arrays.copyOf(out, length);
+        }
+
+        @Override
+        void decompressBody(ByteBuffer in, ByteBuffer out) throws DataFormatException {
+            Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            inflater.setInput(in.array(), in.arrayOffset() + in.position(), in.remaining());
+            int expected = out.remaining();
+            int length = inflater.inflate(out.array(), out.arrayOffset() + out.position(), expected);
+            if (length != expected || !inflater.finished()) {
+                throw new DataFormatException("Deflate stream does not match its length");
+            }
+            out.position(out.position() + length);
+        }
+    },
+
+    /**
+     * Byte-oriented LZ77 in the style of the LZ4 block format; several times faster than deflate
+     * at a lower ratio.
+     */
+    LZ((byte) 2, "lz") {
+        @Override
+        byte[] compressBody(byte[] data) {
+            return LzCompressor.compress(data, HEADER_LENGTH);
+        }
+
+        @Override
+        void decompressBody(ByteBuffer in, ByteBuffer out) {
+            LzCompressor.decompress(in, out);
+        }
+    };
+
+    public static final int HEADER_LENGTH = 4;
+
+    // Bounds the buffer a corrupt or hostile length header can make the consumer allocate
+    public static final int MAX_DECOMPRESSED_LENGTH = 64 * 1024 * 1024;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private final byte id;
+    private final String name;
+
+    Codec(byte id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    // Compress into a new array, leaving HEADER_LENGTH bytes free at the start
+    abstract byte[] compressBody(byte[] data);
+
+    // Decompress exactly out.remaining() bytes
+    abstract void decompressBody(ByteBuffer in, ByteBuffer out) throws DataFormatException;
+
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * @return the name used in configuration, e.g. "deflate"
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the compressed payload, starting with the uncompressed length
+     */
+    public byte[] compress(byte[] data) {
+        byte[] out = compressBody(data);
+        ByteBuffer.wrap(out).putInt(0, data.length);
+        return out;
+    }
+
+    /**
+     * @param compressed payload from {@link #compress(byte[])}; its position is not changed
+     * @return the uncompressed length
+     * @throws IllegalArgumentException if the header is missing or out of range
+     */
+    public static int decompressedLength(ByteBuffer compressed) {
+        if (compressed.remaining() < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Truncated compressed payload");
+        }
+        int length = compressed.getInt(compressed.position());
+        if (length < 0 || length > MAX_DECOMPRESSED_LENGTH) {
+            throw new IllegalArgumentException("Invalid decompressed length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Decompress into out, which must have room for {@link #decompressedLength(ByteBuffer)} bytes.
+     * Both buffers must be heap buffers; the position of compressed is not changed.
+     * @throws IllegalArgumentException if the payload is corrupt
+     */
+    public void decompress(ByteBuffer compressed, ByteBuffer out) {
+        int length = decompressedLength(compressed);
+        if (out.remaining() < length) {
+            throw new IllegalArgumentException("Output buffer too small: " + out.remaining() + " < " + length);
+        }
+        ByteBuffer in = compressed.duplicate();
+        in.position(in.position() + HEADER_LENGTH);
+        ByteBuffer target = out.duplicate();
+        target.limit(target.position() + length);
+        try {
+            decompressBody(in, target);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt " + name + " payload", e);
+        }
+        out.position(out.position() + length);
+    }
+
+    /**
+     * @throws IllegalArgumentException if no codec has the ID
+     */
+    public static Codec fromId(byte id) {
+        for (Codec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown codec " + id);
+    }
+
+    /**
+     * @throws IllegalArgumentException if no codec has the name
+     */
+    public static Codec fromName(String name) {
+        for (Codec codec : values()) {
+            if (codec.name.equalsIgnoreCase(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown codec " + name);
+    }
+
+}
@@ -0,0 +1,172 @@
+package com.amazonaws.services.kinesis.compression;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Greedy LZ77 with a single-probe hash table, in the sequence format of the LZ4 block format:
+ *
+ * <pre>
+ * token (literal length:4 | match length - 4:4) | [length bytes] | literals | offset (2, little-endian) | [length bytes]
+ * </pre>
+ *
+ * A nibble of 15 is followed by bytes of 255 and a final byte below 255 that add to the length.
+ * The last sequence has literals only.
+ */
+final class LzCompressor {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int MAX_HASH_BITS = 14;
+    private static final int MIN_HASH_BITS = 8;
+
+    // Hash table per thread, sized for the largest input seen; only the part in use is cleared
+    private static final ThreadLocal<int[]> HASH_TABLES = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << MAX_HASH_BITS];
+        }
+    };
+
+    private LzCompressor() {
+    }
+
+    /**
+     * @param headerLength bytes to leave free at the start of the returned array
+     */
+    static byte[] compress(byte[] src, int headerLength) {
+        int length = src.length;
+        byte[] out = new byte[headerLength + length + length / 255 + 16];
+        int op = headerLength;
+
+        int hashBits = Math.max(MIN_HASH_BITS, Math.min(MAX_HASH_BITS, 32 - Integer.numberOfLeadingZeros(length)));
+        int[] table = HASH_TABLES.get();
+        Arrays.fill(table, 0, 1 << hashBits, -1);
+
+        int anchor = 0;
+        int ip = 0;
+        int matchLimit = length - MIN_MATCH;
+        while (ip <= matchLimit) {
+            int sequence = readInt(src, ip);
+            int hash = (sequence * -1640531535) >>> (32 - hashBits);
+            int candidate = table[hash];
+            table[hash] = ip;
+            if (candidate < 0 || ip - candidate > MAX_OFFSET || readInt(src, candidate) != sequence) {
+                ip++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < length && src[candidate + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+
+            op = writeSequence(out, op, src, anchor, ip - anchor, ip - candidate, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+
+        // Last literals
+        int literalLength = length - anchor;
+        out[op++] = (byte) (Math.min(literalLength, 15) << 4);
+        op = writeLength(out, op, literalLength);
+        System.arraycopy(src, anchor, out, op, literalLength);
+        op += literalLength;
+        return Arrays.copyOf(out, op);
+    }
+
+    /**
+     * Decompress exactly out.remaining() bytes into out.
+     * @throws IllegalArgumentException if the input is corrupt
+     */
+    static void decompress(ByteBuffer in, ByteBuffer out) {
+        byte[] src = in.array();
+        int ip = in.arrayOffset() + in.position();
+        int srcEnd = in.arrayOffset() + in.limit();
+        byte[] dst = out.array();
+        int dstStart = out.arrayOffset() + out.position();
+        int op = dstStart;
+        int dstEnd = out.arrayOffset() + out.limit();
+
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                if (literalLength > srcEnd - ip || literalLength > dstEnd - op) {
+                    throw new IllegalArgumentException("Corrupt lz payload: literals out of bounds");
+                }
+                System.arraycopy(src, ip, dst, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+                if (ip == srcEnd) {
+                    break;
+                }
+
+                int offset = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int match = op - offset;
+                if (offset == 0 || match < dstStart || matchLength > dstEnd - op) {
+                    throw new IllegalArgumentException("Corrupt lz payload: match out of bounds");
+                }
+                // Byte by byte, since a match may overlap the bytes it produces
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[match++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated lz payload", e);
+        }
+
+        if (op != dstEnd) {
+            throw new IllegalArgumentException("Corrupt lz payload: " + (op - dstStart) + " bytes instead of "
+                    + (dstEnd - dstStart));
+        }
+        out.position(out.limit());
+    }
+
+    private static int writeSequence(byte[] out, int op, byte[] src, int literalStart, int literalLength,
+                                     int offset, int matchLength) {
+        int matchCode = matchLength - MIN_MATCH;
+        out[op++] = (byte) (Math.min(literalLength, 15) << 4 | Math.min(matchCode, 15));
+        op = writeLength(out, op, literalLength);
+        System.arraycopy(src, literalStart, out, op, literalLength);
+        op += literalLength;
+        out[op++] = (byte) offset;
+        out[op++] = (byte) (offset >>> 8);
+        return writeLength(out, op, matchCode);
+    }
+
+    // Extra length bytes for a length whose nibble is 15
+    private static int writeLength(byte[] out, int op, int length) {
+        if (length < 15) {
+            return op;
+        }
+        int remaining = length - 15;
+        while (remaining >= 255) {
+            out[op++] = (byte) 255;
+            remaining -= 255;
+        }
+        out[op++] = (byte) remaining;
+        return op;
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | (src[i + 3] & 0xFF) << 24;
+    }
+
+}
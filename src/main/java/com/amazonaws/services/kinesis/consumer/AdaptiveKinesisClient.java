@@ -0,0 +1,146 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.kinesis.model.GetRecordsRequest;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.GetShardIteratorRequest;
+import com.amazonaws.services.kinesis.model.GetShardIteratorResult;
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+* Kinesis client for KCL workers that applies each stream's {@link FetchTuner} to GetRecords.
+*
+* The KCL fixes its GetRecords limit and idle time when the worker is built, so the worker is
+* given the policy's largest limit and shortest interval, and this client narrows them per shard.
+* It follows shard iterators back to their shard, lowers the limit of each GetRecords call to the
+* shard's current one, and answers a call made before the shard's poll interval has passed with no
+* records and the same iterator, without calling Kinesis. Streams without a tuner are not changed.
+*
+* Only the latest iterator of each shard is followed, so iterators the KCL gives up on, e.g. after a
+* failed call, do not pile up. A shard is no longer followed once it ends or its record processor
+* shuts down.
+*/
+public class AdaptiveKinesisClient extends AmazonKinesisClient {
+
+    // The shard a shard iterator reads
+    private static final class ShardRef {
+        private final FetchTuner tuner;
+        private final String shardId;
+
+        private ShardRef(FetchTuner tuner, String shardId) {
+            this.tuner = tuner;
+            this.shardId = shardId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ShardRef)) {
+                return false;
+            }
+            ShardRef other = (ShardRef) o;
+            return tuner == other.tuner && shardId.equals(other.shardId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(tuner) + shardId.hashCode();
+        }
+    }
+
+    private final ConcurrentMap<String, FetchTuner> tuners = new ConcurrentHashMap<String, FetchTuner>();
+    // Shard of each followed iterator, and the one iterator followed per shard
+    private final ConcurrentMap<String, ShardRef> iterators = new ConcurrentHashMap<String, ShardRef>();
+    private final ConcurrentMap<ShardRef, String> latestIterators = new ConcurrentHashMap<ShardRef, String>();
+
+    public AdaptiveKinesisClient(AWSCredentialsProvider credentialsProvider, ClientConfiguration clientConfiguration) {
+        super(credentialsProvider, clientConfiguration);
+    }
+
+    /**
+* Tune the GetRecords calls of a stream from now on.
+*/
+    public void register(String streamName, final FetchTuner tuner) {
+        tuners.put(streamName, tuner);
+        tuner.addListener(new FetchTuner.ShardListener() {
+            @Override
+            public void forgotten(String shardId) {
+                unfollow(new ShardRef(tuner, shardId));
+            }
+        });
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public GetShardIteratorResult getShardIterator(GetShardIteratorRequest request) {
+        GetShardIteratorResult result = super.getShardIterator(request);
+        FetchTuner tuner = tuners.get(request.getStreamName());
+        if (tuner != null && result.getShardIterator() != null) {
+            follow(new ShardRef(tuner, request.getShardId()), result.getShardIterator());
+        }
+        return result;
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public GetRecordsResult getRecords(GetRecordsRequest request) {
+        ShardRef shard = iterators.get(request.getShardIterator());
+        if (shard == null) {
+            return super.getRecords(request);
+        }
+        if (!shard.tuner.tryPoll(shard.shardId)) {
+            return new GetRecordsResult()
+                    .withRecords(new ArrayList<Record>())
+                    .withNextShardIterator(request.getShardIterator());
+        }
+
+        int limit = shard.tuner.getMaxRecords(shard.shardId);
+        GetRecordsRequest tuned = request;
+        if (request.getLimit() == null || request.getLimit() > limit) {
+            tuned = request.clone().withLimit(limit);
+        }
+        // On failure the KCL retries the same iterator or asks for a new one, which replaces it
+        GetRecordsResult result = super.getRecords(tuned);
+        if (result.getNextShardIterator() != null) {
+            follow(shard, result.getNextShardIterator());
+        } else {
+            // The shard has ended
+            unfollow(shard);
+        }
+        shard.tuner.fetched(shard.shardId, result.getMillisBehindLatest());
+        return result;
+    }
+
+    // Make iterator the one followed for the shard
+    private void follow(ShardRef shard, String iterator) {
+        iterators.put(iterator, shard);
+        String previous = latestIterators.put(shard, iterator);
+        if (previous != null && !previous.equals(iterator)) {
+            iterators.remove(previous, shard);
+        }
+    }
+
+    private void unfollow(ShardRef shard) {
+        String iterator = latestIterators.remove(shard);
+        if (iterator != null) {
+            iterators.remove(iterator, shard);
+        }
+    }
+
+    /**
+* @return shard iterators followed right now, at most one per shard
+*/
+    public int getFollowedIterators() {
+        return iterators.size();
+    }
+
+}
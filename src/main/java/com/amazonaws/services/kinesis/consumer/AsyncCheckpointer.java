@@ -0,0 +1,145 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.metrics.LatencyHistogram;
+
+/**
+* Writes checkpoints of one shard on a shared executor, so the record processing thread never waits
+* on DynamoDB. While a checkpoint is being written, newer requests replace each other and only the
+* latest sequence number is written next.
+*/
+class AsyncCheckpointer {
+
+    private static final Log LOG = LogFactory.getLog(AsyncCheckpointer.class);
+
+    // Backoff and retry settings
+    private static final long BACKOFF_TIME_IN_MILLIS = 3000L;
+    private static final int NUM_RETRIES = 10;
+
+    private final String shardId;
+    private final ExecutorService executor;
+    private final LatencyHistogram checkpointLatency;
+
+    private final AtomicReference<String> pendingSequenceNumber = new AtomicReference<String>();
+    private final Object lock = new Object();
+    private boolean running;
+    private volatile boolean shutdown;
+
+    AsyncCheckpointer(String shardId, ExecutorService executor, LatencyHistogram checkpointLatency) {
+        this.shardId = shardId;
+        this.executor = executor;
+        this.checkpointLatency = checkpointLatency;
+    }
+
+    /**
+* Ask for a checkpoint at sequenceNumber; returns immediately.
+*/
+    void request(final IRecordProcessorCheckpointer checkpointer, String sequenceNumber) {
+        pendingSequenceNumber.set(sequenceNumber);
+        synchronized (lock) {
+            if (running || shutdown) {
+                return;
+            }
+            running = true;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain(checkpointer);
+            }
+        });
+    }
+
+    /**
+* Stop accepting requests and wait for the checkpoint being written, if any.
+*/
+    void shutdown() {
+        shutdown = true;
+        pendingSequenceNumber.set(null);
+        synchronized (lock) {
+            while (running) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    LOG.debug("Interrupted wait", e);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void drain(IRecordProcessorCheckpointer checkpointer) {
+        while (true) {
+            String sequenceNumber = pendingSequenceNumber.getAndSet(null);
+            if (sequenceNumber == null || shutdown) {
+                synchronized (lock) {
+                    if (pendingSequenceNumber.get() == null || shutdown) {
+                        running = false;
+                        lock.notifyAll();
+                        return;
+                    }
+                }
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                checkpoint(checkpointer, shardId, sequenceNumber);
+                checkpointLatency.recordSince(start);
+            } catch (RuntimeException e) {
+                LOG.error("Checkpoint of shard " + shardId + " at " + sequenceNumber + " failed.", e);
+            }
+        }
+    }
+
+    /** Checkpoint with retries, on the calling thread.
+* @param checkpointer
+* @param shardId shard being checkpointed, for logging
+* @param sequenceNumber sequence number to checkpoint at, or null for everything delivered to the processor
+*/
+    static void checkpoint(IRecordProcessorCheckpointer checkpointer, String shardId, String sequenceNumber) {
+        LOG.info("Checkpointing shard " + shardId + " at " + sequenceNumber);
+        for (int i = 0; i < NUM_RETRIES; i++) {
+            try {
+                if (sequenceNumber == null) {
+                    checkpointer.checkpoint();
+                } else {
+                    checkpointer.checkpoint(sequenceNumber);
+                }
+                break;
+            } catch (ShutdownException se) {
+                // Ignore checkpoint if the processor instance has been shutdown (fail over).
+                LOG.info("Caught shutdown exception, skipping checkpoint.", se);
+                break;
+            } catch (ThrottlingException e) {
+                // Backoff and re-attempt checkpoint upon transient failures
+                if (i >= (NUM_RETRIES - 1)) {
+                    LOG.error("Checkpoint failed after " + (i + 1) + "attempts.", e);
+                    break;
+                } else {
+                    LOG.info("Transient issue when checkpointing - attempt " + (i + 1) + " of "
+                            + NUM_RETRIES, e);
+                }
+            } catch (InvalidStateException e) {
+                // This indicates an issue with the DynamoDB table (check for table, provisioned IOPS).
+                LOG.error("Cannot save checkpoint to the DynamoDB table used by the Amazon Kinesis Client Library.", e);
+                break;
+            }
+            try {
+                Thread.sleep(BACKOFF_TIME_IN_MILLIS);
+            } catch (InterruptedException e) {
+                LOG.debug("Interrupted sleep", e);
+            }
+        }
+    }
+
+}
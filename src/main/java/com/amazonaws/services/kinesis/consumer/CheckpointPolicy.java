@@ -0,0 +1,34 @@
+package com.amazonaws.services.kinesis.consumer;
+
+/**
+* Decides when a shard should checkpoint: after a number of processed records, a number of processed
+* bytes, or a maximum time since the last checkpoint, whichever comes first.
+*/
+public class CheckpointPolicy {
+
+    private final long maxRecords;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+
+    /**
+* @param maxRecords records processed since the last checkpoint that trigger a checkpoint
+* @param maxBytes bytes processed since the last checkpoint that trigger a checkpoint
+* @param maxAgeMillis time since the last checkpoint that triggers a checkpoint
+*/
+    public CheckpointPolicy(long maxRecords, long maxBytes, long maxAgeMillis) {
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public boolean shouldCheckpoint(long records, long bytes, long ageMillis) {
+        return records >= maxRecords || bytes >= maxBytes || ageMillis >= maxAgeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CheckpointPolicy[maxRecords=%d, maxBytes=%d, maxAgeMillis=%d]",
+                maxRecords, maxBytes, maxAgeMillis);
+    }
+
+}
@@ -0,0 +1,213 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.envelope.Chunk;
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+* Puts the chunks of a shard's objects back together and streams them to an {@link ObjectSink}.
+*
+* Chunks arriving in order go straight to the sink, so an object is never held in memory as a whole.
+* Only chunks ahead of their turn, e.g. after a failed record was retried, are copied and held until
+* the gap is filled, up to a byte limit for the shard. The records of an object are reported
+* finished together once the object completes, so a checkpoint never passes part of an object, or
+* failed together when it is aborted. Called from the shard's processing thread only.
+*/
+class ChunkReassembler {
+
+    private static final Log LOG = LogFactory.getLog(ChunkReassembler.class);
+
+    /**
+* Told what became of every record handed to the reassembler.
+*/
+    interface Listener {
+        void finished(Record record);
+
+        void failed(Record record, Throwable cause);
+    }
+
+    // An object some of whose chunks have arrived
+    private static final class PartialObject {
+        private final UUID objectId;
+        private final List<Record> records = new ArrayList<Record>();
+        // Chunks ahead of nextIndex, by index
+        private final TreeMap<Integer, ByteBuffer> buffered = new TreeMap<Integer, ByteBuffer>();
+        private long bufferedBytes;
+        private int nextIndex;
+        private int lastIndex = -1;
+        private boolean begun;
+        private long lastChunkMillis;
+
+        private PartialObject(UUID objectId) {
+            this.objectId = objectId;
+        }
+    }
+
+    private final String shardId;
+    private final ObjectSink sink;
+    private final ReassemblyPolicy policy;
+    private final Listener listener;
+
+    // Oldest first
+    private final Map<UUID, PartialObject> objects = new LinkedHashMap<UUID, PartialObject>();
+    private long bufferedBytes;
+
+    // Shared by every processor of the worker
+    private final LongAdder completedCounter;
+    private final LongAdder abortedCounter;
+
+    ChunkReassembler(String shardId, ObjectSink sink, ReassemblyPolicy policy, Listener listener,
+                     LongAdder completedCounter, LongAdder abortedCounter) {
+        this.shardId = shardId;
+        this.sink = sink;
+        this.policy = policy;
+        this.listener = listener;
+        this.completedCounter = completedCounter;
+        this.abortedCounter = abortedCounter;
+    }
+
+    /**
+* @param record Kinesis record the chunk was read from; reported to the listener once its object
+* completes or is aborted
+* @param chunk decrypted chunk; its frame is only valid until this method returns
+*/
+    void accept(Record record, Chunk chunk) {
+        PartialObject object = objects.get(chunk.getObjectId());
+        if (object == null) {
+            object = new PartialObject(chunk.getObjectId());
+            objects.put(object.objectId, object);
+        }
+        object.records.add(record);
+        object.lastChunkMillis = System.currentTimeMillis();
+        if (chunk.isLast()) {
+            object.lastIndex = chunk.getIndex();
+        }
+
+        int index = chunk.getIndex();
+        if (index < object.nextIndex || object.buffered.containsKey(index)) {
+            // Delivered again; the copy already seen counts
+            return;
+        }
+        if (index > object.nextIndex) {
+            int size = chunk.getData().remaining();
+            if (bufferedBytes + size > policy.getMaxBufferedBytes()) {
+                abort(object, new IllegalStateException("Reassembly buffer of shard " + shardId + " full at "
+                        + bufferedBytes + " bytes"));
+                return;
+            }
+            ByteBuffer copy = ByteBuffer.allocate(size);
+            copy.put(chunk.getData().duplicate());
+            copy.flip();
+            object.buffered.put(index, copy);
+            object.bufferedBytes += size;
+            bufferedBytes += size;
+            return;
+        }
+
+        try {
+            write(object, record.getPartitionKey(), chunk.getData());
+            // Chunks that were waiting for this one
+            while (!object.buffered.isEmpty() && object.buffered.firstKey() == object.nextIndex) {
+                ByteBuffer data = object.buffered.pollFirstEntry().getValue();
+                object.bufferedBytes -= data.remaining();
+                bufferedBytes -= data.remaining();
+                write(object, record.getPartitionKey(), data);
+            }
+            if (object.lastIndex >= 0 && object.nextIndex > object.lastIndex) {
+                sink.complete(shardId, object.objectId);
+                objects.remove(object.objectId);
+                completedCounter.increment();
+                for (Record objectRecord : object.records) {
+                    listener.finished(objectRecord);
+                }
+            }
+        } catch (IOException e) {
+            abort(object, e);
+        }
+    }
+
+    private void write(PartialObject object, String partitionKey, ByteBuffer data) throws IOException {
+        if (!object.begun) {
+            sink.begin(shardId, object.objectId, partitionKey);
+            object.begun = true;
+        }
+        sink.write(shardId, object.objectId, data);
+        object.nextIndex++;
+    }
+
+    /**
+* Abort every object that has waited longer than the timeout for its next chunk.
+*/
+    void expire() {
+        long now = System.currentTimeMillis();
+        List<PartialObject> expired = new ArrayList<PartialObject>();
+        for (PartialObject object : objects.values()) {
+            if (now - object.lastChunkMillis >= policy.getTimeoutMillis()) {
+                expired.add(object);
+            }
+        }
+        for (PartialObject object : expired) {
+            abort(object, new TimeoutException("Object " + object.objectId + " of shard " + shardId + " got "
+                    + object.nextIndex + " chunks in order and " + object.buffered.size() + " ahead, then none for "
+                    + (now - object.lastChunkMillis) + " ms"));
+        }
+    }
+
+    /**
+* Abort every incomplete object, e.g. once the shard has ended and no more chunks can arrive.
+*/
+    void abortAll(Throwable cause) {
+        for (PartialObject object : new ArrayList<PartialObject>(objects.values())) {
+            abort(object, cause);
+        }
+    }
+
+    /**
+* Forget every incomplete object without reporting its records, e.g. once the lease is lost; the
+* next owner of the shard reads them again.
+*/
+    void discardAll() {
+        for (PartialObject object : objects.values()) {
+            if (object.begun) {
+                sink.abort(shardId, object.objectId);
+            }
+        }
+        objects.clear();
+        bufferedBytes = 0;
+    }
+
+    private void abort(PartialObject object, Throwable cause) {
+        LOG.warn("Aborting object " + object.objectId + " of shard " + shardId + " after "
+                + object.records.size() + " chunk records", cause);
+        if (object.begun) {
+            sink.abort(shardId, object.objectId);
+        }
+        objects.remove(object.objectId);
+        bufferedBytes -= object.bufferedBytes;
+        abortedCounter.increment();
+        for (Record record : object.records) {
+            listener.failed(record, cause);
+        }
+    }
+
+    /**
+* @return objects some of whose chunks have arrived
+*/
+    int getPending() {
+        return objects.size();
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.io.IOException;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+* Receives records that could not be processed, either because they are permanently broken or
+* because every retry failed. The processor moves on once the sink has accepted the record, and
+* keeps offering it again while the sink fails.
+*/
+public interface DeadLetterSink {
+
+    /**
+* @param shardId shard the record was read from
+* @param record the original Kinesis record
+* @param cause failure of the last attempt
+* @throws IOException if the record could not be stored durably
+*/
+    void accept(String shardId, Record record, Throwable cause) throws IOException;
+
+}
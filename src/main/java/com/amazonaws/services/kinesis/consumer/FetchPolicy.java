@@ -0,0 +1,75 @@
+package com.amazonaws.services.kinesis.consumer;
+
+/**
+* Bounds within which {@link FetchTuner} moves each shard's fetch size and poll interval, and the
+* lag and batch processing time it steers by.
+*/
+public class FetchPolicy {
+
+    private final int minRecords;
+    private final int maxRecords;
+    private final long minPollIntervalMillis;
+    private final long maxPollIntervalMillis;
+    private final long lagThresholdMillis;
+    private final long targetBatchMillis;
+
+    /**
+* @param minRecords smallest GetRecords limit
+* @param maxRecords largest GetRecords limit, at most 10000
+* @param minPollIntervalMillis shortest time between two GetRecords calls of a shard
+* @param maxPollIntervalMillis longest time between two GetRecords calls of a shard; shard
+* iterators expire after 5 minutes
+* @param lagThresholdMillis MillisBehindLatest above which a shard counts as behind
+* @param targetBatchMillis processing time above which a batch counts as too large
+*/
+    public FetchPolicy(int minRecords, int maxRecords, long minPollIntervalMillis, long maxPollIntervalMillis,
+                       long lagThresholdMillis, long targetBatchMillis) {
+        if (minRecords < 1 || maxRecords < minRecords || maxRecords > 10000) {
+            throw new IllegalArgumentException("Need 1 <= minRecords <= maxRecords <= 10000, got " + minRecords
+                    + " and " + maxRecords);
+        }
+        if (minPollIntervalMillis < 0 || maxPollIntervalMillis < minPollIntervalMillis
+                || maxPollIntervalMillis >= 300000L) {
+            throw new IllegalArgumentException("Need 0 <= minPollIntervalMillis <= maxPollIntervalMillis < 300000, got "
+                    + minPollIntervalMillis + " and " + maxPollIntervalMillis);
+        }
+        this.minRecords = minRecords;
+        this.maxRecords = maxRecords;
+        this.minPollIntervalMillis = minPollIntervalMillis;
+        this.maxPollIntervalMillis = maxPollIntervalMillis;
+        this.lagThresholdMillis = lagThresholdMillis;
+        this.targetBatchMillis = targetBatchMillis;
+    }
+
+    public int getMinRecords() {
+        return minRecords;
+    }
+
+    public int getMaxRecords() {
+        return maxRecords;
+    }
+
+    public long getMinPollIntervalMillis() {
+        return minPollIntervalMillis;
+    }
+
+    public long getMaxPollIntervalMillis() {
+        return maxPollIntervalMillis;
+    }
+
+    public long getLagThresholdMillis() {
+        return lagThresholdMillis;
+    }
+
+    public long getTargetBatchMillis() {
+        return targetBatchMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FetchPolicy[records=%d..%d, pollIntervalMillis=%d..%d, lagThresholdMillis=%d, "
+                + "targetBatchMillis=%d]", minRecords, maxRecords, minPollIntervalMillis, maxPollIntervalMillis,
+                lagThresholdMillis, targetBatchMillis);
+    }
+
+}
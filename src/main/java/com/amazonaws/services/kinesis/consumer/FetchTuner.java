@@ -0,0 +1,260 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+* Adapts each shard's GetRecords limit and poll interval to how far behind the shard is.
+*
+* After every batch fetched from Kinesis, the shard's lag (MillisBehindLatest), the size of the
+* batch and the time the record processor took for it decide the next fetch. A shard that is behind
+* is polled at the shortest interval, and its limit doubles while batches come back full. A shard
+* with nothing to read doubles its poll interval and halves its limit. A shard that is keeping up
+* with records flowing halves its interval back towards the shortest. A batch that took longer
+* than the target to process halves the limit, so lease renewal and shutdown are not held up
+* behind huge batches. Everything stays within the bounds of the {@link FetchPolicy}.
+*
+* The fetching side reports lags with {@link #fetched} and the record processor reports batches
+* with {@link #batchProcessed}; a batch without a fetch before it, e.g. a skipped poll, changes
+* nothing. One tuner serves every shard of a stream.
+*/
+public class FetchTuner {
+
+    /**
+* Told when the tuner drops a shard.
+*/
+    public interface ShardListener {
+
+        void forgotten(String shardId);
+    }
+
+    private static final Log LOG = LogFactory.getLog(FetchTuner.class);
+
+    // First step up of the poll interval when the shortest interval is 0
+    private static final long MIN_INTERVAL_STEP_MILLIS = 50L;
+
+    private static final class ShardTuning {
+        private int maxRecords;
+        private long pollIntervalMillis;
+        private long millisBehindLatest;
+        private long lastPollMillis;
+        private boolean fetched;
+    }
+
+    private final FetchPolicy policy;
+    private final ConcurrentMap<String, ShardTuning> shards = new ConcurrentHashMap<String, ShardTuning>();
+
+    private final List<ShardListener> listeners = new CopyOnWriteArrayList<ShardListener>();
+
+    private final LongAdder fetches = new LongAdder();
+    private final LongAdder skippedPolls = new LongAdder();
+
+    public FetchTuner(FetchPolicy policy) {
+        this.policy = policy;
+    }
+
+    // New shards start as if behind, e.g. after taking over the lease of a failed worker
+    private ShardTuning tuning(String shardId) {
+        ShardTuning tuning = shards.get(shardId);
+        if (tuning == null) {
+            ShardTuning created = new ShardTuning();
+            created.maxRecords = policy.getMaxRecords();
+            created.pollIntervalMillis = policy.getMinPollIntervalMillis();
+            tuning = shards.putIfAbsent(shardId, created);
+            if (tuning == null) {
+                tuning = created;
+            }
+        }
+        return tuning;
+    }
+
+    /**
+* @return the GetRecords limit for the shard's next fetch
+*/
+    public int getMaxRecords(String shardId) {
+        ShardTuning tuning = tuning(shardId);
+        synchronized (tuning) {
+            return tuning.maxRecords;
+        }
+    }
+
+    /**
+* @return the time to leave between the shard's last GetRecords call and its next
+*/
+    public long getPollIntervalMillis(String shardId) {
+        ShardTuning tuning = tuning(shardId);
+        synchronized (tuning) {
+            return tuning.pollIntervalMillis;
+        }
+    }
+
+    /**
+* Claim the shard's next GetRecords call if its poll interval has passed since the last one.
+* @return false if the shard should not call GetRecords yet
+*/
+    public boolean tryPoll(String shardId) {
+        ShardTuning tuning = tuning(shardId);
+        long now = System.currentTimeMillis();
+        synchronized (tuning) {
+            if (now - tuning.lastPollMillis < tuning.pollIntervalMillis) {
+                skippedPolls.increment();
+                return false;
+            }
+            tuning.lastPollMillis = now;
+            return true;
+        }
+    }
+
+    /**
+* Report a GetRecords call of the shard.
+* @param millisBehindLatest from the GetRecords result, or null if it had none
+*/
+    public void fetched(String shardId, Long millisBehindLatest) {
+        ShardTuning tuning = tuning(shardId);
+        synchronized (tuning) {
+            tuning.lastPollMillis = System.currentTimeMillis();
+            if (millisBehindLatest != null) {
+                tuning.millisBehindLatest = millisBehindLatest;
+            }
+            tuning.fetched = true;
+        }
+        fetches.increment();
+    }
+
+    /**
+* Report that the record processor is done with the shard's last batch, and tune the next fetch.
+* @param records records in the batch
+* @param processingNanos time processRecords took for the batch
+*/
+    public void batchProcessed(String shardId, int records, long processingNanos) {
+        ShardTuning tuning = tuning(shardId);
+        synchronized (tuning) {
+            if (!tuning.fetched) {
+                return;
+            }
+            tuning.fetched = false;
+
+            int maxRecords = tuning.maxRecords;
+            long pollIntervalMillis = tuning.pollIntervalMillis;
+            boolean behind = tuning.millisBehindLatest > policy.getLagThresholdMillis();
+            boolean slow = TimeUnit.NANOSECONDS.toMillis(processingNanos) > policy.getTargetBatchMillis();
+            if (behind) {
+                pollIntervalMillis = policy.getMinPollIntervalMillis();
+                if (!slow && records >= maxRecords) {
+                    maxRecords = maxRecords * 2;
+                }
+            } else if (records == 0) {
+                pollIntervalMillis = Math.max(pollIntervalMillis * 2, MIN_INTERVAL_STEP_MILLIS);
+                maxRecords = maxRecords / 2;
+            } else {
+                pollIntervalMillis = pollIntervalMillis / 2;
+            }
+            if (slow) {
+                maxRecords = maxRecords / 2;
+            }
+            maxRecords = Math.max(policy.getMinRecords(), Math.min(policy.getMaxRecords(), maxRecords));
+            pollIntervalMillis = Math.max(policy.getMinPollIntervalMillis(),
+                    Math.min(policy.getMaxPollIntervalMillis(), pollIntervalMillis));
+
+            if (LOG.isDebugEnabled() && (maxRecords != tuning.maxRecords
+                    || pollIntervalMillis != tuning.pollIntervalMillis)) {
+                LOG.debug("Shard " + shardId + " " + tuning.millisBehindLatest + " ms behind, " + records
+                        + " records processed in " + TimeUnit.NANOSECONDS.toMillis(processingNanos)
+                        + " ms: fetch " + maxRecords + " records every " + pollIntervalMillis + " ms");
+            }
+            tuning.maxRecords = maxRecords;
+            tuning.pollIntervalMillis = pollIntervalMillis;
+        }
+    }
+
+    /**
+* Drop the state of a shard this worker no longer reads.
+*/
+    public void forget(String shardId) {
+        shards.remove(shardId);
+        for (ShardListener listener : listeners) {
+            listener.forgotten(shardId);
+        }
+    }
+
+    /**
+* Tell listener about every shard dropped from now on.
+*/
+    public void addListener(ShardListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+* @return the largest MillisBehindLatest last reported by any shard
+*/
+    public long getMaxMillisBehindLatest() {
+        long max = 0;
+        for (ShardTuning tuning : shards.values()) {
+            synchronized (tuning) {
+                max = Math.max(max, tuning.millisBehindLatest);
+            }
+        }
+        return max;
+    }
+
+    /**
+* @return the sum of the GetRecords limits of all shards
+*/
+    public long getTotalMaxRecords() {
+        long total = 0;
+        for (ShardTuning tuning : shards.values()) {
+            synchronized (tuning) {
+                total += tuning.maxRecords;
+            }
+        }
+        return total;
+    }
+
+    /**
+* @return the mean poll interval of all shards, 0 without shards
+*/
+    public long getMeanPollIntervalMillis() {
+        long total = 0;
+        int count = 0;
+        for (ShardTuning tuning : shards.values()) {
+            synchronized (tuning) {
+                total += tuning.pollIntervalMillis;
+            }
+            count++;
+        }
+        return count == 0 ? 0 : total / count;
+    }
+
+    /**
+* @return GetRecords calls reported so far
+*/
+    public long getFetches() {
+        return fetches.sum();
+    }
+
+    /**
+* @return polls turned away because the shard's poll interval had not passed
+*/
+    public long getSkippedPolls() {
+        return skippedPolls.sum();
+    }
+
+    public FetchPolicy getPolicy() {
+        return policy;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FetchTuner[shards=%d, fetches=%d, skippedPolls=%d, maxMillisBehindLatest=%d, "
+                + "totalMaxRecords=%d, meanPollIntervalMillis=%d]", shards.size(), getFetches(), getSkippedPolls(),
+                getMaxMillisBehindLatest(), getTotalMaxRecords(), getMeanPollIntervalMillis());
+    }
+
+}
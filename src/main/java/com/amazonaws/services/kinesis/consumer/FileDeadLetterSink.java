@@ -0,0 +1,77 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.simple.JSONObject;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.utils.Tool;
+
+/**
+* Dead-letter sink that appends one JSON line per failed record to a local file, syncing the file
+* to disk before the record counts as accepted.
+*/
+public class FileDeadLetterSink implements DeadLetterSink {
+
+    private static final Log LOG = LogFactory.getLog(FileDeadLetterSink.class);
+
+    private final String fileName;
+    private FileOutputStream out;
+    private Writer writer;
+
+    public FileDeadLetterSink(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized void accept(String shardId, Record record, Throwable cause) throws IOException {
+        JSONObject obj = new JSONObject();
+        obj.put("shardId", shardId);
+        obj.put("sequenceNumber", record.getSequenceNumber());
+        obj.put("partitionKey", record.getPartitionKey());
+        obj.put("error", String.valueOf(cause));
+        byte[] data = new byte[record.getData().remaining()];
+        record.getData().duplicate().get(data);
+        obj.put("data", Tool.toBase64(data));
+
+        try {
+            if (writer == null) {
+                out = new FileOutputStream(fileName, true);
+                writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            }
+            writer.write(obj.toJSONString());
+            writer.write('\n');
+            writer.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            // Reopen on the next record; a line cut short by the failure is followed by a whole one
+            close();
+            throw e;
+        }
+        LOG.warn("Sent record " + record.getSequenceNumber() + " from " + shardId + " to dead-letter file " + fileName);
+    }
+
+    private void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOG.debug("Couldn't close dead-letter file " + fileName, e);
+        }
+        writer = null;
+        out = null;
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+* Object sink that streams each object to its own file, one directory per shard. An object is
+* written to "objectId.part", forced to disk and renamed to "objectId" when it completes, and
+* deleted when it is aborted, so only complete objects ever carry their final name.
+*/
+public class FileObjectSink implements ObjectSink {
+
+    private static final Log LOG = LogFactory.getLog(FileObjectSink.class);
+
+    private static final String PART_SUFFIX = ".part";
+
+    private final File directory;
+
+    private final ConcurrentMap<UUID, FileChannel> channels = new ConcurrentHashMap<UUID, FileChannel>();
+
+    /**
+* @param directory parent of the per-shard object directories
+*/
+    public FileObjectSink(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public void begin(String shardId, UUID objectId, String partitionKey) throws IOException {
+        File shardDirectory = new File(directory, shardId);
+        Files.createDirectories(shardDirectory.toPath());
+        FileChannel channel = FileChannel.open(partFile(shardId, objectId).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        FileChannel previous = channels.put(objectId, channel);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public void write(String shardId, UUID objectId, ByteBuffer data) throws IOException {
+        FileChannel channel = channelFor(objectId);
+        ByteBuffer in = data.duplicate();
+        while (in.hasRemaining()) {
+            channel.write(in);
+        }
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public void complete(String shardId, UUID objectId) throws IOException {
+        FileChannel channel = channelFor(objectId);
+        try {
+            channel.force(true);
+        } finally {
+            channels.remove(objectId, channel);
+            channel.close();
+        }
+        Files.move(partFile(shardId, objectId).toPath(), new File(new File(directory, shardId),
+                objectId.toString()).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public void abort(String shardId, UUID objectId) {
+        FileChannel channel = channels.remove(objectId);
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            Files.deleteIfExists(partFile(shardId, objectId).toPath());
+        } catch (IOException e) {
+            LOG.warn("Couldn't delete the partial object " + objectId + " of shard " + shardId, e);
+        }
+    }
+
+    private FileChannel channelFor(UUID objectId) throws IOException {
+        FileChannel channel = channels.get(objectId);
+        if (channel == null) {
+            throw new IOException("Object " + objectId + " was not begun");
+        }
+        return channel;
+    }
+
+    private File partFile(String shardId, UUID objectId) {
+        return new File(new File(directory, shardId), objectId + PART_SUFFIX);
+    }
+
+}
@@ -3,32 +3,110 @@ package com.amazonaws.services.kinesis.consumer;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import com.amazonaws.auth.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.InitialPositionInStream;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.KinesisClientLibConfiguration;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.Worker;
+import com.amazonaws.services.kinesis.kms.KMSDecryptionService;
+import com.amazonaws.services.kinesis.metrics.MetricsRegistry;
 
 
 public final class KMSKinesisApplication {
     
 
-    private static KinesisClientLibConfiguration kinesisClientLibConfiguration;
     private static final Log LOG = LogFactory.getLog(KMSKinesisApplication.class);
 
+    private static AWSCredentialsProvider credentialsProvider;
+    private static String workerId;
+
     private static String applicationName;
     private static String streamName;
     private static InitialPositionInStream initialPositionInStream;
     private static String regionName;
 
+    // Streams hosted by this process, each with its own KCL worker; empty for just streamName.
+    // Their lease tables are named "<applicationName>-<stream>" unless set per stream
+    private static List<String> streamNames = new ArrayList<String>();
+    private static Map<String, String> streamApplicationNames = new HashMap<String, String>();
+
+    // Threads shared by the workers of every stream to run shard tasks, 0 for as many as they need;
+    // each stream runs at most streamMaxConcurrentTasks of them at once, 0 for no limit
+    private static int processingThreads = 0;
+    private static int streamMaxConcurrentTasks = 0;
+    private static Map<String, Integer> streamMaxConcurrentTasksByStream = new HashMap<String, Integer>();
+
+    // GetRecords limit and time between GetRecords calls of a shard. With adaptiveFetch they are the
+    // largest limit and shortest interval, and each shard's fetches move down to fetchMinRecords and up to
+    // maxIdleTimeBetweenReadsInMillis, steered by its MillisBehindLatest and batch processing time.
+    // The defaults are the KCL's, and tuning is off unless adaptiveFetch is set
+    private static int maxRecords = 10000;
+    private static long idleTimeBetweenReadsInMillis = 1000L;
+    private static boolean adaptiveFetch = false;
+    private static int fetchMinRecords = 100;
+    private static long maxIdleTimeBetweenReadsInMillis = 10000L;
+    private static long lagThresholdMillis = 10000L;
+    private static long targetBatchMillis = 10000L;
+
+    // KCL defaults: wait after a failed shard task, and time before another worker may take a lease
+    private static long taskBackoffTimeMillis = 500L;
+    private static long failoverTimeMillis = 10000L;
+
+    // Data key cache settings; the producer rotates its key every 60 seconds
+    private static int keyCacheMaxEntries = 1000;
+    private static long keyCacheTtlSeconds = 300L;
+
+    // Threads shared by all record processors to decrypt records in parallel; 0 decrypts on the KCL thread
+    private static int decryptThreads = 0;
+
+    // Data keys missing from the cache are decrypted in the background, at most this many KMS calls at once
+    private static boolean asyncKeyDecryption = false;
+    private static int kmsMaxConcurrentRequests = 16;
+    private static boolean kmsVirtualThreads = true;
+
+    // Failed record handling
+    private static int retryMaxAttempts = 10;
+    private static long retryBaseBackoffMillis = 200L;
+    private static long retryMaxBackoffMillis = 30000L;
+    private static int retryMaxOutstandingRecords = 1000;
+    private static String deadLetterFile = "dead-letter.jsonl";
+
+    // Decrypted records are appended to memory-mapped segments under this directory; empty to only log them
+    private static String recordSinkDirectory = "";
+    private static int recordSinkSegmentBytes = 64 * 1024 * 1024;
+
+    // Objects sent as chunk records are streamed to files under this directory; empty to dead-letter them
+    private static String objectSinkDirectory = "objects";
+    private static long chunkTimeoutMillis = 60000L;
+    private static long chunkBufferBytes = 64L * 1024 * 1024;
+
+    // Checkpoint after this many records or bytes, or this much time, whichever comes first
+    private static long checkpointMaxRecords = 10000L;
+    private static long checkpointMaxBytes = 64L * 1024 * 1024;
+    private static long checkpointIntervalMillis = 60000L;
+
+    // Metrics snapshot file, empty to disable, and the fraction of user records logged
+    private static String metricsSnapshotFile = "consumer-metrics.json";
+    private static long metricsSnapshotIntervalSeconds = 60L;
+    private static double recordLogSampleRate = 0.0;
+
 
     private KMSKinesisApplication() {
         super();
@@ -45,20 +123,142 @@ public final class KMSKinesisApplication {
         configure(propertiesFile);
         
         System.out.println("Starting " + applicationName);
-        LOG.info("Running " + applicationName + " to process stream " + streamName);
-        
-        
-        IRecordProcessorFactory recordProcessorFactory = new KMSRecordProcessorFactory();
-        Worker worker = new Worker(recordProcessorFactory, kinesisClientLibConfiguration);
 
-        int exitCode = 0;
-        try {
-            worker.run();
-        } catch (Throwable t) {
-            LOG.error("Caught throwable while processing data.", t);
-            exitCode = 1;
+        if (streamNames.isEmpty()) {
+            LOG.info("Running " + applicationName + " to process stream " + streamName);
+
+            KMSRecordProcessorFactory recordProcessorFactory = new KMSRecordProcessorFactory();
+            KinesisClientLibConfiguration configuration = clientLibConfiguration(applicationName, streamName);
+            Worker worker;
+            if (recordProcessorFactory.getFetchTuner() == null) {
+                worker = new Worker(recordProcessorFactory, configuration);
+            } else {
+                AdaptiveKinesisClient kinesis = new AdaptiveKinesisClient(credentialsProvider,
+                        configuration.getKinesisClientConfiguration());
+                kinesis.register(streamName, recordProcessorFactory.getFetchTuner());
+                LOG.info("Tuning fetches with " + recordProcessorFactory.getFetchTuner().getPolicy());
+                worker = new Worker(recordProcessorFactory, configuration, kinesis,
+                        new AmazonDynamoDBClient(credentialsProvider, configuration.getDynamoDBClientConfiguration()),
+                        new AmazonCloudWatchClient(credentialsProvider,
+                                configuration.getCloudWatchClientConfiguration()));
+            }
+
+            int exitCode = 0;
+            try {
+                worker.run();
+            } catch (Throwable t) {
+                LOG.error("Caught throwable while processing data.", t);
+                exitCode = 1;
+            }
+            System.exit(exitCode);
+        }
+
+        LOG.info("Running " + applicationName + " to process streams " + streamNames);
+        System.exit(runStreams());
+    }
+
+    /**
+* Run one KCL worker per stream until all of them stop. The workers share the processing pool,
+* the KMS client and data key cache, the decrypt and checkpoint executors, the metrics registry and
+* the Kinesis, DynamoDB and CloudWatch clients, and each tunes its fetches on its own if
+* adaptiveFetch is set; if one fails, the others are shut down too.
+* @return the exit code
+*/
+    private static int runStreams() {
+        KMSDecryptionService decryptionService = KMSRecordProcessorFactory.createDecryptionService();
+        ExecutorService decryptExecutor = KMSRecordProcessorFactory.createDecryptExecutor();
+        ExecutorService checkpointExecutor = KMSRecordProcessorFactory.createCheckpointExecutor();
+        MetricsRegistry metrics = KMSRecordProcessorFactory.createMetrics();
+        final ExecutorService processingPool = processingThreads > 0
+                ? KMSRecordProcessorFactory.createExecutor(processingThreads, "shard-task-")
+                : Executors.newCachedThreadPool();
+        metrics.gauge("consumer.processingThreadsActive", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return ((ThreadPoolExecutor) processingPool).getActiveCount();
+            }
+        });
+
+        // The clients come from the first stream's configuration; all streams share region and credentials
+        KinesisClientLibConfiguration first = clientLibConfiguration(applicationNameFor(streamNames.get(0)),
+                streamNames.get(0));
+        AdaptiveKinesisClient kinesis = new AdaptiveKinesisClient(credentialsProvider,
+                first.getKinesisClientConfiguration());
+        AmazonDynamoDBClient dynamoDB = new AmazonDynamoDBClient(credentialsProvider,
+                first.getDynamoDBClientConfiguration());
+        AmazonCloudWatchClient cloudWatch = new AmazonCloudWatchClient(credentialsProvider,
+                first.getCloudWatchClientConfiguration());
+
+        final List<Worker> workers = new ArrayList<Worker>();
+        List<Thread> threads = new ArrayList<Thread>();
+        final boolean[] failed = new boolean[1];
+        for (final String stream : streamNames) {
+            final StreamExecutor streamExecutor = new StreamExecutor(stream, processingPool,
+                    maxConcurrentTasksFor(stream));
+            metrics.gauge("consumer." + stream + ".tasksRunning", new MetricsRegistry.Gauge() {
+                @Override
+                public long value() {
+                    return streamExecutor.getRunning();
+                }
+            });
+            metrics.gauge("consumer." + stream + ".tasksWaiting", new MetricsRegistry.Gauge() {
+                @Override
+                public long value() {
+                    return streamExecutor.getWaiting();
+                }
+            });
+
+            FetchTuner fetchTuner = KMSRecordProcessorFactory.createFetchTuner();
+            if (fetchTuner != null) {
+                kinesis.register(stream, fetchTuner);
+            }
+            IRecordProcessorFactory recordProcessorFactory = new KMSRecordProcessorFactory(stream, decryptionService,
+                    decryptExecutor, checkpointExecutor, metrics, fetchTuner);
+            final Worker worker = new Worker(recordProcessorFactory,
+                    clientLibConfiguration(applicationNameFor(stream), stream), kinesis, dynamoDB, cloudWatch,
+                    streamExecutor);
+            workers.add(worker);
+            LOG.info("Stream " + stream + " uses lease table " + applicationNameFor(stream) + " and runs at most "
+                    + (maxConcurrentTasksFor(stream) > 0 ? maxConcurrentTasksFor(stream) : "unlimited")
+                    + " shard tasks at once");
+
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        worker.run();
+                    } catch (Throwable t) {
+                        LOG.error("Caught throwable while processing stream " + stream
+                                + ", shutting down all streams", t);
+                        synchronized (workers) {
+                            failed[0] = true;
+                            for (Worker other : workers) {
+                                other.shutdown();
+                            }
+                        }
+                    } finally {
+                        streamExecutor.shutdown();
+                    }
+                }
+            }, "worker-" + stream));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.error("Interrupted while waiting for the stream workers", e);
+                return 1;
+            }
+        }
+        processingPool.shutdown();
+        synchronized (workers) {
+            return failed[0] ? 1 : 0;
         }
-        System.exit(exitCode);
     }
     
     private static void configure(String propertiesFile) throws IOException {
@@ -74,11 +274,10 @@ public final class KMSKinesisApplication {
         // ensure the JVM will refresh the cached IP values of AWS resources (e.g. service endpoints).
         java.security.Security.setProperty("networkaddress.cache.ttl" , "60");
         
-        String workerId = InetAddress.getLocalHost().getCanonicalHostName() + ":" + UUID.randomUUID();
+        workerId = InetAddress.getLocalHost().getCanonicalHostName() + ":" + UUID.randomUUID();
         LOG.info("Using workerId: " + workerId);
        
         // Get credentials from IMDS. If unsuccessful, get them from the classpath.
-        AWSCredentialsProvider credentialsProvider = null;
         try {
             credentialsProvider = new InstanceProfileCredentialsProvider();
             // Verify we can fetch credentials from the provider
@@ -93,9 +292,27 @@ public final class KMSKinesisApplication {
         }
         
         LOG.info("Using credentials with access key id: " + credentialsProvider.getCredentials().getAWSAccessKeyId());
-        
-        kinesisClientLibConfiguration = new KinesisClientLibConfiguration(applicationName, streamName,
-         credentialsProvider, workerId).withInitialPositionInStream(initialPositionInStream).withRegionName(regionName);
+    }
+
+    private static KinesisClientLibConfiguration clientLibConfiguration(String leaseTableName, String stream) {
+        return new KinesisClientLibConfiguration(leaseTableName, stream,
+         credentialsProvider, workerId).withInitialPositionInStream(initialPositionInStream).withRegionName(regionName)
+         // Lets record processors run due retries of failed records while the shard is idle
+         .withCallProcessRecordsEvenForEmptyRecordList(true)
+         // With adaptive fetching, the bounds that AdaptiveKinesisClient narrows per shard
+         .withMaxRecords(maxRecords).withIdleTimeBetweenReadsInMillis(idleTimeBetweenReadsInMillis)
+         .withTaskBackoffTimeMillis(taskBackoffTimeMillis).withFailoverTimeMillis(failoverTimeMillis);
+    }
+
+    // Streams must not share a lease table, since their shard IDs repeat
+    private static String applicationNameFor(String stream) {
+        String name = streamApplicationNames.get(stream);
+        return name != null ? name : applicationName + "-" + stream;
+    }
+
+    private static int maxConcurrentTasksFor(String stream) {
+        Integer limit = streamMaxConcurrentTasksByStream.get(stream);
+        return limit != null ? limit : streamMaxConcurrentTasks;
     }
 
     /**
@@ -125,6 +342,85 @@ public final class KMSKinesisApplication {
                 initialPositionInStream = InitialPositionInStream.valueOf(properties.getProperty(key));
             } else if (key.equals("region")) {
                 regionName = properties.getProperty(key);
+            } else if (key.equals("streamNames")) {
+                streamNames = new ArrayList<String>();
+                for (String name : properties.getProperty(key).split(",")) {
+                    if (!name.trim().isEmpty()) {
+                        streamNames.add(name.trim());
+                    }
+                }
+            } else if (key.startsWith("applicationName.")) {
+                streamApplicationNames.put(key.substring("applicationName.".length()),
+                        properties.getProperty(key).trim());
+            } else if (key.equals("processingThreads")) {
+                processingThreads = Integer.parseInt(properties.getProperty(key).trim());
+            } else if (key.equals("streamMaxConcurrentTasks")) {
+                streamMaxConcurrentTasks = Integer.parseInt(properties.getProperty(key).trim());
+            } else if (key.startsWith("streamMaxConcurrentTasks.")) {
+                streamMaxConcurrentTasksByStream.put(key.substring("streamMaxConcurrentTasks.".length()),
+                        Integer.parseInt(properties.getProperty(key).trim()));
+            } else if (key.equals("maxRecords")) {
+                maxRecords = Integer.parseInt(properties.getProperty(key).trim());
+            } else if (key.equals("idleTimeBetweenReadsInMillis")) {
+                idleTimeBetweenReadsInMillis = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("adaptiveFetch")) {
+                adaptiveFetch = Boolean.parseBoolean(properties.getProperty(key).trim());
+            } else if (key.equals("fetchMinRecords")) {
+                fetchMinRecords = Integer.parseInt(properties.getProperty(key).trim());
+            } else if (key.equals("maxIdleTimeBetweenReadsInMillis")) {
+                maxIdleTimeBetweenReadsInMillis = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("lagThresholdMillis")) {
+                lagThresholdMillis = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("targetBatchMillis")) {
+                targetBatchMillis = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("taskBackoffTimeMillis")) {
+                taskBackoffTimeMillis = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("failoverTimeMillis")) {
+                failoverTimeMillis = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("keyCacheMaxEntries")) {
+                keyCacheMaxEntries = Integer.parseInt(properties.getProperty(key).trim());
+            } else if (key.equals("keyCacheTtlSeconds")) {
+                keyCacheTtlSeconds = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("decryptThreads")) {
+                decryptThreads = Integer.parseInt(properties.getProperty(key).trim());
+            } else if (key.equals("asyncKeyDecryption")) {
+                asyncKeyDecryption = Boolean.parseBoolean(properties.getProperty(key).trim());
+            } else if (key.equals("kmsMaxConcurrentRequests")) {
+                kmsMaxConcurrentRequests = Integer.parseInt(properties.getProperty(key).trim());
+            } else if (key.equals("kmsVirtualThreads")) {
+                kmsVirtualThreads = Boolean.parseBoolean(properties.getProperty(key).trim());
+            } else if (key.equals("retryMaxAttempts")) {
+                retryMaxAttempts = Integer.parseInt(properties.getProperty(key).trim());
+            } else if (key.equals("retryBaseBackoffMillis")) {
+                retryBaseBackoffMillis = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("retryMaxBackoffMillis")) {
+                retryMaxBackoffMillis = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("retryMaxOutstandingRecords")) {
+                retryMaxOutstandingRecords = Integer.parseInt(properties.getProperty(key).trim());
+            } else if (key.equals("deadLetterFile")) {
+                deadLetterFile = properties.getProperty(key).trim();
+            } else if (key.equals("recordSinkDirectory")) {
+                recordSinkDirectory = properties.getProperty(key).trim();
+            } else if (key.equals("recordSinkSegmentBytes")) {
+                recordSinkSegmentBytes = Integer.parseInt(properties.getProperty(key).trim());
+            } else if (key.equals("objectSinkDirectory")) {
+                objectSinkDirectory = properties.getProperty(key).trim();
+            } else if (key.equals("chunkTimeoutMillis")) {
+                chunkTimeoutMillis = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("chunkBufferBytes")) {
+                chunkBufferBytes = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("checkpointMaxRecords")) {
+                checkpointMaxRecords = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("checkpointMaxBytes")) {
+                checkpointMaxBytes = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("checkpointIntervalMillis")) {
+                checkpointIntervalMillis = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("metricsSnapshotFile")) {
+                metricsSnapshotFile = properties.getProperty(key).trim();
+            } else if (key.equals("metricsSnapshotIntervalSeconds")) {
+                metricsSnapshotIntervalSeconds = Long.parseLong(properties.getProperty(key).trim());
+            } else if (key.equals("recordLogSampleRate")) {
+                recordLogSampleRate = Double.parseDouble(properties.getProperty(key).trim());
             }
 
         }
@@ -136,4 +432,120 @@ public final class KMSKinesisApplication {
         return regionName;
     }
 
+    public static int getMaxRecords() {
+        return maxRecords;
+    }
+
+    public static long getIdleTimeBetweenReadsInMillis() {
+        return idleTimeBetweenReadsInMillis;
+    }
+
+    public static boolean isAdaptiveFetch() {
+        return adaptiveFetch;
+    }
+
+    public static int getFetchMinRecords() {
+        return fetchMinRecords;
+    }
+
+    public static long getMaxIdleTimeBetweenReadsInMillis() {
+        return maxIdleTimeBetweenReadsInMillis;
+    }
+
+    public static long getLagThresholdMillis() {
+        return lagThresholdMillis;
+    }
+
+    public static long getTargetBatchMillis() {
+        return targetBatchMillis;
+    }
+
+    public static int getKeyCacheMaxEntries() {
+        return keyCacheMaxEntries;
+    }
+
+    public static long getKeyCacheTtlSeconds() {
+        return keyCacheTtlSeconds;
+    }
+
+    public static int getDecryptThreads() {
+        return decryptThreads;
+    }
+
+    public static boolean isAsyncKeyDecryption() {
+        return asyncKeyDecryption;
+    }
+
+    public static int getKmsMaxConcurrentRequests() {
+        return kmsMaxConcurrentRequests;
+    }
+
+    public static boolean isKmsVirtualThreads() {
+        return kmsVirtualThreads;
+    }
+
+    public static int getRetryMaxAttempts() {
+        return retryMaxAttempts;
+    }
+
+    public static long getRetryBaseBackoffMillis() {
+        return retryBaseBackoffMillis;
+    }
+
+    public static long getRetryMaxBackoffMillis() {
+        return retryMaxBackoffMillis;
+    }
+
+    public static int getRetryMaxOutstandingRecords() {
+        return retryMaxOutstandingRecords;
+    }
+
+    public static String getDeadLetterFile() {
+        return deadLetterFile;
+    }
+
+    public static String getRecordSinkDirectory() {
+        return recordSinkDirectory;
+    }
+
+    public static int getRecordSinkSegmentBytes() {
+        return recordSinkSegmentBytes;
+    }
+
+    public static String getObjectSinkDirectory() {
+        return objectSinkDirectory;
+    }
+
+    public static long getChunkTimeoutMillis() {
+        return chunkTimeoutMillis;
+    }
+
+    public static long getChunkBufferBytes() {
+        return chunkBufferBytes;
+    }
+
+    public static long getCheckpointMaxRecords() {
+        return checkpointMaxRecords;
+    }
+
+    public static long getCheckpointMaxBytes() {
+        return checkpointMaxBytes;
+    }
+
+    public static long getCheckpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+
+    public static String getMetricsSnapshotFile() {
+        return metricsSnapshotFile;
+    }
+
+    public static long getMetricsSnapshotIntervalSeconds() {
+        return metricsSnapshotIntervalSeconds;
+    }
+
+    public static double getRecordLogSampleRate() {
+        return recordLogSampleRate;
+    }
+
 }
@@ -1,52 +1,61 @@
 package com.amazonaws.services.kinesis.consumer;
 
+import java.io.IOException;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
-import com.amazonaws.regions.RegionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
 import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
 import com.amazonaws.services.kinesis.model.Record;
 
 
-import java.util.Base64;;
+import java.util.Base64;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
-
-import java.io.*;
-
 import org.json.simple.parser.ParseException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 
-import java.util.HashMap;
-import java.util.Map;
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
-//
-//
-import org.json.simple.JSONObject;
-import org.json.simple.JSONArray;
-import org.json.simple.parser.ParseException;
-import org.json.simple.parser.JSONParser;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 
-import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import java.util.Map;
 
 import javax.crypto.*;
 import javax.crypto.spec.SecretKeySpec;
 
-import com.amazonaws.services.kms.model.DecryptRequest;
-import com.amazonaws.services.kms.AWSKMSClient;
+import com.amazonaws.services.kinesis.compression.Codec;
+import com.amazonaws.services.kinesis.crypto.CipherSuite;
+import com.amazonaws.services.kinesis.crypto.Hkdf;
+import com.amazonaws.services.kinesis.envelope.AggregatedPayload;
+import com.amazonaws.services.kinesis.envelope.Chunk;
+import com.amazonaws.services.kinesis.envelope.Envelope;
+import com.amazonaws.services.kinesis.kms.KMSDecryptionService;
+import com.amazonaws.services.kinesis.metrics.LatencyHistogram;
+import com.amazonaws.services.kinesis.metrics.LogSampler;
+import com.amazonaws.services.kinesis.metrics.MetricsRegistry;
+import com.amazonaws.services.kinesis.utils.AllocationCounter;
 
 /**
 *
@@ -56,27 +65,151 @@ public class KMSRecordProcessor implements IRecordProcessor {
     private static final Log LOG = LogFactory.getLog(KMSRecordProcessor.class);
     private String kinesisShardId;
 
-    // Backoff and retry settings
-    private static final long BACKOFF_TIME_IN_MILLIS = 3000L;
-    private static final int NUM_RETRIES = 10;
-
-    // Checkpoint about once a minute
-    private static final long CHECKPOINT_INTERVAL_MILLIS = 60000L;
-    private long nextCheckpointTimeInMillis;
-    
-    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder();
-
-    private JSONParser parser = new JSONParser();
+    // Checkpoint triggers and the work done since the last checkpoint request
+    private final CheckpointPolicy checkpointPolicy;
+    private final ExecutorService checkpointExecutor;
+    private AsyncCheckpointer asyncCheckpointer;
+    private long recordsSinceCheckpoint;
+    private long bytesSinceCheckpoint;
+    private long lastCheckpointTimeMillis;
+    private String lastCheckpointSequenceNumber;
+
+    // Decoder, parser and cipher are not thread safe; records may be decrypted on a shared executor
+    private static final ThreadLocal<CharsetDecoder> DECODER = new ThreadLocal<CharsetDecoder>() {
+        @Override
+        protected CharsetDecoder initialValue() {
+            return Charset.forName("UTF-8").newDecoder();
+        }
+    };
 
-    private Cipher cipher = null;
+    private static final ThreadLocal<JSONParser> PARSER = new ThreadLocal<JSONParser>() {
+        @Override
+        protected JSONParser initialValue() {
+            return new JSONParser();
+        }
+    };
 
-    private AWSKMSClient kms;
+    // Last subkey each thread derived; records of one batch context follow each other
+    private static final ThreadLocal<DerivedKey> DERIVED_KEYS = new ThreadLocal<DerivedKey>() {
+        @Override
+        protected DerivedKey initialValue() {
+            return new DerivedKey();
+        }
+    };
+
+    private final KMSDecryptionService decryptionService;
+
+    // Per-stage latencies and counters shared by every processor of the worker
+    private final LatencyHistogram parseLatency;
+    private final LatencyHistogram kmsDecryptLatency;
+    private final LatencyHistogram keyWaitLatency;
+    private final LatencyHistogram deriveKeyLatency;
+    private final LatencyHistogram aesDecryptLatency;
+    private final LatencyHistogram decompressLatency;
+    private final LatencyHistogram deliverLatency;
+    private final LatencyHistogram checkpointLatency;
+    private final LatencyHistogram sinkFlushLatency;
+    private final LongAdder recordsCounter;
+    private final LongAdder bytesCounter;
+    private final LongAdder retriesCounter;
+    private final LongAdder deadLetteredCounter;
+    private final LongAdder parkedCounter;
+    private final LongAdder objectsCompletedCounter;
+    private final LongAdder objectsAbortedCounter;
+
+    // Decides which user records get a log line
+    private final LogSampler recordLog;
+
+    // Null when records are decrypted one after another on the KCL thread
+    private final ExecutorService decryptExecutor;
+
+    // User records of the current Kinesis record already delivered, so a retry resumes after them
+    private int deliveredSubRecords;
+
+    private final RetryPolicy retryPolicy;
+    private final DeadLetterSink deadLetterSink;
+
+    // Downstream of the decrypted user records, flushed before every checkpoint; null to only log them
+    private final RecordSink recordSink;
+
+    // Downstream of objects sent as chunk records and how they are put back together; null sink to
+    // dead-letter chunk records
+    private final ObjectSink objectSink;
+    private final ReassemblyPolicy reassemblyPolicy;
+    private ChunkReassembler chunkReassembler;
+
+    // Told how long each batch took, to size the shard's next fetch; null when fetches are not tuned
+    private final FetchTuner fetchTuner;
+
+    // Failed records waiting for their next attempt, earliest first
+    private final PriorityQueue<PendingRetry> retries = new PriorityQueue<PendingRetry>();
+
+    // Records whose data key is being decrypted in the background, in arrival order
+    private final ArrayDeque<ParkedRecord> parked = new ArrayDeque<ParkedRecord>();
+    // The background decryption of each key parked records wait for, so it is requested once
+    private final Map<ByteBuffer, CompletableFuture<SecretKeySpec>> keyFetches =
+            new HashMap<ByteBuffer, CompletableFuture<SecretKeySpec>>();
+
+    // Highest sequence number up to which every record has been delivered or dead-lettered
+    private final SequenceTracker sequenceTracker = new SequenceTracker();
+
+    // Reused for every record decrypted on the KCL thread; only valid until the next record
+    private ByteBuffer plaintextBuffer = ByteBuffer.allocate(1024);
+    private ByteBuffer decompressedBuffer = ByteBuffer.allocate(1024);
+    private final DecryptedRecord reusableRecord = new DecryptedRecord();
+
+    // Heap allocation on the KCL thread, reported at checkpoint time
+    private long allocatedBytes;
+    private long recordsProcessed;
 
     /**
 * Constructor.
+* @param decryptionService data key decryption shared by all processors of the worker
+* @param decryptExecutor executor shared by all processors to decrypt records in parallel, or null
+* @param retryPolicy classification and backoff of failed records
+* @param deadLetterSink receives records that cannot be processed
+* @param recordSink receives the decrypted user records, or null
+* @param checkpointPolicy when to checkpoint
+* @param checkpointExecutor executor shared by all processors to write checkpoints
+* @param metrics registry shared by all processors for per-stage latencies and counters
+* @param recordLog decides which user records are logged
+* @param objectSink receives the objects sent as chunk records, or null
+* @param reassemblyPolicy timeout and buffer limit for putting chunked objects back together
+* @param fetchTuner tuner of the stream's fetches, or null
 */
-    public KMSRecordProcessor() {
+    public KMSRecordProcessor(KMSDecryptionService decryptionService, ExecutorService decryptExecutor,
+                              RetryPolicy retryPolicy, DeadLetterSink deadLetterSink, RecordSink recordSink,
+                              CheckpointPolicy checkpointPolicy, ExecutorService checkpointExecutor,
+                              MetricsRegistry metrics, LogSampler recordLog, ObjectSink objectSink,
+                              ReassemblyPolicy reassemblyPolicy, FetchTuner fetchTuner) {
         super();
+        this.decryptionService = decryptionService;
+        this.decryptExecutor = decryptExecutor;
+        this.retryPolicy = retryPolicy;
+        this.deadLetterSink = deadLetterSink;
+        this.recordSink = recordSink;
+        this.checkpointPolicy = checkpointPolicy;
+        this.checkpointExecutor = checkpointExecutor;
+        this.parseLatency = metrics.histogram("consumer.parse");
+        this.kmsDecryptLatency = metrics.histogram("consumer.kmsDecrypt");
+        this.keyWaitLatency = metrics.histogram("consumer.keyWait");
+        this.deriveKeyLatency = metrics.histogram("consumer.deriveKey");
+        this.aesDecryptLatency = metrics.histogram("consumer.aesDecrypt");
+        this.decompressLatency = metrics.histogram("consumer.decompress");
+        this.deliverLatency = metrics.histogram("consumer.deliver");
+        this.checkpointLatency = metrics.histogram("consumer.checkpoint");
+        this.sinkFlushLatency = metrics.histogram("consumer.sinkFlush");
+        this.recordsCounter = metrics.counter("consumer.records");
+        this.bytesCounter = metrics.counter("consumer.bytes");
+        this.retriesCounter = metrics.counter("consumer.retries");
+        this.deadLetteredCounter = metrics.counter("consumer.deadLettered");
+        this.parkedCounter = metrics.counter("consumer.parked");
+        this.objectsCompletedCounter = metrics.counter("consumer.objectsCompleted");
+        this.objectsAbortedCounter = metrics.counter("consumer.objectsAborted");
+        this.recordLog = recordLog;
+        this.objectSink = objectSink;
+        this.reassemblyPolicy = reassemblyPolicy;
+        this.fetchTuner = fetchTuner;
     }
     
     /**
@@ -86,18 +219,22 @@ public class KMSRecordProcessor implements IRecordProcessor {
     public void initialize(String shardId) {
         LOG.info("Initializing record processor for shard: " + shardId);
         this.kinesisShardId = shardId;
-
-
-	    kms = new AWSKMSClient(new DefaultAWSCredentialsProviderChain());
-        kms.setRegion(RegionUtils.getRegion(KMSKinesisApplication.getRegionName()));
-
-        try {
-            cipher = Cipher.getInstance("AES");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (NoSuchPaddingException e) {
-            e.printStackTrace();
+        this.asyncCheckpointer = new AsyncCheckpointer(shardId, checkpointExecutor, checkpointLatency);
+        if (objectSink != null) {
+            this.chunkReassembler = new ChunkReassembler(shardId, objectSink, reassemblyPolicy,
+                    new ChunkReassembler.Listener() {
+                        @Override
+                        public void finished(Record record) {
+                            sequenceTracker.finish(record.getSequenceNumber());
+                        }
+
+                        @Override
+                        public void failed(Record record, Throwable cause) {
+                            deadLetter(record, 0, cause);
+                        }
+                    }, objectsCompletedCounter, objectsAbortedCounter);
         }
+        this.lastCheckpointTimeMillis = System.currentTimeMillis();
     }
 
     /**
@@ -105,133 +242,582 @@ public class KMSRecordProcessor implements IRecordProcessor {
 */
     @Override
     public void processRecords(List<Record> records, IRecordProcessorCheckpointer checkpointer) {
-        LOG.info("Processing " + records.size() + " records from " + kinesisShardId);
-        
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Processing " + records.size() + " records from " + kinesisShardId);
+        }
+
+        long startNanos = System.nanoTime();
+        long allocatedBefore = AllocationCounter.currentThreadAllocatedBytes();
+
         // Process records and perform all exception handling.
         processRecordsWithRetries(records);
-        
-        // Checkpoint once every checkpoint interval.
-        if (System.currentTimeMillis() > nextCheckpointTimeInMillis) {
-            checkpoint(checkpointer);
-            nextCheckpointTimeInMillis = System.currentTimeMillis() + CHECKPOINT_INTERVAL_MILLIS;
+
+        if (allocatedBefore >= 0) {
+            allocatedBytes += AllocationCounter.currentThreadAllocatedBytes() - allocatedBefore;
+        }
+        recordsProcessed += records.size();
+
+        recordsSinceCheckpoint += records.size();
+        long bytes = 0;
+        for (Record record : records) {
+            bytes += record.getData().remaining();
+        }
+        bytesSinceCheckpoint += bytes;
+        recordsCounter.add(records.size());
+        bytesCounter.add(bytes);
+        maybeCheckpoint(checkpointer);
+        if (fetchTuner != null) {
+            fetchTuner.batchProcessed(kinesisShardId, records.size(), System.nanoTime() - startNanos);
+        }
+    }
+
+    // Request an asynchronous checkpoint once any trigger of the checkpoint policy fires
+    private void maybeCheckpoint(IRecordProcessorCheckpointer checkpointer) {
+        long now = System.currentTimeMillis();
+        if (!checkpointPolicy.shouldCheckpoint(recordsSinceCheckpoint, bytesSinceCheckpoint,
+                now - lastCheckpointTimeMillis)) {
+            return;
+        }
+
+        String checkpointSequenceNumber = sequenceTracker.getCheckpointSequenceNumber();
+        if (checkpointSequenceNumber != null && !checkpointSequenceNumber.equals(lastCheckpointSequenceNumber)) {
+            if (!flushSink()) {
+                // Try again after the next batch; the checkpoint must not pass records the sink may lose
+                return;
+            }
+            LOG.info("Requesting checkpoint of shard " + kinesisShardId + " at " + checkpointSequenceNumber
+                    + " after " + recordsSinceCheckpoint + " records, " + bytesSinceCheckpoint + " bytes, "
+                    + decryptionService + ", allocated bytes/record: "
+                    + (recordsProcessed == 0 ? 0 : allocatedBytes / recordsProcessed));
+            asyncCheckpointer.request(checkpointer, checkpointSequenceNumber);
+            lastCheckpointSequenceNumber = checkpointSequenceNumber;
+        }
+        recordsSinceCheckpoint = 0;
+        bytesSinceCheckpoint = 0;
+        lastCheckpointTimeMillis = now;
+    }
+
+    // Make every record delivered so far durable in the sink
+    private boolean flushSink() {
+        if (recordSink == null) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            recordSink.flush(kinesisShardId);
+            sinkFlushLatency.recordSince(start);
+            return true;
+        } catch (IOException e) {
+            LOG.error("Couldn't flush the record sink of shard " + kinesisShardId + ", not checkpointing", e);
+            return false;
         }
-        
     }
 
     private void processRecordsWithRetries(List<Record> records){
-	for (Record record : records) {
-		boolean processedSuccessfully = false;
-		for (int i = 0; i < NUM_RETRIES; i++) {
-		
-			try {
-                processSingleRecord(record);
-                processedSuccessfully = true;
-                break;
-            } catch (Throwable t) {
-                LOG.warn("Caught throwable while processing record " + record, t);
-            }
-
-			try {
-                Thread.sleep(BACKOFF_TIME_IN_MILLIS);
-            } catch (InterruptedException e) {
-                LOG.debug("Interrupted sleep", e);
-			}
-		}
-
-        if (!processedSuccessfully) {
-            LOG.error("Couldn't process record " + record + ". Skipping the record.");
-		}
-  	}
-  }
-
-  private void processSingleRecord(Record record) {
-        // TODO Add your own record processing logic here
-
-        
-        String data = null;
-	    JSONObject jsonObject = null;
-	    Object jsonObj = null;
+        // Keys resolved in this batch, so each distinct key is decrypted at most once per batch
+        final Map<ByteBuffer, SecretKeySpec> batchKeys = new ConcurrentHashMap<ByteBuffer, SecretKeySpec>();
+
+        // Records whose keys arrived since the last batch go first
+        deliverParked(batchKeys);
+
+        // With asynchronous key decryption, records whose key is not resolved yet wait off to the side
+        List<Record> ready = decryptionService.isAsync() ? new ArrayList<Record>(records.size()) : records;
+        for (Record record : records) {
+            sequenceTracker.add(record.getSequenceNumber());
+            if (ready != records && !park(record, batchKeys, null)) {
+                ready.add(record);
+            }
+        }
+
+        // In parallel mode every record is decrypted up front; results are still delivered in order
+        List<Future<DecryptedRecord>> decrypted = submitDecryption(ready, batchKeys);
+
+        for (int r = 0; r < ready.size(); r++) {
+            attemptRecord(ready.get(r), decrypted == null ? null : decrypted.get(r), batchKeys, null);
+        }
+
+        // Failed records wait here for their backoff instead of holding up the rest of the shard
+        runDueRetries(batchKeys);
+
+        // Take no more records from the KCL until the shard is back under its limit
+        int maxOutstanding = retryPolicy.getMaxOutstandingRecords();
+        if (retries.size() + parked.size() > maxOutstanding) {
+            LOG.warn("Shard " + kinesisShardId + " has " + retries.size() + " records waiting for a retry and "
+                    + parked.size() + " for their data key, holding off new records until at most "
+                    + maxOutstanding + " are left");
+            drainRetries(batchKeys, maxOutstanding);
+        }
+
+        if (chunkReassembler != null) {
+            chunkReassembler.expire();
+        }
+    }
 
+    /** Try to decrypt and deliver a record once. On failure the record is either scheduled for
+* another attempt or, if the failure is permanent or attempts are exhausted, dead-lettered.
+* @param decrypted pending parallel decryption of the record, or null to decrypt it here
+* @param retry retry state of a previously failed record, or null for the first attempt
+*/
+    private void attemptRecord(Record record, Future<DecryptedRecord> decrypted,
+                               Map<ByteBuffer, SecretKeySpec> batchKeys, PendingRetry retry) {
+        deliveredSubRecords = retry == null ? 0 : retry.deliveredSubRecords;
         try {
-            data = decoder.decode(record.getData()).toString();
-        
-            jsonObj = parser.parse(data);
-            jsonObject = (JSONObject) jsonObj;
+            DecryptedRecord decryptedRecord = decrypted != null
+                    ? await(decrypted)
+                    : decryptRecord(record, batchKeys, reusableRecord);
+            long start = System.nanoTime();
+            boolean finished = deliverRecord(decryptedRecord);
+            deliverLatency.recordSince(start);
+            if (finished) {
+                sequenceTracker.finish(record.getSequenceNumber());
+            }
+        } catch (Throwable t) {
+            recordFailed(record, retry, t);
+        }
+    }
 
-            String encryptedBase64Key = (String) jsonObject.get("key");
-            String encryptedBase64Data = (String) jsonObject.get("data");
-            ByteBuffer ciphertextBlob = ByteBuffer.wrap(Base64.getDecoder().decode(encryptedBase64Key));
+    // Schedule a failed record for another attempt, or dead-letter it
+    private void recordFailed(Record record, PendingRetry retry, Throwable t) {
+        int attempts = retry == null ? 1 : retry.attempts + 1;
+        boolean shardFailure = retryPolicy.isShardFailure(t);
+        if (shardFailure || (retryPolicy.isTransient(t) && attempts < retryPolicy.getMaxAttempts())) {
+            long backoff = retryPolicy.backoffMillis(attempts);
+            if (shardFailure) {
+                // Every record of the shard fails the same way, so none of them is dead-lettered
+                LOG.error("Attempt " + attempts + " failed for record " + record.getSequenceNumber()
+                        + " because the key or the service cannot be accessed, retrying in " + backoff + " ms", t);
+            } else {
+                LOG.warn("Attempt " + attempts + " failed for record " + record.getSequenceNumber()
+                        + ", retrying in " + backoff + " ms", t);
+            }
+            retries.add(new PendingRetry(record, attempts, deliveredSubRecords,
+                    System.currentTimeMillis() + backoff));
+            retriesCounter.increment();
+        } else {
+            LOG.error("Couldn't process record " + record.getSequenceNumber() + " after " + attempts
+                    + " attempts. Sending it to the dead-letter sink.", t);
+            deadLetter(record, 0, t);
+        }
+    }
 
-            DecryptRequest req = new DecryptRequest().withCiphertextBlob(ciphertextBlob);
-            byte[] plainText = kms.decrypt(req).getPlaintext().array();
+    /** Hand a record to the dead-letter sink. While the sink fails, the record stays unfinished, so no
+* checkpoint passes it, and is offered to the sink again after a backoff.
+* @param failedWrites failed dead-letter writes of the record so far
+*/
+    private void deadLetter(Record record, int failedWrites, Throwable cause) {
+        try {
+            deadLetterSink.accept(kinesisShardId, record, cause);
+        } catch (IOException e) {
+            long backoff = retryPolicy.backoffMillis(failedWrites + 1);
+            LOG.error("Couldn't write record " + record.getSequenceNumber() + " to the dead-letter sink, retrying in "
+                    + backoff + " ms", e);
+            retries.add(new PendingRetry(record, failedWrites + 1, deliveredSubRecords,
+                    System.currentTimeMillis() + backoff, cause));
+            retriesCounter.increment();
+            return;
+        }
+        deadLetteredCounter.increment();
+        sequenceTracker.finish(record.getSequenceNumber());
+    }
 
-            SecretKey mySymmetricKeyEncoded = new SecretKeySpec(plainText, "AES");
+    /** Start decrypting the data key of a record in the background unless it is already resolved.
+* Legacy JSON records and records that are not well-formed envelopes are never parked.
+* @param retry retry state of a previously failed record, or null for the first attempt
+* @return true if the record was parked until its key arrives
+*/
+    private boolean park(Record record, Map<ByteBuffer, SecretKeySpec> batchKeys, PendingRetry retry) {
+        if (!Envelope.isEnvelope(record.getData())) {
+            return false;
+        }
+        ByteBuffer encryptedKey;
+        try {
+            encryptedKey = Envelope.parse(record.getData()).getEncryptedKey();
+        } catch (IllegalArgumentException e) {
+            // The attempt reports it
+            return false;
+        }
+        if (batchKeys.containsKey(encryptedKey)) {
+            return false;
+        }
+        CompletableFuture<SecretKeySpec> key = keyFetches.get(encryptedKey);
+        if (key == null) {
+            key = decryptionService.decryptAsync(encryptedKey);
+            if (key.isDone() && !key.isCompletedExceptionally()) {
+                batchKeys.put(encryptedKey, key.join());
+                return false;
+            }
+            keyFetches.put(encryptedKey, key);
+        }
+        parked.addLast(new ParkedRecord(record, encryptedKey, key, retry));
+        parkedCounter.increment();
+        return true;
+    }
 
+    // Attempt every parked record whose key has been decrypted, in arrival order
+    private void deliverParked(Map<ByteBuffer, SecretKeySpec> batchKeys) {
+        Iterator<ParkedRecord> it = parked.iterator();
+        while (it.hasNext()) {
+            ParkedRecord parkedRecord = it.next();
+            if (!parkedRecord.key.isDone()) {
+                continue;
+            }
+            it.remove();
+            keyFetches.remove(parkedRecord.encryptedKey, parkedRecord.key);
+            keyWaitLatency.recordSince(parkedRecord.parkedNanos);
+            try {
+                batchKeys.put(parkedRecord.encryptedKey, parkedRecord.key.join());
+            } catch (CompletionException | CancellationException e) {
+                PendingRetry retry = parkedRecord.retry;
+                deliveredSubRecords = retry == null ? 0 : retry.deliveredSubRecords;
+                recordFailed(parkedRecord.record, retry, e.getCause() != null ? e.getCause() : e);
+                continue;
+            }
+            attemptRecord(parkedRecord.record, null, batchKeys, parkedRecord.retry);
+        }
+    }
 
-            cipher.init(Cipher.DECRYPT_MODE, mySymmetricKeyEncoded);
-            byte[] dataBytes = cipher.doFinal(Base64.getDecoder().decode(encryptedBase64Data));
+    // Attempt every failed record whose backoff has elapsed
+    private void runDueRetries(Map<ByteBuffer, SecretKeySpec> batchKeys) {
+        long now = System.currentTimeMillis();
+        while (!retries.isEmpty() && retries.peek().dueTimeMillis <= now) {
+            PendingRetry retry = retries.poll();
+            if (retry.deadLetterCause != null) {
+                deliveredSubRecords = retry.deliveredSubRecords;
+                deadLetter(retry.record, retry.attempts, retry.deadLetterCause);
+            } else if (!decryptionService.isAsync() || !park(retry.record, batchKeys, retry)) {
+                attemptRecord(retry.record, null, batchKeys, retry);
+            }
+        }
+    }
 
-            LOG.info(record.getSequenceNumber() + ", " + record.getPartitionKey() + ", " + data + ", Decrypted Data: " + (new String(dataBytes)));
+    // Block until every parked and failed record has been delivered or dead-lettered
+    private void drainRetries() {
+        drainRetries(new ConcurrentHashMap<ByteBuffer, SecretKeySpec>(), 0);
+    }
 
-        } catch (CharacterCodingException e) {
-	        LOG.error("Malformed data: " + data, e);
-	    } catch (IllegalBlockSizeException e) {
-            e.printStackTrace();
-        } catch (BadPaddingException e) {
-            e.printStackTrace();
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        } catch (ParseException e) {
-            e.printStackTrace();
+    // Block until at most maxOutstanding records are parked or waiting for a retry
+    private void drainRetries(Map<ByteBuffer, SecretKeySpec> batchKeys, int maxOutstanding) {
+        while (retries.size() + parked.size() > maxOutstanding) {
+            long wait = retries.isEmpty() ? Long.MAX_VALUE
+                    : retries.peek().dueTimeMillis - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    if (parked.isEmpty()) {
+                        Thread.sleep(wait);
+                    } else {
+                        parked.peekFirst().key.get(wait, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    LOG.debug("Interrupted sleep", e);
+                } catch (ExecutionException | TimeoutException e) {
+                    // Failed keys are handled by deliverParked; due retries are next
+                    LOG.debug("Stopped waiting for a data key", e);
+                }
+            }
+            deliverParked(batchKeys);
+            runDueRetries(batchKeys);
+        }
+    }
+
+    private List<Future<DecryptedRecord>> submitDecryption(List<Record> records,
+                                                           final Map<ByteBuffer, SecretKeySpec> batchKeys) {
+        if (decryptExecutor == null || records.size() < 2) {
+            return null;
+        }
+        List<Future<DecryptedRecord>> futures = new ArrayList<Future<DecryptedRecord>>(records.size());
+        for (final Record record : records) {
+            futures.add(decryptExecutor.submit(new Callable<DecryptedRecord>() {
+                @Override
+                public DecryptedRecord call() throws Exception {
+                    return decryptRecord(record, batchKeys, new DecryptedRecord());
+                }
+            }));
+        }
+        return futures;
+    }
+
+    private static DecryptedRecord await(Future<DecryptedRecord> future) throws Throwable {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** Parse and decrypt one Kinesis record. Safe to call from any thread.
+* @param result holder to fill; the processor's reusable holder also reuses the plaintext buffer
+* @return result
+* @throws CharacterCodingException if a legacy record is not valid UTF-8
+* @throws ParseException if a legacy record is not valid JSON
+* @throws GeneralSecurityException if the record cannot be decrypted
+*/
+    private DecryptedRecord decryptRecord(Record record, Map<ByteBuffer, SecretKeySpec> batchKeys,
+                                          DecryptedRecord result)
+            throws CharacterCodingException, ParseException, GeneralSecurityException {
+        String data = null;
+        long time = System.nanoTime();
+
+        Envelope envelope;
+        if (Envelope.isEnvelope(record.getData())) {
+            // Binary envelope: fields are read in place from the record buffer
+            envelope = Envelope.parse(record.getData());
+        } else {
+            // Legacy JSON record with Base64 encoded key and data
+            data = DECODER.get().decode(record.getData().duplicate()).toString();
+            envelope = parseJson(data);
+        }
+        time = parseLatency.recordSince(time);
+
+        SecretKey mySymmetricKeyEncoded = resolveKey(envelope.getEncryptedKey(), batchKeys);
+        time = kmsDecryptLatency.recordSince(time);
+
+        // Records encrypted with a subkey of the data key carry the context it was derived from
+        if (envelope.hasKeyContext()) {
+            mySymmetricKeyEncoded = DERIVED_KEYS.get().derive(mySymmetricKeyEncoded, envelope.getKeyContext());
+            time = deriveKeyLatency.recordSince(time);
+        }
+
+        // The suite's per-thread Cipher; authenticated suites also check the partition key
+        CipherSuite suite = envelope.getSuite();
+        Cipher cipher = suite.initDecrypt(mySymmetricKeyEncoded, envelope.getIv(),
+                suite.isAuthenticated() ? CipherSuite.aadFor(record.getPartitionKey()) : null);
+        ByteBuffer ciphertext = envelope.getCiphertext().duplicate();
+        ByteBuffer plaintext = plaintextBufferFor(result, cipher.getOutputSize(ciphertext.remaining()));
+        cipher.doFinal(ciphertext, plaintext);
+        plaintext.flip();
+        time = aesDecryptLatency.recordSince(time);
+
+        // Payloads compressed before encryption
+        Codec codec = envelope.getCodec();
+        if (codec != Codec.NONE) {
+            ByteBuffer decompressed = decompressedBufferFor(result, Codec.decompressedLength(plaintext));
+            codec.decompress(plaintext, decompressed);
+            decompressed.flip();
+            plaintext = decompressed;
+            decompressLatency.recordSince(time);
         }
+
+        result.set(record, data, plaintext, envelope.isAggregated(), envelope.isChunk());
+        return result;
  }
 
+    // Plaintext output buffer: the processor's reusable buffer on the KCL thread, a new one otherwise
+    private ByteBuffer plaintextBufferFor(DecryptedRecord result, int size) {
+        if (result != reusableRecord) {
+            return ByteBuffer.allocate(size);
+        }
+        if (plaintextBuffer.capacity() < size) {
+            plaintextBuffer = ByteBuffer.allocate(Math.max(size, plaintextBuffer.capacity() * 2));
+        }
+        plaintextBuffer.clear();
+        return plaintextBuffer;
+    }
+
+    // Decompressed output buffer, reused on the KCL thread like the plaintext buffer
+    private ByteBuffer decompressedBufferFor(DecryptedRecord result, int size) {
+        if (result != reusableRecord) {
+            return ByteBuffer.allocate(size);
+        }
+        if (decompressedBuffer.capacity() < size) {
+            decompressedBuffer = ByteBuffer.allocate(Math.max(size, decompressedBuffer.capacity() * 2));
+        }
+        decompressedBuffer.clear();
+        return decompressedBuffer;
+    }
+
+    /** Deliver the user records of a Kinesis record, skipping those a previous attempt already delivered.
+* @return false for a chunk record, which is finished once the rest of its object has arrived
+*/
+    private boolean deliverRecord(DecryptedRecord decryptedRecord) throws IOException {
+        if (decryptedRecord.chunk) {
+            if (chunkReassembler == null) {
+                throw new IllegalArgumentException("Chunk record but no object sink is configured");
+            }
+            chunkReassembler.accept(decryptedRecord.record, Chunk.parse(decryptedRecord.plaintext));
+            return false;
+        }
+        if (!decryptedRecord.aggregated) {
+            if (deliveredSubRecords == 0) {
+                deliver(decryptedRecord.record, 0, decryptedRecord.data, decryptedRecord.plaintext);
+                deliveredSubRecords = 1;
+            }
+            return true;
+        }
+
+        // The index of a user record in an aggregate is its sub-sequence number
+        List<ByteBuffer> userRecords = AggregatedPayload.unpack(decryptedRecord.plaintext);
+        for (int i = deliveredSubRecords; i < userRecords.size(); i++) {
+            deliver(decryptedRecord.record, i, decryptedRecord.data, userRecords.get(i));
+            deliveredSubRecords = i + 1;
+        }
+        return true;
+    }
+
+    /** Hand one decrypted user record downstream.
+* @param record Kinesis record the user record was read from
+* @param subSequenceNumber index of the user record within an aggregated record, 0 otherwise
+* @param data legacy JSON payload, null for binary envelopes
+* @param plaintext decrypted user record; the buffer is reused once this method returns
+*/
+    private void deliver(Record record, long subSequenceNumber, String data, ByteBuffer plaintext)
+            throws IOException {
+        if (recordSink != null) {
+            recordSink.write(kinesisShardId, record, subSequenceNumber, plaintext);
+        }
+        if (recordLog.sample()) {
+            LOG.info(record.getSequenceNumber() + "/" + subSequenceNumber + ", " + record.getPartitionKey() + ", "
+                    + data + ", Decrypted Data: " + (new String(plaintext.array(),
+                    plaintext.arrayOffset() + plaintext.position(), plaintext.remaining(), StandardCharsets.UTF_8)));
+        }
+    }
+
+    // Convert a legacy JSON record into an envelope
+    private Envelope parseJson(String data) throws ParseException {
+        JSONObject jsonObject = (JSONObject) PARSER.get().parse(data);
+
+        String encryptedBase64Key = (String) jsonObject.get("key");
+        String encryptedBase64Data = (String) jsonObject.get("data");
+        if (encryptedBase64Key == null || encryptedBase64Data == null) {
+            throw new IllegalArgumentException("Record is missing the key or data field");
+        }
+        String codec = (String) jsonObject.get("codec");
+        return new Envelope((byte) 0, CipherSuite.AES_ECB_PKCS5, codec == null ? Codec.NONE : Codec.fromName(codec),
+                ByteBuffer.wrap(Base64.getDecoder().decode(encryptedBase64Key)),
+                ByteBuffer.allocate(0),
+                ByteBuffer.wrap(Base64.getDecoder().decode(encryptedBase64Data)));
+    }
+
+    /** Look up the plaintext data key in the batch, then through the shared decryption service.
+* @param ciphertextBlob encrypted data key carried in the record
+* @param batchKeys keys already resolved in the current batch
+*/
+    private SecretKeySpec resolveKey(ByteBuffer ciphertextBlob, Map<ByteBuffer, SecretKeySpec> batchKeys) {
+        SecretKeySpec key = batchKeys.get(ciphertextBlob);
+        if (key != null) {
+            return key;
+        }
+
+        key = decryptionService.decrypt(ciphertextBlob);
+        batchKeys.put(ciphertextBlob, key);
+        return key;
+    }
+
 /**
 * {@inheritDoc}
 */
     @Override
     public void shutdown(IRecordProcessorCheckpointer checkpointer, ShutdownReason reason) {
         LOG.info("Shutting down record processor for shard: " + kinesisShardId);
+        asyncCheckpointer.shutdown();
         // Important to checkpoint after reaching end of shard, so we can start processing data from child shards.
         if (reason == ShutdownReason.TERMINATE) {
-            checkpoint(checkpointer);
+            drainRetries();
+            if (chunkReassembler != null) {
+                // No more chunks can arrive from an ended shard
+                chunkReassembler.abortAll(new IllegalStateException("Shard " + kinesisShardId
+                        + " ended before the object was complete"));
+            }
+            if (flushSink()) {
+                AsyncCheckpointer.checkpoint(checkpointer, kinesisShardId, null);
+            }
+        }
+        if (recordSink != null) {
+            try {
+                recordSink.close(kinesisShardId);
+            } catch (IOException e) {
+                LOG.error("Couldn't close the record sink of shard " + kinesisShardId, e);
+            }
+        }
+        if (chunkReassembler != null && reason != ShutdownReason.TERMINATE) {
+            chunkReassembler.discardAll();
+        }
+        if (fetchTuner != null) {
+            fetchTuner.forget(kinesisShardId);
         }
     }
-    
- 
 
-    /** Checkpoint with retries.
-* @param checkpointer
-*/
-    private void checkpoint(IRecordProcessorCheckpointer checkpointer) {
-        LOG.info("Checkpointing shard " + kinesisShardId);
-        for (int i = 0; i < NUM_RETRIES; i++) {
-            try {
-                checkpointer.checkpoint();
-                break;
-            } catch (ShutdownException se) {
-                // Ignore checkpoint if the processor instance has been shutdown (fail over).
-                LOG.info("Caught shutdown exception, skipping checkpoint.", se);
-                break;
-            } catch (ThrottlingException e) {
-                // Backoff and re-attempt checkpoint upon transient failures
-                if (i >= (NUM_RETRIES - 1)) {
-                    LOG.error("Checkpoint failed after " + (i + 1) + "attempts.", e);
-                    break;
-                } else {
-                    LOG.info("Transient issue when checkpointing - attempt " + (i + 1) + " of "
-                            + NUM_RETRIES, e);
-                }
-            } catch (InvalidStateException e) {
-                // This indicates an issue with the DynamoDB table (check for table, provisioned IOPS).
-                LOG.error("Cannot save checkpoint to the DynamoDB table used by the Amazon Kinesis Client Library.", e);
-                break;
+    // A record waiting for its data key to be decrypted
+    private static final class ParkedRecord {
+        private final Record record;
+        private final ByteBuffer encryptedKey;
+        private final CompletableFuture<SecretKeySpec> key;
+        private final PendingRetry retry;
+        private final long parkedNanos = System.nanoTime();
+
+        private ParkedRecord(Record record, ByteBuffer encryptedKey, CompletableFuture<SecretKeySpec> key,
+                             PendingRetry retry) {
+            this.record = record;
+            this.encryptedKey = encryptedKey;
+            this.key = key;
+            this.retry = retry;
+        }
+    }
+
+    // A thread's last derived subkey and what it was derived from
+    private static final class DerivedKey {
+        private SecretKey dataKey;
+        private SecretKey pseudorandomKey;
+        private ByteBuffer context;
+        private SecretKey subkey;
+
+        private SecretKey derive(SecretKey dataKey, ByteBuffer context) {
+            if (dataKey != this.dataKey) {
+                this.pseudorandomKey = Hkdf.extract(dataKey);
+                this.dataKey = dataKey;
+                this.context = null;
             }
-            try {
-                Thread.sleep(BACKOFF_TIME_IN_MILLIS);
-            } catch (InterruptedException e) {
-                LOG.debug("Interrupted sleep", e);
+            if (!context.equals(this.context)) {
+                this.subkey = Hkdf.expand(pseudorandomKey, context, dataKey.getEncoded().length);
+                this.context = ByteBuffer.allocate(context.remaining()).put(context.duplicate());
+                this.context.flip();
             }
+            return subkey;
+        }
+    }
+
+    // A failed record waiting for its next attempt, or for the dead-letter sink to take it
+    private static final class PendingRetry implements Comparable<PendingRetry> {
+        private final Record record;
+        // Failed processing attempts, or failed dead-letter writes if deadLetterCause is set
+        private final int attempts;
+        private final int deliveredSubRecords;
+        private final long dueTimeMillis;
+        // Why the record is being dead-lettered; null while it is still being processed
+        private final Throwable deadLetterCause;
+
+        private PendingRetry(Record record, int attempts, int deliveredSubRecords, long dueTimeMillis) {
+            this(record, attempts, deliveredSubRecords, dueTimeMillis, null);
+        }
+
+        private PendingRetry(Record record, int attempts, int deliveredSubRecords, long dueTimeMillis,
+                             Throwable deadLetterCause) {
+            this.record = record;
+            this.attempts = attempts;
+            this.deliveredSubRecords = deliveredSubRecords;
+            this.dueTimeMillis = dueTimeMillis;
+            this.deadLetterCause = deadLetterCause;
+        }
+
+        @Override
+        public int compareTo(PendingRetry other) {
+            return Long.compare(dueTimeMillis, other.dueTimeMillis);
+        }
+    }
+
+    // Decrypted payload of one Kinesis record
+    private static final class DecryptedRecord {
+        private Record record;
+        private String data;
+        private ByteBuffer plaintext;
+        private boolean aggregated;
+        private boolean chunk;
+
+        private void set(Record record, String data, ByteBuffer plaintext, boolean aggregated, boolean chunk) {
+            this.record = record;
+            this.data = data;
+            this.plaintext = plaintext;
+            this.aggregated = aggregated;
+            this.chunk = chunk;
         }
     }
 
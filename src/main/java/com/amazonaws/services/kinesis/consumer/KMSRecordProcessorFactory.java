@@ -1,17 +1,126 @@
 package com.amazonaws.services.kinesis.consumer;
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
+import com.amazonaws.services.kinesis.kms.DataKeyCache;
+import com.amazonaws.services.kinesis.kms.KMSDecryptionService;
+import com.amazonaws.services.kinesis.metrics.LogSampler;
+import com.amazonaws.services.kinesis.metrics.MetricsRegistry;
+import com.amazonaws.services.kms.AWSKMSClient;
 
 /**
-* Used to create new record processors.
+* Used to create new record processors. All processors created by one factory share a
+* single KMS client and data key cache; when one process hosts several streams, the factories of
+* all streams share them too, and each stream has its own sinks.
 */
 public class KMSRecordProcessorFactory implements IRecordProcessorFactory {
-    
+
+    // Checkpoints are rare and coalesced per shard, so a couple of threads serve every shard
+    private static final int CHECKPOINT_THREADS = 2;
+
+    private static final String METRICS_OBJECT_NAME = "com.amazonaws.services.kinesis:type=Consumer";
+
+    private final KMSDecryptionService decryptionService;
+    private final ExecutorService decryptExecutor;
+    private final RetryPolicy retryPolicy;
+    private final DeadLetterSink deadLetterSink;
+    private final RecordSink recordSink;
+    private final CheckpointPolicy checkpointPolicy;
+    private final ExecutorService checkpointExecutor;
+    private final MetricsRegistry metrics;
+    private final LogSampler recordLog;
+    private final ObjectSink objectSink;
+    private final ReassemblyPolicy reassemblyPolicy;
+    private final FetchTuner fetchTuner;
+
     /**
-* Constructor.
+* Constructor. Builds the shared decryption service, executors, retry policy, dead-letter, record and
+* object sinks, checkpoint and reassembly policies and metrics from the application configuration.
 */
     public KMSRecordProcessorFactory() {
+        this(null, createDecryptionService(), createDecryptExecutor(), createCheckpointExecutor(), createMetrics(),
+                createFetchTuner());
+    }
+
+    /**
+* Constructor for one of several streams hosted by the same process. Builds the retry policy,
+* dead-letter, record and object sinks, checkpoint and reassembly policies from the application
+* configuration; the sinks of each stream are kept apart, since shard IDs repeat across streams.
+* @param streamName stream the processors read, or null for the only stream of the process
+* @param decryptionService decryption service shared by every stream
+* @param decryptExecutor executor shared by every stream for parallel decryption, or null
+* @param checkpointExecutor executor shared by every stream to write checkpoints
+* @param metrics registry shared by every stream
+* @param fetchTuner tuner of this stream's fetches, or null
+*/
+    public KMSRecordProcessorFactory(String streamName, KMSDecryptionService decryptionService,
+                                     ExecutorService decryptExecutor, ExecutorService checkpointExecutor,
+                                     MetricsRegistry metrics, FetchTuner fetchTuner) {
+        this(decryptionService,
+                decryptExecutor,
+                new RetryPolicy(KMSKinesisApplication.getRetryMaxAttempts(),
+                        KMSKinesisApplication.getRetryBaseBackoffMillis(),
+                        KMSKinesisApplication.getRetryMaxBackoffMillis(),
+                        KMSKinesisApplication.getRetryMaxOutstandingRecords()),
+                new FileDeadLetterSink(deadLetterFileFor(streamName)),
+                createRecordSink(streamName),
+                new CheckpointPolicy(KMSKinesisApplication.getCheckpointMaxRecords(),
+                        KMSKinesisApplication.getCheckpointMaxBytes(),
+                        KMSKinesisApplication.getCheckpointIntervalMillis()),
+                checkpointExecutor,
+                metrics,
+                new LogSampler(KMSKinesisApplication.getRecordLogSampleRate()),
+                createObjectSink(streamName),
+                new ReassemblyPolicy(KMSKinesisApplication.getChunkTimeoutMillis(),
+                        KMSKinesisApplication.getChunkBufferBytes()),
+                fetchTuner);
+        if (fetchTuner != null) {
+            registerGauges(metrics, streamName == null ? "consumer." : "consumer." + streamName + ".", fetchTuner);
+        }
+    }
+
+    /**
+* Constructor.
+* @param decryptionService decryption service shared by every processor
+* @param decryptExecutor executor shared by every processor for parallel decryption, or null
+* @param retryPolicy classification and backoff of failed records
+* @param deadLetterSink sink shared by every processor for records that cannot be processed
+* @param recordSink sink shared by every processor for decrypted user records, or null
+* @param checkpointPolicy when each processor checkpoints
+* @param checkpointExecutor executor shared by every processor to write checkpoints
+* @param metrics registry shared by every processor for per-stage latencies and counters
+* @param recordLog decides which user records are logged
+* @param objectSink sink shared by every processor for objects sent as chunk records, or null
+* @param reassemblyPolicy timeout and buffer limit for putting chunked objects back together
+* @param fetchTuner tuner of the stream's fetches, told how long each batch took, or null
+*/
+    public KMSRecordProcessorFactory(KMSDecryptionService decryptionService, ExecutorService decryptExecutor,
+                                     RetryPolicy retryPolicy, DeadLetterSink deadLetterSink, RecordSink recordSink,
+                                     CheckpointPolicy checkpointPolicy, ExecutorService checkpointExecutor,
+                                     MetricsRegistry metrics, LogSampler recordLog, ObjectSink objectSink,
+                                     ReassemblyPolicy reassemblyPolicy, FetchTuner fetchTuner) {
         super();
+        this.decryptionService = decryptionService;
+        this.decryptExecutor = decryptExecutor;
+        this.retryPolicy = retryPolicy;
+        this.deadLetterSink = deadLetterSink;
+        this.recordSink = recordSink;
+        this.checkpointPolicy = checkpointPolicy;
+        this.checkpointExecutor = checkpointExecutor;
+        this.metrics = metrics;
+        this.recordLog = recordLog;
+        this.objectSink = objectSink;
+        this.reassemblyPolicy = reassemblyPolicy;
+        this.fetchTuner = fetchTuner;
+        registerGauges(metrics, decryptionService);
     }
 
     /**
@@ -19,7 +128,162 @@ public class KMSRecordProcessorFactory implements IRecordProcessorFactory {
 */
     @Override
     public IRecordProcessor createProcessor() {
-        return new KMSRecordProcessor();
+        return new KMSRecordProcessor(decryptionService, decryptExecutor, retryPolicy, deadLetterSink, recordSink,
+                checkpointPolicy, checkpointExecutor, metrics, recordLog, objectSink, reassemblyPolicy,
+                fetchTuner);
+    }
+
+    /**
+* @return the tuner of the stream's fetches, to be applied by the Kinesis client, or null
+*/
+    public FetchTuner getFetchTuner() {
+        return fetchTuner;
+    }
+
+    static KMSDecryptionService createDecryptionService() {
+        AWSKMSClient kms = new AWSKMSClient(new DefaultAWSCredentialsProviderChain());
+        kms.setRegion(RegionUtils.getRegion(KMSKinesisApplication.getRegionName()));
+
+        DataKeyCache keyCache = new DataKeyCache(KMSKinesisApplication.getKeyCacheMaxEntries(),
+                KMSKinesisApplication.getKeyCacheTtlSeconds(), TimeUnit.SECONDS);
+        if (KMSKinesisApplication.isAsyncKeyDecryption()) {
+            return new KMSDecryptionService(kms, keyCache, KMSKinesisApplication.getKmsMaxConcurrentRequests(),
+                    KMSKinesisApplication.isKmsVirtualThreads());
+        }
+        return new KMSDecryptionService(kms, keyCache);
+    }
+
+    static FetchTuner createFetchTuner() {
+        if (!KMSKinesisApplication.isAdaptiveFetch()) {
+            return null;
+        }
+        return new FetchTuner(new FetchPolicy(KMSKinesisApplication.getFetchMinRecords(),
+                KMSKinesisApplication.getMaxRecords(), KMSKinesisApplication.getIdleTimeBetweenReadsInMillis(),
+                KMSKinesisApplication.getMaxIdleTimeBetweenReadsInMillis(),
+                KMSKinesisApplication.getLagThresholdMillis(), KMSKinesisApplication.getTargetBatchMillis()));
+    }
+
+    static ExecutorService createDecryptExecutor() {
+        if (KMSKinesisApplication.getDecryptThreads() <= 0) {
+            return null;
+        }
+        return createExecutor(KMSKinesisApplication.getDecryptThreads(), "record-decrypt-");
+    }
+
+    static ExecutorService createCheckpointExecutor() {
+        return createExecutor(CHECKPOINT_THREADS, "checkpoint-");
+    }
+
+    private static RecordSink createRecordSink(String streamName) {
+        String directory = KMSKinesisApplication.getRecordSinkDirectory();
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+        return new MappedSegmentRecordSink(directoryFor(directory, streamName),
+                KMSKinesisApplication.getRecordSinkSegmentBytes());
+    }
+
+    private static ObjectSink createObjectSink(String streamName) {
+        String directory = KMSKinesisApplication.getObjectSinkDirectory();
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+        return new FileObjectSink(directoryFor(directory, streamName));
+    }
+
+    // e.g. "objects/orders" for stream "orders"
+    private static File directoryFor(String directory, String streamName) {
+        return streamName == null ? new File(directory) : new File(directory, streamName);
+    }
+
+    // e.g. "dead-letter-orders.jsonl" for stream "orders"
+    private static String deadLetterFileFor(String streamName) {
+        String fileName = KMSKinesisApplication.getDeadLetterFile();
+        if (streamName == null) {
+            return fileName;
+        }
+        int extension = fileName.lastIndexOf('.');
+        if (extension <= fileName.lastIndexOf(File.separatorChar)) {
+            return fileName + "-" + streamName;
+        }
+        return fileName.substring(0, extension) + "-" + streamName + fileName.substring(extension);
+    }
+
+    static MetricsRegistry createMetrics() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.registerMBean(METRICS_OBJECT_NAME);
+        String snapshotFile = KMSKinesisApplication.getMetricsSnapshotFile();
+        if (snapshotFile != null && !snapshotFile.isEmpty()) {
+            metrics.startSnapshots(new File(snapshotFile), KMSKinesisApplication.getMetricsSnapshotIntervalSeconds(),
+                    TimeUnit.SECONDS);
+        }
+        return metrics;
+    }
+
+    private static void registerGauges(MetricsRegistry metrics, final KMSDecryptionService decryptionService) {
+        metrics.gauge("consumer.kmsCalls", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return decryptionService.getKmsCalls();
+            }
+        });
+        metrics.gauge("consumer.kmsInFlight", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return decryptionService.getInFlight();
+            }
+        });
+        metrics.gauge("consumer.keyCacheHits", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return decryptionService.getKeyCache().getHits();
+            }
+        });
+        metrics.gauge("consumer.keyCacheMisses", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return decryptionService.getKeyCache().getMisses();
+            }
+        });
+    }
+
+    private static void registerGauges(MetricsRegistry metrics, String prefix, final FetchTuner fetchTuner) {
+        metrics.gauge(prefix + "millisBehindLatest", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return fetchTuner.getMaxMillisBehindLatest();
+            }
+        });
+        metrics.gauge(prefix + "fetchMaxRecords", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return fetchTuner.getTotalMaxRecords();
+            }
+        });
+        metrics.gauge(prefix + "pollIntervalMillis", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return fetchTuner.getMeanPollIntervalMillis();
+            }
+        });
+        metrics.gauge(prefix + "getRecordsCalls", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return fetchTuner.getFetches();
+            }
+        });
+    }
+
+    static ExecutorService createExecutor(int threads, final String threadNamePrefix) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, threadNamePrefix + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
 }
@@ -0,0 +1,134 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.segment.MappedSegmentWriter;
+
+/**
+* Record sink that appends length-prefixed records to rolling memory-mapped segment files, one
+* directory per shard. A write is a copy into the page cache; {@link #flush(String)} forces the
+* shard's segments to disk.
+*
+* <pre>
+* record: length (4) | sequence number length (1) | sequence number (ASCII) | sub-sequence number (8) | payload
+* </pre>
+*
+* length counts the bytes after it. A length of 0 marks the unused end of a segment. Records written
+* after the last flush may be missing or torn after a crash; they are read again from the stream,
+* since the checkpoint never moved past them.
+*/
+public class MappedSegmentRecordSink implements RecordSink {
+
+    private static final Log LOG = LogFactory.getLog(MappedSegmentRecordSink.class);
+
+    private static final String SEGMENT_PREFIX = "records";
+
+    private final File directory;
+    private final int segmentBytes;
+
+    private final ConcurrentMap<String, MappedSegmentWriter> writers =
+            new ConcurrentHashMap<String, MappedSegmentWriter>();
+
+    /**
+* @param directory parent of the per-shard segment directories
+* @param segmentBytes size of each segment file
+*/
+    public MappedSegmentRecordSink(File directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public void write(String shardId, Record record, long subSequenceNumber, ByteBuffer plaintext)
+            throws IOException {
+        String sequenceNumber = record.getSequenceNumber();
+        int length = 1 + sequenceNumber.length() + 8 + plaintext.remaining();
+        MappedByteBuffer out = writerFor(shardId).reserve(4 + length);
+        out.putInt(length);
+        out.put((byte) sequenceNumber.length());
+        for (int i = 0; i < sequenceNumber.length(); i++) {
+            out.put((byte) sequenceNumber.charAt(i));
+        }
+        out.putLong(subSequenceNumber);
+        out.put(plaintext.duplicate());
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public void flush(String shardId) {
+        MappedSegmentWriter writer = writers.get(shardId);
+        if (writer != null) {
+            writer.force();
+        }
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public void close(String shardId) {
+        MappedSegmentWriter writer = writers.remove(shardId);
+        if (writer != null) {
+            writer.close();
+            LOG.info("Closed record segments of shard " + shardId + " in " + writer.getDirectory());
+        }
+    }
+
+    private MappedSegmentWriter writerFor(String shardId) throws IOException {
+        MappedSegmentWriter writer = writers.get(shardId);
+        if (writer == null) {
+            writer = new MappedSegmentWriter(new File(directory, shardId), SEGMENT_PREFIX, segmentBytes);
+            writers.put(shardId, writer);
+            LOG.info("Writing records of shard " + shardId + " to " + writer.getDirectory());
+        }
+        return writer;
+    }
+
+    /**
+* Read the records of one segment file.
+* @param segment segment file written by this sink
+* @param visitor called for each record; the payload buffer is only valid during the call
+*/
+    public static void read(File segment, RecordVisitor visitor) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+        while (in.remaining() >= 4) {
+            int length = in.getInt();
+            if (length == 0 || length > in.remaining()) {
+                // End of the segment, or a record torn by a crash after the last flush
+                return;
+            }
+            ByteBuffer body = in.slice();
+            body.limit(length);
+            in.position(in.position() + length);
+
+            byte[] sequenceNumber = new byte[body.get() & 0xFF];
+            body.get(sequenceNumber);
+            long subSequenceNumber = body.getLong();
+            visitor.visit(new String(sequenceNumber, StandardCharsets.US_ASCII), subSequenceNumber, body.slice());
+        }
+    }
+
+    /**
+* Receives the records of a segment.
+*/
+    public interface RecordVisitor {
+        void visit(String sequenceNumber, long subSequenceNumber, ByteBuffer payload);
+    }
+
+}
@@ -0,0 +1,41 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+* Receives objects that were sent as sequences of chunk records, as a stream of plaintext frames in
+* order. One sink is shared by all record processors, but the calls for one shard always come from
+* that shard's processing thread.
+*
+* An object is begun, written one frame at a time and then either completed or aborted. Its records
+* are only checkpointed once {@link #complete(String, UUID)} returns, so complete must make the
+* object durable. An object is aborted when a chunk does not arrive in time, the reassembly buffer
+* is full or a call to the sink throws; its records then go to the dead-letter sink. After a restart
+* an object may be begun again from its first chunk.
+*/
+public interface ObjectSink {
+
+    /**
+* @param shardId shard the object is read from
+* @param partitionKey partition key every chunk of the object was sent with
+*/
+    void begin(String shardId, UUID objectId, String partitionKey) throws IOException;
+
+    /**
+* @param data next frame of the object; the buffer is reused once this method returns
+*/
+    void write(String shardId, UUID objectId, ByteBuffer data) throws IOException;
+
+    /**
+* Make the whole object durable.
+*/
+    void complete(String shardId, UUID objectId) throws IOException;
+
+    /**
+* Discard what was written of the object.
+*/
+    void abort(String shardId, UUID objectId);
+
+}
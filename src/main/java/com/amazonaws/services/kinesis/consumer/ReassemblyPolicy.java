@@ -0,0 +1,36 @@
+package com.amazonaws.services.kinesis.consumer;
+
+/**
+* Limits on reassembling chunked objects: how long an incomplete object may wait for its next chunk,
+* and how many bytes of chunks that arrived ahead of their turn a shard may hold.
+*/
+public class ReassemblyPolicy {
+
+    private final long timeoutMillis;
+    private final long maxBufferedBytes;
+
+    /**
+* @param timeoutMillis time without a new chunk after which an incomplete object is aborted
+* @param maxBufferedBytes bytes of out-of-order chunks held per shard; an object whose chunk would
+* go over the limit is aborted
+*/
+    public ReassemblyPolicy(long timeoutMillis, long maxBufferedBytes) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public long getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReassemblyPolicy[timeoutMillis=%d, maxBufferedBytes=%d]", timeoutMillis,
+                maxBufferedBytes);
+    }
+
+}
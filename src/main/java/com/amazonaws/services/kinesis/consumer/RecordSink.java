@@ -0,0 +1,36 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+* Receives the decrypted user records of every shard. One sink is shared by all record processors,
+* but the calls for one shard always come from that shard's processing thread.
+*
+* Records may be buffered: the processor calls {@link #flush(String)} before every checkpoint of a
+* shard and only checkpoints once it returns, so a checkpoint never covers records the sink could
+* still lose. A write or flush that throws is retried like any other failed record.
+*/
+public interface RecordSink {
+
+    /**
+* @param shardId shard the record was read from
+* @param record Kinesis record the user record was read from
+* @param subSequenceNumber index of the user record within an aggregated record, 0 otherwise
+* @param plaintext decrypted user record; the buffer is reused once this method returns
+*/
+    void write(String shardId, Record record, long subSequenceNumber, ByteBuffer plaintext) throws IOException;
+
+    /**
+* Make every record written for shardId durable.
+*/
+    void flush(String shardId) throws IOException;
+
+    /**
+* Flush and release what the sink holds for shardId; called when its processor shuts down.
+*/
+    void close(String shardId) throws IOException;
+
+}
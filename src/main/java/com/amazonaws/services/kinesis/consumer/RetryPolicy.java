@@ -0,0 +1,142 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.nio.charset.CharacterCodingException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.json.simple.parser.ParseException;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+* Decides whether a failed record is worth retrying and how long to wait before the next attempt.
+*
+* Throttling, service-side and network errors are transient and retried with full-jitter exponential
+* backoff. Malformed records and crypto failures (bad padding, wrong key) can never succeed and go
+* straight to the dead-letter sink. Errors that are not about the record but about access to the
+* key, e.g. a missing IAM permission or a disabled key, would fail every record of the shard alike;
+* they are retried without limit, which holds the shard up until the problem is fixed instead of
+* dead-lettering and checkpointing past the whole stream.
+*/
+public class RetryPolicy {
+
+    private static final Set<String> THROTTLING_ERROR_CODES = new HashSet<String>(Arrays.asList(
+            "Throttling",
+            "ThrottlingException",
+            "ThrottledException",
+            "LimitExceededException",
+            "RequestLimitExceeded",
+            "ProvisionedThroughputExceededException",
+            "KMSInternalException",
+            "DependencyTimeoutException"));
+
+    // Access to the key or the service, not the record, is broken
+    private static final Set<String> ACCESS_ERROR_CODES = new HashSet<String>(Arrays.asList(
+            "AccessDeniedException",
+            "DisabledException",
+            "KMSInvalidStateException",
+            "NotFoundException",
+            "KeyUnavailableException",
+            "InvalidGrantTokenException",
+            "UnrecognizedClientException",
+            "InvalidSignatureException",
+            "ExpiredTokenException"));
+
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int maxOutstandingRecords;
+
+    /**
+* @param maxAttempts attempts before a transient failure is sent to the dead-letter sink
+* @param baseBackoffMillis backoff ceiling after the first failure, doubled for each further failure
+* @param maxBackoffMillis upper bound of the backoff ceiling
+*/
+    public RetryPolicy(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis) {
+        this(maxAttempts, baseBackoffMillis, maxBackoffMillis, Integer.MAX_VALUE);
+    }
+
+    /**
+* @param maxOutstandingRecords records of a shard that may wait for a retry or for their data key
+* before the shard stops taking new records until some of them are done
+*/
+    public RetryPolicy(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis, int maxOutstandingRecords) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        if (maxOutstandingRecords < 0) {
+            throw new IllegalArgumentException("maxOutstandingRecords must not be negative");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.maxOutstandingRecords = maxOutstandingRecords;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public int getMaxOutstandingRecords() {
+        return maxOutstandingRecords;
+    }
+
+    /**
+* @param t failure of a processing attempt
+* @return true if another attempt might succeed
+*/
+    public boolean isTransient(Throwable t) {
+        if (isShardFailure(t)) {
+            return true;
+        }
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof GeneralSecurityException
+                    || cause instanceof ParseException
+                    || cause instanceof CharacterCodingException
+                    || cause instanceof IllegalArgumentException
+                    || cause instanceof ClassCastException) {
+                return false;
+            }
+            if (cause instanceof AmazonServiceException) {
+                AmazonServiceException ase = (AmazonServiceException) cause;
+                return THROTTLING_ERROR_CODES.contains(ase.getErrorCode()) || ase.getStatusCode() >= 500;
+            }
+            if (cause instanceof AmazonClientException) {
+                // Client-side failures are mostly network errors
+                return true;
+            }
+        }
+        // Unknown failures get the bounded number of attempts
+        return true;
+    }
+
+    /**
+* @param t failure of a processing attempt
+* @return true if the failure is not about the record and would fail every record of the shard, so
+* the record is retried however many attempts it took
+*/
+    public boolean isShardFailure(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AmazonServiceException) {
+                AmazonServiceException ase = (AmazonServiceException) cause;
+                return ACCESS_ERROR_CODES.contains(ase.getErrorCode()) || ase.getStatusCode() == 403;
+            }
+        }
+        return false;
+    }
+
+    /**
+* @param attempt number of failed attempts so far, starting at 1
+* @return milliseconds to wait before the next attempt
+*/
+    public long backoffMillis(int attempt) {
+        int shift = Math.min(attempt - 1, 30);
+        long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << shift);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+}
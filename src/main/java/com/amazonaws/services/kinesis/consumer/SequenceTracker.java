@@ -0,0 +1,44 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+* Tracks which records of a shard are finished, so checkpoints only advance to the highest sequence
+* number below which every record has been delivered or dead-lettered. Records must be added in
+* sequence-number order; they may finish in any order.
+*/
+class SequenceTracker {
+
+    private final ArrayDeque<String> outstanding = new ArrayDeque<String>();
+    private final Set<String> finishedOutOfOrder = new HashSet<String>();
+    private String checkpointSequenceNumber;
+
+    void add(String sequenceNumber) {
+        outstanding.addLast(sequenceNumber);
+    }
+
+    void finish(String sequenceNumber) {
+        if (sequenceNumber.equals(outstanding.peekFirst())) {
+            checkpointSequenceNumber = outstanding.removeFirst();
+            while (!outstanding.isEmpty() && finishedOutOfOrder.remove(outstanding.peekFirst())) {
+                checkpointSequenceNumber = outstanding.removeFirst();
+            }
+        } else {
+            finishedOutOfOrder.add(sequenceNumber);
+        }
+    }
+
+    /**
+* @return highest contiguously finished sequence number, or null if none has finished yet
+*/
+    String getCheckpointSequenceNumber() {
+        return checkpointSequenceNumber;
+    }
+
+    int getOutstanding() {
+        return outstanding.size();
+    }
+
+}
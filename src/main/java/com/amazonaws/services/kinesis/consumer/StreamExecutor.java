@@ -0,0 +1,184 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+* One stream's view of the processing pool shared by every stream of the process; the KCL worker
+* of the stream runs its shard tasks on it.
+*
+* At most maxConcurrentTasks of the stream's tasks run on the pool at once. The rest wait in the
+* stream's own queue rather than the pool's, so a stream with many busy shards cannot take every
+* pool thread from the others. Shutting the view down stops the stream taking new tasks and
+* leaves the pool running for the other streams.
+*/
+class StreamExecutor extends AbstractExecutorService {
+
+    private final String streamName;
+    private final Executor pool;
+    private final int maxConcurrentTasks;
+
+    // Guarded by this
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<Runnable>();
+    private int running;
+    private boolean shutdown;
+
+    /**
+* @param pool processing pool shared by every stream
+* @param maxConcurrentTasks tasks of this stream running on the pool at once, 0 for no limit
+*/
+    StreamExecutor(String streamName, Executor pool, int maxConcurrentTasks) {
+        this.streamName = streamName;
+        this.pool = pool;
+        this.maxConcurrentTasks = maxConcurrentTasks;
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor of stream " + streamName + " is shut down");
+            }
+            if (maxConcurrentTasks > 0 && running >= maxConcurrentTasks) {
+                waiting.add(task);
+                return;
+            }
+            running++;
+        }
+        dispatch(task);
+    }
+
+    private void dispatch(final Runnable task) {
+        try {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        taskDone();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The pool is shut down, so nothing waiting behind this task will run either
+            List<Runnable> dropped;
+            synchronized (this) {
+                running--;
+                dropped = new ArrayList<Runnable>(waiting);
+                waiting.clear();
+                notifyAll();
+            }
+            for (Runnable waitingTask : dropped) {
+                cancel(waitingTask);
+            }
+            throw e;
+        }
+    }
+
+    // Hand the pool thread's slot to the next waiting task of this stream
+    private void taskDone() {
+        Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                running--;
+                notifyAll();
+                return;
+            }
+        }
+        try {
+            dispatch(next);
+        } catch (RejectedExecutionException e) {
+            cancel(next);
+        }
+    }
+
+    // Tasks come from submit, so a task that will never run is cancelled and its waiter released
+    private static void cancel(Runnable task) {
+        if (task instanceof Future) {
+            ((Future<?>) task).cancel(false);
+        }
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+* Stops taking tasks and returns the ones still waiting; tasks already on the pool run to the end.
+*/
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> dropped = new ArrayList<Runnable>(waiting);
+        waiting.clear();
+        notifyAll();
+        return dropped;
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && running == 0 && waiting.isEmpty();
+    }
+
+    /**
+* {@inheritDoc}
+*/
+    @Override
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isTerminated()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+* @return tasks of this stream running on the pool
+*/
+    synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+* @return tasks of this stream waiting for one of its running tasks to finish
+*/
+    synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    String getStreamName() {
+        return streamName;
+    }
+
+}
@@ -0,0 +1,217 @@
+package com.amazonaws.services.kinesis.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Cipher used to encrypt a record, identified in the binary envelope by a one-byte suite ID so
+ * the consumer decrypts each record with the suite it was written with.
+ *
+ * Every suite keeps one Cipher per thread, so no thread pays for a provider lookup per record
+ * or shares a Cipher with another.
+ */
+public enum CipherSuite {
+
+    /**
+     * What Cipher.getInstance("AES") resolves to; used by the JSON format and version 1 and 2
+     * envelopes. No nonce and no integrity protection.
+     */
+    AES_ECB_PKCS5((byte) 0, "aes-ecb", "AES/ECB/PKCS5Padding", 0, false) {
+        @Override
+        void init(Cipher cipher, int mode, SecretKey key, ByteBuffer nonce, ByteBuffer aad)
+                throws GeneralSecurityException {
+            cipher.init(mode, key);
+        }
+    },
+
+    /**
+     * AES-GCM with a 96-bit nonce per record and a 128-bit tag. The additional authenticated
+     * data binds the ciphertext to the record's partition key.
+     */
+    AES_GCM((byte) 1, "aes-gcm", "AES/GCM/NoPadding", 12, true) {
+        @Override
+        void init(Cipher cipher, int mode, SecretKey key, ByteBuffer nonce, ByteBuffer aad)
+                throws GeneralSecurityException {
+            GCMParameterSpec spec;
+            if (nonce.hasArray()) {
+                spec = new GCMParameterSpec(TAG_LENGTH_BITS, nonce.array(), nonce.arrayOffset() + nonce.position(),
+                        nonce.remaining());
+            } else {
+                byte[] nonceBytes = new byte[nonce.remaining()];
+                nonce.duplicate().get(nonceBytes);
+                spec = new GCMParameterSpec(TAG_LENGTH_BITS, nonceBytes);
+            }
+            cipher.init(mode, key, spec);
+            if (aad != null) {
+                cipher.updateAAD(aad.duplicate());
+            }
+        }
+    };
+
+    private static final int TAG_LENGTH_BITS = 128;
+
+    // Fixed field of the deterministic nonces (NIST SP 800-38D, 8.2.1), distinct for every thread.
+    // Data keys are never shared between processes, so this makes nonces unique per key.
+    private static final int NONCE_FIXED_LENGTH = 4;
+    private static final AtomicInteger NEXT_NONCE_FIXED_FIELD = new AtomicInteger(new SecureRandom().nextInt());
+
+    private final byte id;
+    private final String name;
+    private final String transformation;
+    private final int nonceLength;
+    private final boolean authenticated;
+
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(transformation);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(transformation + " cipher is not available", e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<NonceSequence> NONCES = new ThreadLocal<NonceSequence>() {
+        @Override
+        protected NonceSequence initialValue() {
+            return new NonceSequence();
+        }
+    };
+
+    CipherSuite(byte id, String name, String transformation, int nonceLength, boolean authenticated) {
+        this.id = id;
+        this.name = name;
+        this.transformation = transformation;
+        this.nonceLength = nonceLength;
+        this.authenticated = authenticated;
+    }
+
+    abstract void init(Cipher cipher, int mode, SecretKey key, ByteBuffer nonce, ByteBuffer aad)
+            throws GeneralSecurityException;
+
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * @return the name used in configuration, e.g. "aes-gcm"
+     */
+    public String getName() {
+        return name;
+    }
+
+    public int getNonceLength() {
+        return nonceLength;
+    }
+
+    /**
+     * @return true if the suite detects tampering and checks additional authenticated data
+     */
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    /**
+     * @return a nonce never returned before in this process, empty if the suite takes none
+     */
+    public byte[] newNonce() {
+        byte[] nonce = new byte[nonceLength];
+        if (nonceLength > 0) {
+            NONCES.get().next(nonce);
+        }
+        return nonce;
+    }
+
+    /**
+     * @param nonce from {@link #newNonce()}
+     * @param aad additional authenticated data, or null; ignored by suites without authentication
+     * @return the ciphertext, including the authentication tag if the suite has one
+     */
+    public byte[] encrypt(SecretKey key, byte[] nonce, ByteBuffer aad, byte[] plaintext)
+            throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        init(cipher, Cipher.ENCRYPT_MODE, key, ByteBuffer.wrap(nonce), aad);
+        return cipher.doFinal(plaintext);
+    }
+
+    /**
+     * For plaintext that arrives in pieces: feed it with update and finish with doFinal.
+     * @param nonce from {@link #newNonce()}
+     * @param aad additional authenticated data, or null; ignored by suites without authentication
+     * @return this thread's Cipher for the suite, initialised to encrypt
+     */
+    public Cipher initEncrypt(SecretKey key, byte[] nonce, ByteBuffer aad) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        init(cipher, Cipher.ENCRYPT_MODE, key, ByteBuffer.wrap(nonce), aad);
+        return cipher;
+    }
+
+    /**
+     * @param nonce nonce read from the record; may be a view into the record buffer
+     * @param aad additional authenticated data, or null
+     * @return this thread's Cipher for the suite, initialised to decrypt
+     */
+    public Cipher initDecrypt(SecretKey key, ByteBuffer nonce, ByteBuffer aad) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        init(cipher, Cipher.DECRYPT_MODE, key, nonce, aad);
+        return cipher;
+    }
+
+    /**
+     * @return the additional authenticated data binding a record to its partition key
+     */
+    public static ByteBuffer aadFor(String partitionKey) {
+        return ByteBuffer.wrap(partitionKey.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException if no suite has the ID
+     */
+    public static CipherSuite fromId(byte id) {
+        for (CipherSuite suite : values()) {
+            if (suite.id == id) {
+                return suite;
+            }
+        }
+        throw new IllegalArgumentException("Unknown cipher suite " + id);
+    }
+
+    /**
+     * @throws IllegalArgumentException if no suite has the name
+     */
+    public static CipherSuite fromName(String name) {
+        for (CipherSuite suite : values()) {
+            if (suite.name.equalsIgnoreCase(name)) {
+                return suite;
+            }
+        }
+        throw new IllegalArgumentException("Unknown cipher suite " + name);
+    }
+
+    // The thread's fixed field followed by a counter
+    private static final class NonceSequence {
+        private final int fixed = NEXT_NONCE_FIXED_FIELD.getAndIncrement();
+        private long counter;
+
+        private void next(byte[] nonce) {
+            nonce[0] = (byte) (fixed >>> 24);
+            nonce[1] = (byte) (fixed >>> 16);
+            nonce[2] = (byte) (fixed >>> 8);
+            nonce[3] = (byte) fixed;
+            long value = counter++;
+            for (int i = nonce.length - 1; i >= NONCE_FIXED_LENGTH; i--) {
+                nonce[i] = (byte) value;
+                value >>>= 8;
+            }
+        }
+    }
+
+}
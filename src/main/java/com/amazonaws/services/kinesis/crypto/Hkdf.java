@@ -0,0 +1,89 @@
+package com.amazonaws.services.kinesis.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HKDF with HMAC-SHA256 (RFC 5869), used to derive record subkeys from a KMS data key.
+ *
+ * A subkey is the first bytes of HKDF-Expand(HKDF-Extract(no salt, data key), label | context),
+ * with as many bytes as the data key, so an AES-128 data key yields AES-128 subkeys. The context
+ * travels in the envelope; the data key never leaves memory. Every thread keeps its own Mac.
+ */
+public final class Hkdf {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int HASH_LENGTH = 32;
+
+    // Separates these subkeys from anything else derived from the same data key
+    private static final byte[] LABEL = "kinesis-record-subkey".getBytes(StandardCharsets.US_ASCII);
+
+    // RFC 5869, 2.2: no salt is a string of HashLen zeros
+    private static final SecretKeySpec NO_SALT = new SecretKeySpec(new byte[HASH_LENGTH], ALGORITHM);
+
+    private static final ThreadLocal<Mac> MACS = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance(ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            }
+        }
+    };
+
+    private Hkdf() {
+    }
+
+    /**
+     * @param dataKey master key; its encoded bytes are the HKDF input key material
+     * @param context per-partition or per-batch context; its position is not changed
+     * @return an AES key as long as the data key, at most 32 bytes
+     */
+    public static SecretKeySpec deriveKey(SecretKey dataKey, ByteBuffer context) {
+        return expand(extract(dataKey), context, dataKey.getEncoded().length);
+    }
+
+    /**
+     * HKDF-Extract; the result only depends on the data key, so it can be kept for all of its subkeys.
+     * @return the pseudorandom key to pass to {@link #expand(SecretKey, ByteBuffer, int)}
+     */
+    public static SecretKey extract(SecretKey dataKey) {
+        Mac mac = MACS.get();
+        try {
+            mac.init(NO_SALT);
+            return new SecretKeySpec(mac.doFinal(dataKey.getEncoded()), ALGORITHM);
+        } catch (InvalidKeyException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * HKDF-Expand of one block: T(1) = HMAC(PRK, label | context | 0x01).
+     * @param prk from {@link #extract(SecretKey)}
+     * @param context its position is not changed
+     * @param length subkey length in bytes, at most 32
+     */
+    public static SecretKeySpec expand(SecretKey prk, ByteBuffer context, int length) {
+        if (length > HASH_LENGTH) {
+            throw new IllegalArgumentException("Subkey longer than " + HASH_LENGTH + " bytes");
+        }
+        Mac mac = MACS.get();
+        try {
+            mac.init(prk);
+            mac.update(LABEL);
+            mac.update(context.duplicate());
+            mac.update((byte) 1);
+            return new SecretKeySpec(mac.doFinal(), 0, length, "AES");
+        } catch (InvalidKeyException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
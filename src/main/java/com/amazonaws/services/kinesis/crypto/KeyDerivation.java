@@ -0,0 +1,53 @@
+package com.amazonaws.services.kinesis.crypto;
+
+/**
+ * How the producer picks the key a record is encrypted with.
+ *
+ * With a derivation mode other than {@link #NONE}, the KMS data key of each rotation period is
+ * a master key and records are encrypted with {@link Hkdf} subkeys of it. The context a subkey
+ * is derived from is carried in the envelope, so the consumer still makes one KMS Decrypt per
+ * data key and derives the subkeys itself.
+ */
+public enum KeyDerivation {
+
+    /**
+     * Records are encrypted with the data key itself.
+     */
+    NONE("none"),
+
+    /**
+     * One subkey per partition key; the context is the partition key.
+     */
+    PARTITION_KEY("partition-key"),
+
+    /**
+     * One subkey per batch of records from an encryption thread; the context is random.
+     */
+    BATCH("batch");
+
+    private final String name;
+
+    KeyDerivation(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the name used in configuration, e.g. "partition-key"
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @throws IllegalArgumentException if no mode has the name
+     */
+    public static KeyDerivation fromName(String name) {
+        for (KeyDerivation derivation : values()) {
+            if (derivation.name.equalsIgnoreCase(name)) {
+                return derivation;
+            }
+        }
+        throw new IllegalArgumentException("Unknown key derivation " + name);
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.amazonaws.services.kinesis.envelope;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plaintext layout of an aggregated envelope: several user records encrypted together
+ * under one data key.
+ *
+ * <pre>
+ * record count (4) | length (4) | record | length (4) | record | ...
+ * </pre>
+ *
+ * The position of a user record in the payload is its sub-sequence number.
+ */
+public final class AggregatedPayload {
+
+    private AggregatedPayload() {
+    }
+
+    public static byte[] pack(List<byte[]> records) {
+        ByteBuffer out = ByteBuffer.allocate(packedSize(records));
+        out.putInt(records.size());
+        for (byte[] record : records) {
+            out.putInt(record.length);
+            out.put(record);
+        }
+        return out.array();
+    }
+
+    public static int packedSize(List<byte[]> records) {
+        int size = 4;
+        for (byte[] record : records) {
+            size += 4 + record.length;
+        }
+        return size;
+    }
+
+    /**
+     * Split a payload without copying; the returned buffers are slices of plaintext.
+     * @throws IllegalArgumentException if the payload is malformed
+     */
+    public static List<ByteBuffer> unpack(ByteBuffer plaintext) {
+        ByteBuffer in = plaintext.duplicate();
+        try {
+            int count = in.getInt();
+            if (count < 0) {
+                throw new IllegalArgumentException("Negative record count " + count);
+            }
+            List<ByteBuffer> records = new ArrayList<ByteBuffer>(Math.min(count, in.remaining() / 4));
+            for (int i = 0; i < count; i++) {
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    throw new IllegalArgumentException("Truncated aggregated payload");
+                }
+                ByteBuffer record = in.slice();
+                record.limit(length);
+                in.position(in.position() + length);
+                records.add(record);
+            }
+            return records;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated aggregated payload", e);
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.amazonaws.services.kinesis.envelope;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Plaintext layout of a chunk envelope: one frame of an object too large for a single record.
+ *
+ * <pre>
+ * object ID (16) | chunk index (4) | frame | flags (1)
+ * </pre>
+ *
+ * All chunks of an object share its ID and partition key and are numbered from 0; the last one has
+ * {@link #FLAG_LAST} set. The flags come after the frame because a producer streaming the object
+ * only knows a frame is the last one once it has read it. Header and flags are encrypted and
+ * authenticated with the frame, so chunks cannot be moved between objects, renumbered or cut off
+ * without failing decryption.
+ */
+public final class Chunk {
+
+    public static final int HEADER_BYTES = 16 + 4;
+    public static final int TRAILER_BYTES = 1;
+
+    // No chunks of the object follow this one
+    public static final byte FLAG_LAST = 0x01;
+
+    private final UUID objectId;
+    private final int index;
+    private final boolean last;
+    private final ByteBuffer data;
+
+    private Chunk(UUID objectId, int index, boolean last, ByteBuffer data) {
+        this.objectId = objectId;
+        this.index = index;
+        this.last = last;
+        this.data = data;
+    }
+
+    public UUID getObjectId() {
+        return objectId;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+
+    /**
+     * @return the frame, a slice of the plaintext the chunk was parsed from
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    /**
+     * @return the header to encrypt in front of a frame
+     */
+    public static byte[] header(UUID objectId, int index) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES);
+        out.putLong(objectId.getMostSignificantBits());
+        out.putLong(objectId.getLeastSignificantBits());
+        out.putInt(index);
+        return out.array();
+    }
+
+    /**
+     * @return the flags to encrypt after a frame
+     */
+    public static byte[] trailer(boolean last) {
+        return new byte[] {last ? FLAG_LAST : 0};
+    }
+
+    /**
+     * Parse a chunk without copying the frame.
+     * @param plaintext decrypted chunk envelope; its position is not changed
+     * @throws IllegalArgumentException if the payload is malformed
+     */
+    public static Chunk parse(ByteBuffer plaintext) {
+        if (plaintext.remaining() < HEADER_BYTES + TRAILER_BYTES) {
+            throw new IllegalArgumentException("Truncated chunk");
+        }
+        ByteBuffer in = plaintext.duplicate();
+        UUID objectId = new UUID(in.getLong(), in.getLong());
+        int index = in.getInt();
+        if (index < 0) {
+            throw new IllegalArgumentException("Negative chunk index " + index);
+        }
+        boolean last = (in.get(in.limit() - 1) & FLAG_LAST) != 0;
+        in.limit(in.limit() - TRAILER_BYTES);
+        return new Chunk(objectId, index, last, in.slice());
+    }
+
+}
@@ -0,0 +1,273 @@
+package com.amazonaws.services.kinesis.envelope;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import com.amazonaws.services.kinesis.compression.Codec;
+import com.amazonaws.services.kinesis.crypto.CipherSuite;
+
+/**
+ * Versioned binary record format carrying an encrypted data key and the data it encrypts.
+ *
+ * <pre>
+ * version 1: magic (1) | version (1) | key blob length (2) | key blob | IV length (1) | IV | ciphertext
+ * version 2: magic (1) | version (1) | flags (1) | key blob length (2) | key blob | IV length (1) | IV | ciphertext
+ * version 3: magic (1) | version (1) | flags (1) | cipher suite (1) | key blob length (2) | key blob | IV length (1) | IV | ciphertext
+ * version 4: magic (1) | version (1) | flags (1) | cipher suite (1) | codec (1) | key blob length (2) | key blob | IV length (1) | IV | ciphertext
+ * version 5: magic (1) | version (1) | flags (1) | cipher suite (1) | codec (1) | key blob length (2) | key blob | key context length (1) | key context | IV length (1) | IV | ciphertext
+ * </pre>
+ *
+ * Versions 1 and 2 are always encrypted with {@link CipherSuite#AES_ECB_PKCS5}, version 1 records
+ * carry no flags, and versions 1 to 3 are never compressed. Only version 5 records are encrypted with a subkey derived from the data
+ * key and the key context. Each record is written with the lowest version that can describe it, so
+ * older consumers can still read records that do not use the newer features.
+ *
+ * Legacy records are JSON objects and therefore start with '{', which never matches the magic byte.
+ */
+public final class Envelope {
+
+    public static final byte MAGIC = (byte) 0xE5;
+    public static final byte VERSION_1 = 1;
+    public static final byte VERSION_2 = 2;
+    public static final byte VERSION_3 = 3;
+    public static final byte VERSION_4 = 4;
+    public static final byte VERSION_5 = 5;
+
+    // The plaintext is an AggregatedPayload of several user records
+    public static final byte FLAG_AGGREGATED = 0x01;
+    // The plaintext is a Chunk of an object too large for one record
+    public static final byte FLAG_CHUNK = 0x02;
+
+    private static final int MAX_KEY_LENGTH = 0xFFFF;
+    private static final int MAX_IV_LENGTH = 0xFF;
+    private static final int MAX_CONTEXT_LENGTH = 0xFF;
+
+    private static final ByteBuffer NO_CONTEXT = ByteBuffer.allocate(0);
+
+    private final byte flags;
+    private final CipherSuite suite;
+    private final Codec codec;
+    private final ByteBuffer encryptedKey;
+    private final ByteBuffer keyContext;
+    private final ByteBuffer iv;
+    private final ByteBuffer ciphertext;
+
+    public Envelope(ByteBuffer encryptedKey, ByteBuffer iv, ByteBuffer ciphertext) {
+        this((byte) 0, CipherSuite.AES_ECB_PKCS5, Codec.NONE, encryptedKey, iv, ciphertext);
+    }
+
+    public Envelope(byte flags, CipherSuite suite, Codec codec, ByteBuffer encryptedKey, ByteBuffer iv,
+                    ByteBuffer ciphertext) {
+        this(flags, suite, codec, encryptedKey, NO_CONTEXT, iv, ciphertext);
+    }
+
+    public Envelope(byte flags, CipherSuite suite, Codec codec, ByteBuffer encryptedKey, ByteBuffer keyContext,
+                    ByteBuffer iv, ByteBuffer ciphertext) {
+        this.flags = flags;
+        this.suite = suite;
+        this.codec = codec;
+        this.encryptedKey = encryptedKey;
+        this.keyContext = keyContext;
+        this.iv = iv;
+        this.ciphertext = ciphertext;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public boolean isAggregated() {
+        return (flags & FLAG_AGGREGATED) != 0;
+    }
+
+    public boolean isChunk() {
+        return (flags & FLAG_CHUNK) != 0;
+    }
+
+    public CipherSuite getSuite() {
+        return suite;
+    }
+
+    /**
+     * @return compression applied to the plaintext before it was encrypted
+     */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return KMS ciphertext blob of the data key
+     */
+    public ByteBuffer getEncryptedKey() {
+        return encryptedKey;
+    }
+
+    /**
+     * @return context the record's subkey is derived from, empty when the data key is used directly
+     */
+    public ByteBuffer getKeyContext() {
+        return keyContext;
+    }
+
+    public boolean hasKeyContext() {
+        return keyContext.hasRemaining();
+    }
+
+    /**
+     * @return IV or nonce, empty when the cipher mode does not use one
+     */
+    public ByteBuffer getIv() {
+        return iv;
+    }
+
+    public ByteBuffer getCiphertext() {
+        return ciphertext;
+    }
+
+    /**
+     * @param data record payload; its position is not changed
+     * @return true if the payload starts with the envelope magic byte
+     */
+    public static boolean isEnvelope(ByteBuffer data) {
+        return data.remaining() > 0 && data.get(data.position()) == MAGIC;
+    }
+
+    /**
+     * Parse an envelope without copying; the returned buffers are slices of data.
+     * @param data record payload; its position is not changed
+     * @throws IllegalArgumentException if the payload is not a well-formed envelope
+     */
+    public static Envelope parse(ByteBuffer data) {
+        ByteBuffer in = data.duplicate();
+        try {
+            if (in.get() != MAGIC) {
+                throw new IllegalArgumentException("Not an envelope");
+            }
+            byte version = in.get();
+            byte flags = 0;
+            CipherSuite suite = CipherSuite.AES_ECB_PKCS5;
+            Codec codec = Codec.NONE;
+            if (version == VERSION_2) {
+                flags = in.get();
+            } else if (version == VERSION_3) {
+                flags = in.get();
+                suite = CipherSuite.fromId(in.get());
+            } else if (version == VERSION_4 || version == VERSION_5) {
+                flags = in.get();
+                suite = CipherSuite.fromId(in.get());
+                codec = Codec.fromId(in.get());
+            } else if (version != VERSION_1) {
+                throw new IllegalArgumentException("Unsupported envelope version " + version);
+            }
+            int keyLength = in.getShort() & 0xFFFF;
+            ByteBuffer encryptedKey = slice(in, keyLength);
+            ByteBuffer keyContext = NO_CONTEXT;
+            if (version == VERSION_5) {
+                keyContext = slice(in, in.get() & 0xFF);
+            }
+            int ivLength = in.get() & 0xFF;
+            ByteBuffer iv = slice(in, ivLength);
+            ByteBuffer ciphertext = in.slice();
+            return new Envelope(flags, suite, codec, encryptedKey, keyContext, iv, ciphertext);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated envelope", e);
+        }
+    }
+
+    /**
+     * @return a new heap buffer holding the encoded envelope, ready to be read
+     */
+    public static ByteBuffer encode(ByteBuffer encryptedKey, byte[] iv, byte[] ciphertext) {
+        return encode((byte) 0, CipherSuite.AES_ECB_PKCS5, Codec.NONE, encryptedKey, iv, ciphertext);
+    }
+
+    /**
+     * @return a new heap buffer holding the encoded envelope, ready to be read
+     */
+    public static ByteBuffer encode(byte flags, CipherSuite suite, Codec codec, ByteBuffer encryptedKey, byte[] iv,
+                                    byte[] ciphertext) {
+        return encode(flags, suite, codec, encryptedKey, new byte[0], iv, ciphertext);
+    }
+
+    /**
+     * @param keyContext context of the subkey the record is encrypted with, empty for the data key itself
+     * @return a new heap buffer holding the encoded envelope, ready to be read
+     */
+    public static ByteBuffer encode(byte flags, CipherSuite suite, Codec codec, ByteBuffer encryptedKey,
+                                    byte[] keyContext, byte[] iv, byte[] ciphertext) {
+        ByteBuffer key = encryptedKey.duplicate();
+        if (key.remaining() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Encrypted key too long: " + key.remaining());
+        }
+        if (keyContext.length > MAX_CONTEXT_LENGTH) {
+            throw new IllegalArgumentException("Key context too long: " + keyContext.length);
+        }
+        if (iv.length > MAX_IV_LENGTH) {
+            throw new IllegalArgumentException("IV too long: " + iv.length);
+        }
+
+        byte version = versionFor(flags, suite, codec, keyContext.length);
+        ByteBuffer out = ByteBuffer.allocate(encodedSize(flags, suite, codec, key.remaining(), keyContext.length,
+                iv.length, ciphertext.length));
+        out.put(MAGIC);
+        out.put(version);
+        if (version >= VERSION_2) {
+            out.put(flags);
+        }
+        if (version >= VERSION_3) {
+            out.put(suite.getId());
+        }
+        if (version >= VERSION_4) {
+            out.put(codec.getId());
+        }
+        out.putShort((short) key.remaining());
+        out.put(key);
+        if (version >= VERSION_5) {
+            out.put((byte) keyContext.length);
+            out.put(keyContext);
+        }
+        out.put((byte) iv.length);
+        out.put(iv);
+        out.put(ciphertext);
+        out.flip();
+        return out;
+    }
+
+    public static int encodedSize(byte flags, CipherSuite suite, Codec codec, int keyLength, int ivLength,
+                                  int ciphertextLength) {
+        return encodedSize(flags, suite, codec, keyLength, 0, ivLength, ciphertextLength);
+    }
+
+    public static int encodedSize(byte flags, CipherSuite suite, Codec codec, int keyLength, int keyContextLength,
+                                  int ivLength, int ciphertextLength) {
+        byte version = versionFor(flags, suite, codec, keyContextLength);
+        int headerLength = 2 + (Math.min(version, VERSION_4) - VERSION_1);
+        int contextLength = version >= VERSION_5 ? 1 + keyContextLength : 0;
+        return headerLength + 2 + keyLength + contextLength + 1 + ivLength + ciphertextLength;
+    }
+
+    // Lowest version that can describe the record
+    private static byte versionFor(byte flags, CipherSuite suite, Codec codec, int keyContextLength) {
+        if (keyContextLength > 0) {
+            return VERSION_5;
+        }
+        if (codec != Codec.NONE) {
+            return VERSION_4;
+        }
+        if (suite != CipherSuite.AES_ECB_PKCS5) {
+            return VERSION_3;
+        }
+        return flags == 0 ? VERSION_1 : VERSION_2;
+    }
+
+    private static ByteBuffer slice(ByteBuffer in, int length) {
+        if (in.remaining() < length) {
+            throw new IllegalArgumentException("Truncated envelope");
+        }
+        ByteBuffer field = in.slice();
+        field.limit(length);
+        in.position(in.position() + length);
+        return field;
+    }
+
+}
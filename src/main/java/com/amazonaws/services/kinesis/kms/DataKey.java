@@ -1,7 +1,13 @@
 package com.amazonaws.services.kinesis.kms;
 
 import java.nio.ByteBuffer;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.services.kinesis.crypto.Hkdf;
+import com.amazonaws.services.kms.AWSKMS;
 import com.amazonaws.services.kms.AWSKMSClient;
 import com.amazonaws.services.kms.model.*;
 import com.amazonaws.regions.RegionUtils;
@@ -10,6 +16,9 @@ public class DataKey {
 
     private ByteBuffer plaintextKey;
     private ByteBuffer encryptedKey;
+    private SecretKeySpec secretKey;
+    // HKDF-Extract of the key, computed the first time a subkey is derived
+    private volatile SecretKey pseudorandomKey;
 
     public ByteBuffer getPlaintextKey() {
         return plaintextKey;
@@ -19,11 +28,24 @@ public class DataKey {
         return encryptedKey;
     }
 
-    public DataKey(String alias, String regionName)  {
+    /**
+     * @return the plaintext key as an AES key, built once rather than for every record
+     */
+    public SecretKeySpec getSecretKey() {
+        return secretKey;
+    }
+
+    public DataKey(ByteBuffer plaintextKey, ByteBuffer encryptedKey) {
+        this.plaintextKey = plaintextKey;
+        this.encryptedKey = encryptedKey;
+        this.secretKey = toSecretKey(plaintextKey);
+    }
 
+    public DataKey(String alias, String regionName)  {
+        this(createClient(regionName), alias);
+    }
 
-        AWSKMSClient kms = new AWSKMSClient(new DefaultAWSCredentialsProviderChain());
-        kms.setRegion(RegionUtils.getRegion(regionName));
+    public DataKey(AWSKMS kms, String alias) {
         String keyId = String.format("alias/%s", alias);
         GenerateDataKeyRequest dataKeyRequest = new GenerateDataKeyRequest();
         dataKeyRequest.setKeyId(keyId);
@@ -33,6 +55,7 @@ public class DataKey {
 
         this.plaintextKey = dataKeyResult.getPlaintext();
         this.encryptedKey = dataKeyResult.getCiphertextBlob();
+        this.secretKey = toSecretKey(plaintextKey);
     }
 
     public static DataKey getRandomDataKey(String alias, String regionName) {
@@ -40,7 +63,36 @@ public class DataKey {
 
     }
 
+    public static DataKey getRandomDataKey(AWSKMS kms, String alias) {
+        return new DataKey(kms, alias);
+    }
+
+    public static AWSKMS createClient(String regionName) {
+        AWSKMSClient kms = new AWSKMSClient(new DefaultAWSCredentialsProviderChain());
+        kms.setRegion(RegionUtils.getRegion(regionName));
+        return kms;
+    }
+
+    /**
+     * Derive the subkey of this data key for a context, in memory and without calling KMS.
+     * @param context carried in the envelope of every record encrypted with the subkey
+     */
+    public SecretKeySpec deriveKey(byte[] context) {
+        SecretKey prk = pseudorandomKey;
+        if (prk == null) {
+            prk = Hkdf.extract(secretKey);
+            pseudorandomKey = prk;
+        }
+        return Hkdf.expand(prk, ByteBuffer.wrap(context), secretKey.getEncoded().length);
+    }
+
+    private static SecretKeySpec toSecretKey(ByteBuffer plaintextKey) {
+        byte[] key = new byte[plaintextKey.remaining()];
+        plaintextKey.duplicate().get(key);
+        return new SecretKeySpec(key, "AES");
+    }
+
 
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,127 @@
+package com.amazonaws.services.kinesis.kms;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Bounded LRU cache from an encrypted KMS data key blob to its plaintext AES key.
+ *
+ * Entries expire after a fixed time-to-live, counted from when the key was decrypted,
+ * and the least recently used entry is evicted once the cache holds more than
+ * maxEntries keys.
+ */
+public class DataKeyCache {
+
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    private final LinkedHashMap<ByteBuffer, Entry> entries;
+
+    public DataKeyCache(final int maxEntries, long ttl, TimeUnit unit) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = unit.toMillis(ttl);
+        this.entries = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, DataKeyCache.Entry> eldest) {
+                if (size() > DataKeyCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param encryptedKey KMS ciphertext blob of the data key
+     * @return the cached plaintext key, or null if it is absent or expired
+     */
+    public synchronized SecretKeySpec get(ByteBuffer encryptedKey) {
+        Entry entry = entries.get(encryptedKey);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.expiresAtMillis <= System.currentTimeMillis()) {
+            entries.remove(encryptedKey);
+            expirations.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.key;
+    }
+
+    /**
+     * @param encryptedKey KMS ciphertext blob of the data key; must not be modified afterwards
+     * @param key plaintext AES key
+     */
+    public synchronized void put(ByteBuffer encryptedKey, SecretKeySpec key) {
+        entries.put(encryptedKey, new Entry(key, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Drop every expired entry.
+     */
+    public synchronized void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAtMillis <= now) {
+                it.remove();
+                expirations.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DataKeyCache[size=%d, hits=%d, misses=%d, evictions=%d, expirations=%d]",
+                size(), getHits(), getMisses(), getEvictions(), getExpirations());
+    }
+
+    private static final class Entry {
+        private final SecretKeySpec key;
+        private final long expiresAtMillis;
+
+        private Entry(SecretKeySpec key, long expiresAtMillis) {
+            this.key = key;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+package com.amazonaws.services.kinesis.kms;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.amazonaws.services.kms.AWSKMS;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out the current data key to encrypting threads and rotates it once it reaches its age,
+ * byte or message limit, whichever comes first.
+ *
+ * The next key is fetched from KMS in the background once the current one is 80% of the way to
+ * any limit, and swapped in with a compare-and-set when the limit is reached, so encrypting
+ * threads never wait for KMS. If the next key is not ready in time, the current key stays in
+ * use past its limit until it is.
+ */
+public class DataKeyManager {
+
+    // Fraction of a limit after which the next key is fetched
+    private static final double PREFETCH_THRESHOLD = 0.8;
+
+    private static final long TICK_MILLIS = 1000L;
+
+    private static final Logger log = LoggerFactory.getLogger(DataKeyManager.class);
+
+    private final AWSKMS kms;
+    private final String alias;
+    private final long maxAgeMillis;
+    private final long maxBytes;
+    private final long maxMessages;
+
+    private final AtomicReference<ActiveKey> current = new AtomicReference<ActiveKey>();
+    private final AtomicReference<DataKey> next = new AtomicReference<DataKey>();
+    private final AtomicBoolean fetching = new AtomicBoolean();
+
+    private final ScheduledExecutorService executor;
+
+    private final AtomicLong rotations = new AtomicLong();
+    private final AtomicLong fetchFailures = new AtomicLong();
+    private final AtomicLong overLimitMessages = new AtomicLong();
+
+    /**
+     * @param maxAge longest time a key is used for
+     * @param maxBytes most plaintext bytes encrypted under one key, or 0 for no limit
+     * @param maxMessages most messages encrypted under one key, or 0 for no limit
+     */
+    public DataKeyManager(AWSKMS kms, String alias, long maxAge, TimeUnit unit, long maxBytes, long maxMessages) {
+        this.kms = kms;
+        this.alias = alias;
+        this.maxAgeMillis = unit.toMillis(maxAge);
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.maxMessages = maxMessages > 0 ? maxMessages : Long.MAX_VALUE;
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "data-key-rotation");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Fetch the first key, waiting for KMS, and start checking the age limit in the background.
+     */
+    public void start() {
+        current.set(new ActiveKey(DataKey.getRandomDataKey(kms, alias)));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkLimits(current.get());
+                } catch (RuntimeException e) {
+                    log.error("Data key rotation check failed", e);
+                }
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Take the current key to encrypt one message with, counting it against the key's limits.
+     * Never blocks.
+     * @param plaintextBytes size of the message
+     */
+    public DataKey acquire(int plaintextBytes) {
+        ActiveKey key = current.get();
+        if (key == null) {
+            throw new IllegalStateException("DataKeyManager has not been started");
+        }
+        long messages = key.messages.incrementAndGet();
+        long bytes = key.bytes.addAndGet(plaintextBytes);
+        if (messages > maxMessages || bytes > maxBytes) {
+            overLimitMessages.incrementAndGet();
+        }
+        if (messages >= key.prefetchMessages || bytes >= key.prefetchBytes
+                || System.currentTimeMillis() >= key.prefetchAtMillis) {
+            checkLimits(key);
+        }
+        return key.dataKey;
+    }
+
+    private void checkLimits(ActiveKey key) {
+        long now = System.currentTimeMillis();
+        long messages = key.messages.get();
+        long bytes = key.bytes.get();
+        if (now < key.prefetchAtMillis && messages < key.prefetchMessages && bytes < key.prefetchBytes) {
+            return;
+        }
+        prefetch();
+
+        if (now >= key.expiresAtMillis || messages >= maxMessages || bytes >= maxBytes) {
+            DataKey nextKey = next.getAndSet(null);
+            if (nextKey == null) {
+                return;
+            }
+            if (current.compareAndSet(key, new ActiveKey(nextKey))) {
+                rotations.incrementAndGet();
+                log.info(String.format("Rotated data key after %d ms, %d messages, %d bytes",
+                        now - key.createdMillis, messages, bytes));
+            } else {
+                // Another thread rotated first; keep the key for the next rotation
+                next.compareAndSet(null, nextKey);
+            }
+        }
+    }
+
+    private void prefetch() {
+        if (next.get() != null || !fetching.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    next.set(DataKey.getRandomDataKey(kms, alias));
+                } catch (RuntimeException e) {
+                    // The next limit check fetches again
+                    fetchFailures.incrementAndGet();
+                    log.warn("Could not fetch the next data key", e);
+                } finally {
+                    fetching.set(false);
+                }
+            }
+        });
+    }
+
+    public long getRotations() {
+        return rotations.get();
+    }
+
+    public long getFetchFailures() {
+        return fetchFailures.get();
+    }
+
+    /**
+     * @return messages encrypted under a key past one of its limits because the next key was not ready
+     */
+    public long getOverLimitMessages() {
+        return overLimitMessages.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DataKeyManager[rotations=%d, fetchFailures=%d, overLimitMessages=%d]",
+                getRotations(), getFetchFailures(), getOverLimitMessages());
+    }
+
+    // A key in use and what has been encrypted under it; replaced, never reset
+    private final class ActiveKey {
+        private final DataKey dataKey;
+        private final long createdMillis;
+        private final long prefetchAtMillis;
+        private final long expiresAtMillis;
+        private final long prefetchMessages;
+        private final long prefetchBytes;
+        private final AtomicLong messages = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        private ActiveKey(DataKey dataKey) {
+            this.dataKey = dataKey;
+            this.createdMillis = System.currentTimeMillis();
+            this.prefetchAtMillis = createdMillis + (long) (maxAgeMillis * PREFETCH_THRESHOLD);
+            this.expiresAtMillis = createdMillis + maxAgeMillis;
+            this.prefetchMessages = threshold(maxMessages);
+            this.prefetchBytes = threshold(maxBytes);
+        }
+
+        private long threshold(long limit) {
+            return limit == Long.MAX_VALUE ? Long.MAX_VALUE : (long) (limit * PREFETCH_THRESHOLD);
+        }
+    }
+
+}
@@ -0,0 +1,284 @@
+package com.amazonaws.services.kinesis.kms;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.services.kms.model.DecryptRequest;
+
+/**
+ * Thread-safe data key decryption shared by every record processor of a worker.
+ *
+ * One KMS client and one {@link DataKeyCache} serve all shards. When several shards miss
+ * the cache on the same encrypted key at once, only the first issues a KMS Decrypt and the
+ * others wait for its result.
+ *
+ * With an I/O pool, {@link #decryptAsync(ByteBuffer)} returns at once: cached keys come back as
+ * completed futures and misses are decrypted on the pool, at most maxConcurrentRequests at a time,
+ * so record processing threads never wait on KMS. The pool uses virtual threads when the JDK has
+ * them and a fixed pool of daemon threads otherwise.
+ */
+public class KMSDecryptionService {
+
+    private static final Logger log = LoggerFactory.getLogger(KMSDecryptionService.class);
+
+    private final AWSKMS kms;
+    private final DataKeyCache keyCache;
+
+    // Null without an I/O pool; decryptAsync then decrypts on the calling thread
+    private final ExecutorService ioExecutor;
+    private final Semaphore requestPermits;
+
+    private final ConcurrentMap<ByteBuffer, CompletableFuture<SecretKeySpec>> inFlight =
+            new ConcurrentHashMap<ByteBuffer, CompletableFuture<SecretKeySpec>>();
+
+    private final AtomicLong kmsCalls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong asyncCalls = new AtomicLong();
+
+    public KMSDecryptionService(AWSKMS kms, DataKeyCache keyCache) {
+        this.kms = kms;
+        this.keyCache = keyCache;
+        this.ioExecutor = null;
+        this.requestPermits = null;
+    }
+
+    /**
+     * @param maxConcurrentRequests most KMS Decrypt calls the I/O pool makes at once
+     * @param virtualThreads run the I/O pool on virtual threads if the JDK supports them
+     */
+    public KMSDecryptionService(AWSKMS kms, DataKeyCache keyCache, int maxConcurrentRequests,
+                                boolean virtualThreads) {
+        if (maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
+        }
+        this.kms = kms;
+        this.keyCache = keyCache;
+        this.ioExecutor = createIoExecutor(maxConcurrentRequests, virtualThreads);
+        this.requestPermits = new Semaphore(maxConcurrentRequests);
+    }
+
+    /**
+     * @return true if {@link #decryptAsync(ByteBuffer)} decrypts on an I/O pool
+     */
+    public boolean isAsync() {
+        return ioExecutor != null;
+    }
+
+    /**
+     * @param encryptedKey KMS ciphertext blob of the data key; may be a view into a record buffer
+     * @return the cached plaintext AES key, or null if it has to be decrypted
+     */
+    public SecretKeySpec getCached(ByteBuffer encryptedKey) {
+        return keyCache.get(encryptedKey);
+    }
+
+    /**
+     * Decrypt a data key without waiting for KMS. Callers resolving many keys at once get one
+     * KMS call per distinct key, shared with {@link #decrypt(ByteBuffer)} callers.
+     * @param encryptedKey KMS ciphertext blob of the data key; may be a view into a record buffer
+     * @return the plaintext AES key, already completed on a cache hit
+     */
+    public CompletableFuture<SecretKeySpec> decryptAsync(ByteBuffer encryptedKey) {
+        SecretKeySpec key = keyCache.get(encryptedKey);
+        if (key != null) {
+            return CompletableFuture.completedFuture(key);
+        }
+        if (ioExecutor == null) {
+            CompletableFuture<SecretKeySpec> result = new CompletableFuture<SecretKeySpec>();
+            try {
+                result.complete(decrypt(encryptedKey));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+
+        // The task outlives the record buffer the key was read from
+        final ByteBuffer blob = copyOf(encryptedKey);
+        final CompletableFuture<SecretKeySpec> pending = new CompletableFuture<SecretKeySpec>();
+        CompletableFuture<SecretKeySpec> existing = inFlight.putIfAbsent(blob, pending);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing;
+        }
+
+        asyncCalls.incrementAndGet();
+        try {
+            ioExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        requestPermits.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        inFlight.remove(blob, pending);
+                        pending.completeExceptionally(e);
+                        return;
+                    }
+                    try {
+                        SecretKeySpec key = decryptWithKms(blob);
+                        keyCache.put(blob, key);
+                        pending.complete(key);
+                    } catch (Throwable e) {
+                        // Coalesced callers wait on pending, so it completes whatever went wrong
+                        pending.completeExceptionally(e);
+                    } finally {
+                        inFlight.remove(blob, pending);
+                        requestPermits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(blob, pending);
+            pending.completeExceptionally(e);
+        }
+        return pending;
+    }
+
+    /**
+     * @param encryptedKey KMS ciphertext blob of the data key; may be a view into a record buffer
+     * @return the plaintext AES key
+     */
+    public SecretKeySpec decrypt(ByteBuffer encryptedKey) {
+        SecretKeySpec key = keyCache.get(encryptedKey);
+        if (key != null) {
+            return key;
+        }
+
+        CompletableFuture<SecretKeySpec> pending = new CompletableFuture<SecretKeySpec>();
+        CompletableFuture<SecretKeySpec> existing = inFlight.putIfAbsent(encryptedKey, pending);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return await(existing);
+        }
+
+        try {
+            key = decryptWithKms(encryptedKey);
+            keyCache.put(copyOf(encryptedKey), key);
+            pending.complete(key);
+            return key;
+        } catch (RuntimeException | Error e) {
+            // Coalesced callers wait on pending, so it completes whatever went wrong
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(encryptedKey, pending);
+        }
+    }
+
+    private SecretKeySpec decryptWithKms(ByteBuffer encryptedKey) {
+        kmsCalls.incrementAndGet();
+        DecryptRequest req = new DecryptRequest().withCiphertextBlob(encryptedKey.duplicate());
+        byte[] plainText = kms.decrypt(req).getPlaintext().array();
+        return new SecretKeySpec(plainText, "AES");
+    }
+
+    // Virtual threads are cheap enough for one per call; the permits still bound the calls to KMS
+    private static ExecutorService createIoExecutor(int maxConcurrentRequests, boolean virtualThreads) {
+        if (virtualThreads) {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                log.info("Decrypting data keys on virtual threads, at most " + maxConcurrentRequests + " at a time");
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                log.info("Virtual threads not available, decrypting data keys on " + maxConcurrentRequests
+                        + " threads");
+            }
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(maxConcurrentRequests, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "kms-decrypt-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Stop the I/O pool; keys still being decrypted complete exceptionally.
+     */
+    public void shutdown() {
+        if (ioExecutor == null) {
+            return;
+        }
+        ioExecutor.shutdownNow();
+        // Calls still queued on the pool never run
+        for (CompletableFuture<SecretKeySpec> pending : inFlight.values()) {
+            pending.completeExceptionally(new IllegalStateException("Decryption service shut down"));
+        }
+    }
+
+    // The cache must not hold on to, or be affected by, the record buffer the key was read from
+    private static ByteBuffer copyOf(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    private static SecretKeySpec await(CompletableFuture<SecretKeySpec> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public DataKeyCache getKeyCache() {
+        return keyCache;
+    }
+
+    public long getKmsCalls() {
+        return kmsCalls.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return KMS calls handed to the I/O pool
+     */
+    public long getAsyncCalls() {
+        return asyncCalls.get();
+    }
+
+    /**
+     * @return distinct keys being decrypted right now
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("KMSDecryptionService[kmsCalls=%d, asyncCalls=%d, coalesced=%d, %s]",
+                getKmsCalls(), getAsyncCalls(), getCoalesced(), keyCache);
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.amazonaws.services.kinesis.metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which records get a per-record log line. Logging every record costs more than
+ * encrypting it, so per-record logging is off unless a sample rate is set.
+ */
+public final class LogSampler {
+
+    private final double rate;
+
+    /**
+     * @param rate fraction of records to log, from 0 (none) to 1 (all)
+     */
+    public LogSampler(double rate) {
+        if (rate < 0.0 || rate > 1.0) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1: " + rate);
+        }
+        this.rate = rate;
+    }
+
+    /**
+     * @return true if the current record should be logged
+     */
+    public boolean sample() {
+        return rate > 0.0 && (rate >= 1.0 || ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+}
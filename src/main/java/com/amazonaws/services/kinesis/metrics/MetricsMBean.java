@@ -0,0 +1,115 @@
+package com.amazonaws.services.kinesis.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Read-only JMX view of a {@link MetricsRegistry}. Counters and gauges are attributes of their own
+ * name; each histogram contributes name.count, name.meanMicros, name.p50Micros, name.p90Micros,
+ * name.p99Micros, name.p999Micros and name.maxMicros. Metrics created after registration show up
+ * the next time the attributes are listed.
+ */
+class MetricsMBean implements DynamicMBean {
+
+    private static final String[] HISTOGRAM_FIELDS = {
+            "count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "p999Micros", "maxMicros"};
+
+    private final MetricsRegistry registry;
+
+    MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        LongAdder counter = registry.getCounters().get(attribute);
+        if (counter != null) {
+            return counter.sum();
+        }
+        MetricsRegistry.Gauge gauge = registry.getGauges().get(attribute);
+        if (gauge != null) {
+            return gauge.value();
+        }
+
+        int dot = attribute.lastIndexOf('.');
+        LatencyHistogram histogram = dot < 0 ? null : registry.getHistograms().get(attribute.substring(0, dot));
+        if (histogram != null) {
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            String field = attribute.substring(dot + 1);
+            if (field.equals("count")) {
+                return snapshot.getCount();
+            } else if (field.equals("meanMicros")) {
+                return snapshot.getMeanNanos() / 1000.0;
+            } else if (field.equals("p50Micros")) {
+                return snapshot.getValueAtQuantile(0.50) / 1000.0;
+            } else if (field.equals("p90Micros")) {
+                return snapshot.getValueAtQuantile(0.90) / 1000.0;
+            } else if (field.equals("p99Micros")) {
+                return snapshot.getValueAtQuantile(0.99) / 1000.0;
+            } else if (field.equals("p999Micros")) {
+                return snapshot.getValueAtQuantile(0.999) / 1000.0;
+            } else if (field.equals("maxMicros")) {
+                return snapshot.getMaxNanos() / 1000.0;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out of the list, as the JMX contract allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String name : registry.getCounters().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "Counter", true, false, false));
+        }
+        for (String name : registry.getGauges().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "Gauge", true, false, false));
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : registry.getHistograms().entrySet()) {
+            for (String field : HISTOGRAM_FIELDS) {
+                attributes.add(new MBeanAttributeInfo(histogram.getKey() + "." + field,
+                        field.equals("count") ? "long" : "double", "Latency histogram", true, false, false));
+            }
+        }
+        return new MBeanInfo(MetricsRegistry.class.getName(), "Producer or consumer metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+    }
+
+}
@@ -0,0 +1,209 @@
+package com.amazonaws.services.kinesis.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Named counters, gauges and latency histograms of one producer or consumer.
+ *
+ * Metrics are created on first use and live as long as the registry; callers look them up once
+ * and keep the reference. The registry can be published as a JMX MBean and written periodically
+ * to a local JSON snapshot file.
+ */
+public class MetricsRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(MetricsRegistry.class);
+
+    /**
+     * A value read when metrics are reported, such as a queue depth.
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentSkipListMap<String, LongAdder>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms =
+            new ConcurrentSkipListMap<String, LatencyHistogram>();
+
+    private ScheduledExecutorService snapshotExecutor;
+    private ObjectName objectName;
+
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram(name);
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Register a gauge, replacing any gauge of the same name.
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    Map<String, LongAdder> getCounters() {
+        return counters;
+    }
+
+    Map<String, Gauge> getGauges() {
+        return gauges;
+    }
+
+    Map<String, LatencyHistogram> getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * Publish the registry on the platform MBean server.
+     * @param name object name, e.g. "com.amazonaws.services.kinesis:type=Consumer"
+     */
+    public synchronized void registerMBean(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new MetricsMBean(this), objectName);
+        } catch (JMException e) {
+            log.warn(String.format("Couldn't register metrics MBean %s", name), e);
+            objectName = null;
+        }
+    }
+
+    /**
+     * Write a snapshot of every metric to file every period. The file is replaced atomically,
+     * so readers never see a partial snapshot.
+     */
+    public synchronized void startSnapshots(final File file, long period, TimeUnit unit) {
+        if (snapshotExecutor != null) {
+            throw new IllegalStateException("Snapshots already started");
+        }
+        snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-snapshot");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        snapshotExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeSnapshot(file);
+                } catch (IOException | RuntimeException e) {
+                    log.warn(String.format("Couldn't write metrics snapshot to %s", file), e);
+                }
+            }
+        }, period, period, unit);
+        log.info(String.format("Writing metrics snapshots to %s every %d %s", file, period,
+                unit.name().toLowerCase()));
+    }
+
+    /**
+     * Stop the snapshot timer and unregister the MBean.
+     */
+    public synchronized void shutdown() {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdown();
+            snapshotExecutor = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                log.debug("Couldn't unregister metrics MBean", e);
+            }
+            objectName = null;
+        }
+    }
+
+    public void writeSnapshot(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), toJson().toJSONString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @SuppressWarnings("unchecked")
+    JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("timestamp", System.currentTimeMillis());
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            json.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            json.put(gauge.getKey(), gauge.getValue().value());
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            JSONObject h = new JSONObject();
+            h.put("count", snapshot.getCount());
+            h.put("meanNanos", (long) snapshot.getMeanNanos());
+            h.put("p50Nanos", snapshot.getValueAtQuantile(0.50));
+            h.put("p90Nanos", snapshot.getValueAtQuantile(0.90));
+            h.put("p99Nanos", snapshot.getValueAtQuantile(0.99));
+            h.put("p999Nanos", snapshot.getValueAtQuantile(0.999));
+            h.put("maxNanos", snapshot.getMaxNanos());
+            json.put(histogram.getName(), h);
+        }
+        return json;
+    }
+
+    /**
+     * @return one line per metric
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            sb.append(counter.getKey()).append('=').append(counter.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            sb.append(gauge.getKey()).append('=').append(gauge.getValue().value()).append('\n');
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            sb.append(histogram.snapshot()).append('\n');
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,353 @@
+package com.amazonaws.services.kinesis.producer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects records and sends them to Kinesis with PutRecords.
+ *
+ * A batch is sent once it reaches 500 records or 5 MB, or once its oldest record has
+ * waited for the linger time. When PutRecords partially fails, only the failed entries
+ * are sent again; when the call itself fails, the whole batch is.
+ */
+public class BatchingProducer {
+
+    /**
+     * Told what became of one record.
+     */
+    public interface Callback {
+
+        /**
+         * Called each time Kinesis turns the record away because its shard is over its limits; the
+         * record is sent again.
+         */
+        void throttled();
+
+        /**
+         * Called once Kinesis has accepted the record, or the record was dropped after the last attempt
+         * or because the sending thread was interrupted.
+         * @param sent true if Kinesis accepted the record
+         */
+        void completed(boolean sent);
+    }
+
+    // PutRecords service limits
+    public static final int MAX_RECORDS_PER_BATCH = 500;
+    public static final long MAX_BYTES_PER_BATCH = 5L * 1024 * 1024;
+
+    // Backoff and retry settings for failed entries
+    private static final long BACKOFF_TIME_IN_MILLIS = 100L;
+    private static final long MAX_BACKOFF_TIME_IN_MILLIS = 5000L;
+    private static final int NUM_RETRIES = 10;
+
+    // Error code of a PutRecords entry whose shard is over its limits
+    private static final String THROTTLED_ERROR_CODE = "ProvisionedThroughputExceededException";
+
+    private static final Logger log = LoggerFactory.getLogger(BatchingProducer.class);
+
+    private final AmazonKinesis kinesis;
+    private final String streamName;
+    private final long lingerMillis;
+
+    private final ScheduledExecutorService lingerExecutor;
+
+    private List<BufferedRecord> buffer = new ArrayList<BufferedRecord>();
+    private long bufferedBytes;
+    private long oldestRecordMillis;
+
+    private final AtomicLong recordsSent = new AtomicLong();
+    private final AtomicLong recordsFailed = new AtomicLong();
+    private final AtomicLong recordsRetried = new AtomicLong();
+    private final AtomicLong batchesSent = new AtomicLong();
+
+    public BatchingProducer(AmazonKinesis kinesis, String streamName, long lingerMillis) {
+        this.kinesis = kinesis;
+        this.streamName = streamName;
+        this.lingerMillis = lingerMillis;
+
+        this.lingerExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "batching-producer-linger");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1L, lingerMillis / 2);
+        lingerExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushIfLingered();
+                } catch (RuntimeException e) {
+                    log.error("Linger flush failed", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Buffer one record, sending the current batch first if the record would not fit in it.
+     * Batches are sent outside the lock, so several threads can have PutRecords calls in flight.
+     * @param partitionKey Kinesis partition key
+     * @param data record payload
+     */
+    public void put(String partitionKey, ByteBuffer data) {
+        put(partitionKey, null, data);
+    }
+
+    /**
+     * Buffer one record to be sent with an ExplicitHashKey.
+     * @param partitionKey Kinesis partition key
+     * @param explicitHashKey hash key that picks the shard, or null to hash the partition key
+     * @param data record payload
+     */
+    public void put(String partitionKey, String explicitHashKey, ByteBuffer data) {
+        put(partitionKey, explicitHashKey, data, null);
+    }
+
+    /**
+     * Buffer one record and be told once it has been sent or dropped.
+     * @param partitionKey Kinesis partition key
+     * @param explicitHashKey hash key that picks the shard, or null to hash the partition key
+     * @param data record payload
+     * @param callback told what became of the record, called on the thread that sends its batch; may be null
+     */
+    public void put(String partitionKey, String explicitHashKey, ByteBuffer data, Callback callback) {
+        long size = entrySize(partitionKey, data);
+        List<BufferedRecord> previous = null;
+        long previousBytes = 0;
+        List<BufferedRecord> full = null;
+        long fullBytes = 0;
+
+        synchronized (this) {
+            if (!buffer.isEmpty() && bufferedBytes + size > MAX_BYTES_PER_BATCH) {
+                previous = buffer;
+                previousBytes = bufferedBytes;
+                resetBuffer();
+            }
+
+            if (buffer.isEmpty()) {
+                oldestRecordMillis = System.currentTimeMillis();
+            }
+            buffer.add(new BufferedRecord(new PutRecordsRequestEntry().withPartitionKey(partitionKey)
+                    .withExplicitHashKey(explicitHashKey).withData(data), callback));
+            bufferedBytes += size;
+
+            if (buffer.size() >= MAX_RECORDS_PER_BATCH) {
+                full = buffer;
+                fullBytes = bufferedBytes;
+                resetBuffer();
+            }
+        }
+
+        if (previous != null) {
+            sendBatch(previous, previousBytes);
+        }
+        if (full != null) {
+            sendBatch(full, fullBytes);
+        }
+    }
+
+    /**
+     * Send whatever is buffered.
+     */
+    public void flush() {
+        List<BufferedRecord> batch;
+        long batchBytes;
+        synchronized (this) {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            batch = buffer;
+            batchBytes = bufferedBytes;
+            resetBuffer();
+        }
+
+        sendBatch(batch, batchBytes);
+    }
+
+    /**
+     * Flush the buffer and stop the linger timer.
+     */
+    public void close() {
+        lingerExecutor.shutdown();
+        flush();
+    }
+
+    private void flushIfLingered() {
+        synchronized (this) {
+            if (buffer.isEmpty() || System.currentTimeMillis() - oldestRecordMillis < lingerMillis) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    private void resetBuffer() {
+        buffer = new ArrayList<BufferedRecord>();
+        bufferedBytes = 0;
+    }
+
+    private void sendBatch(List<BufferedRecord> batch, long batchBytes) {
+        long startTime = System.currentTimeMillis();
+        int total = batch.size();
+        List<BufferedRecord> pending = batch;
+        long backoff = BACKOFF_TIME_IN_MILLIS;
+
+        int attempts = 0;
+        while (attempts < NUM_RETRIES && !pending.isEmpty()) {
+            if (attempts > 0) {
+                recordsRetried.addAndGet(pending.size());
+                if (!sleep(backoff)) {
+                    // Interrupted, so shutting down: give up on what is left rather than retry without a pause
+                    break;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_TIME_IN_MILLIS);
+            }
+            pending = putRecords(pending);
+            attempts++;
+        }
+
+        long elapsed = Math.max(1L, System.currentTimeMillis() - startTime);
+        int succeeded = total - pending.size();
+        recordsSent.addAndGet(succeeded);
+        batchesSent.incrementAndGet();
+
+        if (!pending.isEmpty()) {
+            recordsFailed.addAndGet(pending.size());
+            log.error(String.format("Dropping %d of %d records after %d attempts", pending.size(), total, attempts));
+            for (BufferedRecord record : pending) {
+                record.completed(false);
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Put batch of %d records (%d bytes) in %d ms: %.1f records/s, %.1f KB/s",
+                    succeeded, batchBytes, elapsed, succeeded * 1000.0 / elapsed,
+                    batchBytes * 1000.0 / 1024 / elapsed));
+        }
+    }
+
+    // Send the records and return the ones that failed, all of them if the call did
+    private List<BufferedRecord> putRecords(List<BufferedRecord> records) {
+        List<PutRecordsRequestEntry> entries = new ArrayList<PutRecordsRequestEntry>(records.size());
+        for (BufferedRecord record : records) {
+            entries.add(record.entry);
+        }
+        PutRecordsRequest putRecordsRequest = new PutRecordsRequest();
+        putRecordsRequest.setStreamName(streamName);
+        putRecordsRequest.setRecords(entries);
+
+        PutRecordsResult result;
+        try {
+            result = kinesis.putRecords(putRecordsRequest);
+        } catch (AmazonClientException e) {
+            // The batch was taken out of the buffer, so it is retried here or lost
+            log.warn(String.format("PutRecords of %d records failed", entries.size()), e);
+            return records;
+        }
+
+        List<BufferedRecord> failed = new ArrayList<BufferedRecord>();
+        List<PutRecordsResultEntry> resultEntries = result.getRecords();
+        for (int i = 0; i < resultEntries.size(); i++) {
+            String errorCode = resultEntries.get(i).getErrorCode();
+            if (errorCode != null) {
+                if (THROTTLED_ERROR_CODE.equals(errorCode)) {
+                    records.get(i).throttled();
+                }
+                failed.add(records.get(i));
+            } else {
+                records.get(i).completed(true);
+            }
+        }
+        if (failed.isEmpty()) {
+            return failed;
+        }
+        log.info(String.format("%d of %d records failed, first error: %s", failed.size(), entries.size(),
+                firstError(resultEntries)));
+        return failed;
+    }
+
+    // A record waiting to be sent and whoever wants to know when it is
+    private static final class BufferedRecord {
+        private final PutRecordsRequestEntry entry;
+        private final Callback callback;
+
+        private BufferedRecord(PutRecordsRequestEntry entry, Callback callback) {
+            this.entry = entry;
+            this.callback = callback;
+        }
+
+        private void throttled() {
+            if (callback != null) {
+                callback.throttled();
+            }
+        }
+
+        private void completed(boolean sent) {
+            if (callback != null) {
+                callback.completed(sent);
+            }
+        }
+    }
+
+    private static String firstError(List<PutRecordsResultEntry> resultEntries) {
+        for (PutRecordsResultEntry entry : resultEntries) {
+            if (entry.getErrorCode() != null) {
+                return entry.getErrorCode() + " " + entry.getErrorMessage();
+            }
+        }
+        return null;
+    }
+
+    private static long entrySize(String partitionKey, ByteBuffer data) {
+        return data.remaining() + partitionKey.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // Returns false, with the interrupt flag set again, if the thread was interrupted
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            log.debug("Interrupted sleep", e);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public long getRecordsSent() {
+        return recordsSent.get();
+    }
+
+    public long getRecordsFailed() {
+        return recordsFailed.get();
+    }
+
+    public long getRecordsRetried() {
+        return recordsRetried.get();
+    }
+
+    public long getBatchesSent() {
+        return batchesSent.get();
+    }
+
+}
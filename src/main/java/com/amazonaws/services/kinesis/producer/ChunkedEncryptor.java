@@ -0,0 +1,122 @@
+package com.amazonaws.services.kinesis.producer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.UUID;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import com.amazonaws.services.kinesis.compression.Codec;
+import com.amazonaws.services.kinesis.crypto.CipherSuite;
+import com.amazonaws.services.kinesis.envelope.Chunk;
+import com.amazonaws.services.kinesis.envelope.Envelope;
+import com.amazonaws.services.kinesis.kms.DataKey;
+import com.amazonaws.services.kinesis.kms.DataKeyManager;
+
+/**
+ * Encrypts an object too large for one Kinesis record as a sequence of chunk envelopes.
+ *
+ * The object is read from a stream one frame at a time and each frame is fed through
+ * Cipher.update as it is read, so only one frame of ciphertext is held at once however large the
+ * object is. Every frame is its own envelope with its own nonce and a {@link Chunk} header, and
+ * takes the current data key, so a key rotation in the middle of an object is harmless. Chunks
+ * must be sent in order under one partition key, which keeps them on one shard.
+ */
+public class ChunkedEncryptor {
+
+    // Kinesis record limit, less room for the envelope header, encrypted key and tag
+    public static final int MAX_FRAME_BYTES = 1024 * 1024 - 4096;
+
+    private static final int READ_BYTES = 8192;
+
+    /**
+     * Receives the chunk envelopes of an object in order.
+     */
+    public interface ChunkSender {
+        void send(ByteBuffer envelope, int index, boolean last) throws InterruptedException;
+    }
+
+    private final DataKeyManager keyManager;
+    private final CipherSuite suite;
+    private final SubkeyProvider subkeys;
+    private final int frameBytes;
+
+    /**
+     * @param subkeys derives the key of each chunk, or null to encrypt with the data key
+     * @param frameBytes plaintext bytes per chunk, at most {@link #MAX_FRAME_BYTES}
+     */
+    public ChunkedEncryptor(DataKeyManager keyManager, CipherSuite suite, SubkeyProvider subkeys, int frameBytes) {
+        if (frameBytes < 1 || frameBytes > MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("frameBytes must be between 1 and " + MAX_FRAME_BYTES);
+        }
+        this.keyManager = keyManager;
+        this.suite = suite;
+        this.subkeys = subkeys;
+        this.frameBytes = frameBytes;
+    }
+
+    /**
+     * Encrypt everything left in the stream and hand each chunk to sender; the stream is not closed.
+     * An empty stream is sent as a single empty chunk.
+     * @return the ID the consumer reassembles the object under
+     */
+    public UUID encrypt(String partitionKey, InputStream in, ChunkSender sender)
+            throws IOException, GeneralSecurityException, InterruptedException {
+        UUID objectId = UUID.randomUUID();
+        PushbackInputStream input = new PushbackInputStream(in, 1);
+        ByteBuffer aad = suite.isAuthenticated() ? CipherSuite.aadFor(partitionKey) : null;
+        byte[] readBuffer = new byte[Math.min(READ_BYTES, frameBytes)];
+
+        for (int index = 0; ; index++) {
+            DataKey key = keyManager.acquire(frameBytes);
+            SecretKey secretKey = key.getSecretKey();
+            byte[] keyContext = new byte[0];
+            if (subkeys != null) {
+                SubkeyProvider.Subkey subkey = subkeys.subkeyFor(key, partitionKey);
+                secretKey = subkey.getKey();
+                keyContext = subkey.getContext();
+            }
+
+            byte[] nonce = suite.newNonce();
+            Cipher cipher = suite.initEncrypt(secretKey, nonce, aad);
+            byte[] ciphertext = new byte[cipher.getOutputSize(Chunk.HEADER_BYTES + frameBytes + Chunk.TRAILER_BYTES)];
+            int length = cipher.update(Chunk.header(objectId, index), 0, Chunk.HEADER_BYTES, ciphertext, 0);
+            int frameLength = 0;
+            while (frameLength < frameBytes) {
+                int read = input.read(readBuffer, 0, Math.min(readBuffer.length, frameBytes - frameLength));
+                if (read < 0) {
+                    break;
+                }
+                length += cipher.update(readBuffer, 0, read, ciphertext, length);
+                frameLength += read;
+            }
+            boolean last = isAtEnd(input);
+            length += cipher.doFinal(Chunk.trailer(last), 0, Chunk.TRAILER_BYTES, ciphertext, length);
+
+            sender.send(Envelope.encode(Envelope.FLAG_CHUNK, suite, Codec.NONE, key.getEncryptedKey(), keyContext,
+                    nonce, length == ciphertext.length ? ciphertext : Arrays.copyOf(ciphertext, length)), index, last);
+            if (last) {
+                return objectId;
+            }
+        }
+    }
+
+    private static boolean isAtEnd(PushbackInputStream input) throws IOException {
+        int next = input.read();
+        if (next < 0) {
+            return true;
+        }
+        input.unread(next);
+        return false;
+    }
+
+    public int getFrameBytes() {
+        return frameBytes;
+    }
+
+}
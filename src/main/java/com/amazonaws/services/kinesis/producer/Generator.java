@@ -1,26 +1,41 @@
 package com.amazonaws.services.kinesis.producer;
 
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.kinesis.compression.AdaptiveCompressor;
+import com.amazonaws.services.kinesis.compression.Codec;
+import com.amazonaws.services.kinesis.crypto.CipherSuite;
+import com.amazonaws.services.kinesis.crypto.KeyDerivation;
+import com.amazonaws.services.kinesis.envelope.Envelope;
 import com.amazonaws.services.kinesis.kms.DataKey;
+import com.amazonaws.services.kinesis.kms.DataKeyManager;
+import com.amazonaws.services.kinesis.metrics.LatencyHistogram;
+import com.amazonaws.services.kinesis.metrics.LogSampler;
+import com.amazonaws.services.kinesis.metrics.MetricsRegistry;
 import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
 import com.amazonaws.services.kinesis.model.DescribeStreamResult;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
 import com.amazonaws.services.kinesis.model.PutRecordRequest;
 import com.amazonaws.services.kinesis.model.PutRecordResult;
 import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
 import com.amazonaws.services.kinesis.model.StreamDescription;
 
-import javax.crypto.*;
-import javax.crypto.spec.SecretKeySpec;
-
 import com.amazonaws.services.kinesis.utils.Tool;
 import org.json.simple.JSONObject;
 
@@ -28,26 +43,123 @@ import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 
 import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.services.kms.AWSKMS;
 
 public class Generator {
 
 
-    private static AmazonKinesisClient kinesis;
+    private static AmazonKinesis kinesis;
+    private static AWSKMS kms;
     private static final String STREAM_PARAM = "stream-name";
     private static final String REGION_PARAM = "region";
     private static final String KMS_PARAM = "kms-alias";
+    private static final String BATCH_LINGER_PARAM = "batch-linger-ms";
+    private static final String ENVELOPE_PARAM = "envelope-format";
+    private static final String AGGREGATE_PARAM = "aggregate-records";
+    private static final String ENCRYPT_THREADS_PARAM = "encrypt-threads";
+    private static final String SENDER_THREADS_PARAM = "sender-threads";
+    private static final String QUEUE_CAPACITY_PARAM = "queue-capacity";
+    private static final String CIPHER_SUITE_PARAM = "cipher-suite";
+    private static final String COMPRESSION_PARAM = "compression";
+    private static final String KEY_MAX_AGE_PARAM = "key-max-age-seconds";
+    private static final String KEY_MAX_BYTES_PARAM = "key-max-bytes";
+    private static final String KEY_MAX_MESSAGES_PARAM = "key-max-messages";
+    private static final String KEY_DERIVATION_PARAM = "key-derivation";
+    private static final String KEY_DERIVATION_BATCH_PARAM = "key-derivation-batch-records";
+    private static final String METRICS_FILE_PARAM = "metrics-snapshot-file";
+    private static final String METRICS_INTERVAL_PARAM = "metrics-snapshot-interval-seconds";
+    private static final String LOG_SAMPLE_RATE_PARAM = "log-sample-rate";
+    private static final String PARTITIONER_PARAM = "partitioner";
+    private static final String SHARD_REFRESH_PARAM = "shard-refresh-seconds";
+    private static final String RATE_LIMIT_RECORDS_PARAM = "shard-max-records-per-second";
+    private static final String RATE_LIMIT_BYTES_PARAM = "shard-max-bytes-per-second";
+    private static final String WAL_DIRECTORY_PARAM = "wal-directory";
+    private static final String WAL_SEGMENT_BYTES_PARAM = "wal-segment-bytes";
+    private static final String WAL_MAX_BYTES_PARAM = "wal-max-bytes";
+    private static final String WAL_OVERFLOW_PARAM = "wal-overflow";
+    private static final String WAL_SYNC_PARAM = "wal-sync-ms";
+    private static final String SEND_FILE_PARAM = "send-file";
+    private static final String CHUNK_BYTES_PARAM = "chunk-bytes";
+
+    // Wait before putting a chunk again after its shard was throttled
+    private static final long CHUNK_BACKOFF_MILLIS = 100L;
+    private static final String METRICS_OBJECT_NAME = "com.amazonaws.services.kinesis:type=Producer";
     private static final Logger log = LoggerFactory.getLogger(Generator.class);
     private static String streamName;
     private static String kmsAlias;
     private static String regionName;
 
-    private static DataKey myKey;
+    // Hands the current data key to every encryption thread and rotates it in the background
+    private static DataKeyManager keyManager;
+
+    // Data key limits; a key is rotated once it reaches any of them, 0 meaning no limit
+    private static long keyMaxAgeSeconds = 60L;
+    private static long keyMaxBytes = 0L;
+    private static long keyMaxMessages = 0L;
+
+    // Set when records are encrypted with subkeys derived from the data key
+    private static SubkeyProvider subkeys;
+    private static int keyDerivationBatchRecords = 1000;
+
+    // Picks the shard of each record from the stream's open shards; null lets Kinesis hash the partition key
+    private static String partitionerName = "none";
+    private static long shardRefreshSeconds = 60L;
+    private static StreamShards streamShards;
+    private static Partitioner partitioner;
+
+    // Per-shard limits the sends are paced to; 0, the default, turns pacing off
+    private static double shardMaxRecordsPerSecond = 0;
+    private static double shardMaxBytesPerSecond = 0;
+    private static ShardRateLimiter rateLimiter;
+
+    // Set when records are sent with PutRecords instead of one PutRecord each
+    private static BatchingProducer batchingProducer;
+
+    // Set when records are logged to disk until Kinesis accepts them
+    private static WriteAheadLog writeAheadLog;
+    private static int walSegmentBytes = 64 * 1024 * 1024;
+    private static long walMaxBytes = 1024L * 1024 * 1024;
+    private static WriteAheadLog.OverflowPolicy walOverflowPolicy = WriteAheadLog.OverflowPolicy.BLOCK;
+    private static long walSyncMillis = 100L;
+
+    // Set to send one file as chunk records instead of generating records
+    private static File sendFile;
+    private static int chunkBytes = 256 * 1024;
+
+    // Binary envelope by default; "json" keeps the legacy Base64 JSON records for old consumers
+    private static boolean binaryEnvelope = true;
+
+    // Cipher suite of binary envelopes; JSON records are always AES/ECB
+    private static CipherSuite cipherSuite = CipherSuite.AES_GCM;
+
+    // Set when payloads are compressed before they are encrypted
+    private static AdaptiveCompressor compressor;
+
+    // Records packed into each Kinesis record, 0 when they are sent one by one
+    private static int aggregateRecords;
+
+    // Threads per pipeline stage and capacity of the queues between them
+    private static int encryptThreads = Runtime.getRuntime().availableProcessors();
+    private static int senderThreads = 4;
+    private static int queueCapacity = 10000;
+
+    // Per-stage latencies, published over JMX and to the snapshot file
+    private static final MetricsRegistry metrics = new MetricsRegistry();
+    private static final LatencyHistogram keyFetchLatency = metrics.histogram("producer.keyFetch");
+    private static final LatencyHistogram deriveKeyLatency = metrics.histogram("producer.deriveKey");
+    private static final LatencyHistogram compressLatency = metrics.histogram("producer.compress");
+    private static final LatencyHistogram encryptLatency = metrics.histogram("producer.encrypt");
+    private static final LatencyHistogram encodeLatency = metrics.histogram("producer.encode");
+    private static final LatencyHistogram rateLimitLatency = metrics.histogram("producer.rateLimit");
+    private static final LatencyHistogram putLatency = metrics.histogram("producer.put");
+    private static String metricsSnapshotFile = "producer-metrics.json";
+    private static long metricsSnapshotIntervalSeconds = 60L;
+
+    // Per-record log lines are off unless a sample rate is set
+    private static LogSampler recordLog = new LogSampler(0.0);
 
-    private static final ScheduledExecutorService EXECUTOR = Executors.newScheduledThreadPool(2);
 
     private static void init() throws Exception {
         /*
@@ -97,6 +209,142 @@ public class Generator {
             System.exit(1);
         }
 
+        // One KMS client for every data key rotation
+        kms = DataKey.createClient(regionName);
+
+        if ("json".equalsIgnoreCase(System.getProperty(ENVELOPE_PARAM))) {
+            binaryEnvelope = false;
+        }
+
+        if (System.getProperty(CIPHER_SUITE_PARAM) != null) {
+            cipherSuite = CipherSuite.fromName(System.getProperty(CIPHER_SUITE_PARAM));
+        }
+        if (!binaryEnvelope) {
+            if (System.getProperty(CIPHER_SUITE_PARAM) != null && cipherSuite != CipherSuite.AES_ECB_PKCS5) {
+                log.error("The JSON format only supports the aes-ecb cipher suite");
+                System.exit(1);
+            }
+            cipherSuite = CipherSuite.AES_ECB_PKCS5;
+        }
+        log.info(String.format("Encrypting records with %s", cipherSuite.getName()));
+
+        if (System.getProperty(COMPRESSION_PARAM) != null) {
+            Codec codec = Codec.fromName(System.getProperty(COMPRESSION_PARAM));
+            if (codec != Codec.NONE) {
+                compressor = new AdaptiveCompressor(codec);
+                log.info(String.format("Compressing records with %s before encryption", codec.getName()));
+            }
+        }
+
+        if (System.getProperty(KEY_DERIVATION_BATCH_PARAM) != null) {
+            keyDerivationBatchRecords = Integer.parseInt(System.getProperty(KEY_DERIVATION_BATCH_PARAM));
+        }
+        if (System.getProperty(KEY_DERIVATION_PARAM) != null) {
+            KeyDerivation derivation = KeyDerivation.fromName(System.getProperty(KEY_DERIVATION_PARAM));
+            if (derivation != KeyDerivation.NONE) {
+                if (!binaryEnvelope) {
+                    log.error("Key derivation requires the binary envelope format");
+                    System.exit(1);
+                }
+                subkeys = new SubkeyProvider(derivation, keyDerivationBatchRecords);
+                log.info(String.format("Encrypting records with %s subkeys of the data key", derivation.getName()));
+            }
+        }
+
+        if (System.getProperty(AGGREGATE_PARAM) != null) {
+            if (!binaryEnvelope) {
+                log.error("Record aggregation requires the binary envelope format");
+                System.exit(1);
+            }
+            aggregateRecords = Integer.parseInt(System.getProperty(AGGREGATE_PARAM));
+            log.info(String.format("Aggregating up to %d records per Kinesis record", aggregateRecords));
+        }
+
+        if (System.getProperty(ENCRYPT_THREADS_PARAM) != null) {
+            encryptThreads = Integer.parseInt(System.getProperty(ENCRYPT_THREADS_PARAM));
+        }
+        if (System.getProperty(SENDER_THREADS_PARAM) != null) {
+            senderThreads = Integer.parseInt(System.getProperty(SENDER_THREADS_PARAM));
+        }
+        if (System.getProperty(QUEUE_CAPACITY_PARAM) != null) {
+            queueCapacity = Integer.parseInt(System.getProperty(QUEUE_CAPACITY_PARAM));
+        }
+
+        if (System.getProperty(KEY_MAX_AGE_PARAM) != null) {
+            keyMaxAgeSeconds = Long.parseLong(System.getProperty(KEY_MAX_AGE_PARAM));
+        }
+        if (System.getProperty(KEY_MAX_BYTES_PARAM) != null) {
+            keyMaxBytes = Long.parseLong(System.getProperty(KEY_MAX_BYTES_PARAM));
+        }
+        if (System.getProperty(KEY_MAX_MESSAGES_PARAM) != null) {
+            keyMaxMessages = Long.parseLong(System.getProperty(KEY_MAX_MESSAGES_PARAM));
+        }
+
+        if (System.getProperty(PARTITIONER_PARAM) != null) {
+            partitionerName = System.getProperty(PARTITIONER_PARAM);
+        }
+        if (System.getProperty(SHARD_REFRESH_PARAM) != null) {
+            shardRefreshSeconds = Long.parseLong(System.getProperty(SHARD_REFRESH_PARAM));
+        }
+        if (System.getProperty(RATE_LIMIT_RECORDS_PARAM) != null) {
+            shardMaxRecordsPerSecond = Double.parseDouble(System.getProperty(RATE_LIMIT_RECORDS_PARAM));
+        }
+        if (System.getProperty(RATE_LIMIT_BYTES_PARAM) != null) {
+            shardMaxBytesPerSecond = Double.parseDouble(System.getProperty(RATE_LIMIT_BYTES_PARAM));
+        }
+
+        if (System.getProperty(METRICS_FILE_PARAM) != null) {
+            metricsSnapshotFile = System.getProperty(METRICS_FILE_PARAM);
+        }
+        if (System.getProperty(METRICS_INTERVAL_PARAM) != null) {
+            metricsSnapshotIntervalSeconds = Long.parseLong(System.getProperty(METRICS_INTERVAL_PARAM));
+        }
+        if (System.getProperty(LOG_SAMPLE_RATE_PARAM) != null) {
+            recordLog = new LogSampler(Double.parseDouble(System.getProperty(LOG_SAMPLE_RATE_PARAM)));
+        }
+
+        if (System.getProperty(BATCH_LINGER_PARAM) != null) {
+            long lingerMillis = Long.parseLong(System.getProperty(BATCH_LINGER_PARAM));
+            batchingProducer = new BatchingProducer(kinesis, streamName, lingerMillis);
+            log.info(String.format("Batching records with PutRecords, linger time %d ms", lingerMillis));
+        }
+
+        if (System.getProperty(WAL_SEGMENT_BYTES_PARAM) != null) {
+            walSegmentBytes = Integer.parseInt(System.getProperty(WAL_SEGMENT_BYTES_PARAM));
+        }
+        if (System.getProperty(WAL_MAX_BYTES_PARAM) != null) {
+            walMaxBytes = Long.parseLong(System.getProperty(WAL_MAX_BYTES_PARAM));
+        }
+        if (System.getProperty(WAL_OVERFLOW_PARAM) != null) {
+            walOverflowPolicy = WriteAheadLog.OverflowPolicy.fromName(System.getProperty(WAL_OVERFLOW_PARAM));
+        }
+        if (System.getProperty(WAL_SYNC_PARAM) != null) {
+            walSyncMillis = Long.parseLong(System.getProperty(WAL_SYNC_PARAM));
+        }
+        if (System.getProperty(CHUNK_BYTES_PARAM) != null) {
+            chunkBytes = Integer.parseInt(System.getProperty(CHUNK_BYTES_PARAM));
+        }
+        if (System.getProperty(SEND_FILE_PARAM) != null) {
+            if (!binaryEnvelope) {
+                log.error("Sending a file as chunks requires the binary envelope format");
+                System.exit(1);
+            }
+            sendFile = new File(System.getProperty(SEND_FILE_PARAM));
+        }
+
+        if (System.getProperty(WAL_DIRECTORY_PARAM) != null) {
+            if (batchingProducer != null) {
+                // A batched put returns before Kinesis has accepted the record
+                throw new IllegalArgumentException(WAL_DIRECTORY_PARAM + " cannot be combined with "
+                        + BATCH_LINGER_PARAM);
+            }
+            File walDirectory = new File(System.getProperty(WAL_DIRECTORY_PARAM));
+            writeAheadLog = new WriteAheadLog(walDirectory, walSegmentBytes, walMaxBytes, walOverflowPolicy,
+                    walSyncMillis);
+            log.info(String.format("Logging records to %s until they are sent, at most %d bytes, %s on overflow",
+                    walDirectory, walMaxBytes, walOverflowPolicy.getName()));
+        }
+
     }
 
     public static void main(String[] args) throws Exception {
@@ -123,120 +371,436 @@ public class Generator {
             System.exit(1);
         }
 
-        // Separate thread that will rotate KMS Data Key seamlessly.
-        EXECUTOR.scheduleAtFixedRate(new Runnable() {
+        // Shard hash key ranges, refreshed periodically and when a record lands on an unknown shard
+        boolean rateLimited = shardMaxRecordsPerSecond > 0 || shardMaxBytesPerSecond > 0;
+        if (!"none".equalsIgnoreCase(partitionerName) || rateLimited) {
+            streamShards = new StreamShards(kinesis, streamName, shardRefreshSeconds, TimeUnit.SECONDS);
+            streamShards.start();
+        }
+        if (!"none".equalsIgnoreCase(partitionerName)) {
+            PartitionStrategy strategy = PartitionStrategy.fromName(partitionerName);
+            partitioner = strategy.create(streamShards);
+            log.info(String.format("Partitioning records with the %s partitioner", strategy.getName()));
+        }
+        if (rateLimited) {
+            // A limit that is not set is left unlimited
+            rateLimiter = new ShardRateLimiter(
+                    shardMaxRecordsPerSecond > 0 ? shardMaxRecordsPerSecond : Double.MAX_VALUE,
+                    shardMaxBytesPerSecond > 0 ? shardMaxBytesPerSecond : Double.MAX_VALUE);
+            log.info(String.format("Pacing sends to %s records/s and %s bytes/s per shard",
+                    shardMaxRecordsPerSecond > 0 ? String.format("%.0f", shardMaxRecordsPerSecond) : "unlimited",
+                    shardMaxBytesPerSecond > 0 ? String.format("%.0f", shardMaxBytesPerSecond) : "unlimited"));
+        }
+
+        // The first data key is fetched before any record is encrypted; later keys are
+        // fetched in the background before the current one reaches its limits.
+        keyManager = new DataKeyManager(kms, kmsAlias, keyMaxAgeSeconds, TimeUnit.SECONDS, keyMaxBytes,
+                keyMaxMessages);
+        keyManager.start();
+
+        if (sendFile != null) {
+            sendFile(sendFile);
+            keyManager.shutdown();
+            if (streamShards != null) {
+                streamShards.shutdown();
+            }
+            System.exit(0);
+        }
+
+        // Source, encryption and sender stages joined by bounded queues
+        ProducerPipeline pipeline = new ProducerPipeline(new ProducerPipeline.RecordSource() {
+            @Override
+            public ProducerPipeline.SourceRecord next() {
+                long createTime = System.currentTimeMillis();
+                return new ProducerPipeline.SourceRecord(String.format("partitionKey-%d", createTime),
+                        String.format("testData-%d", createTime).getBytes());
+            }
+        }, new ProducerPipeline.RecordEncoder() {
+            @Override
+            public ByteBuffer encode(String partitionKey, byte[] data, byte envelopeFlags) {
+                return encryptData(partitionKey, data, envelopeFlags);
+            }
+        }, encryptThreads, new ProducerPipeline.BufferingRecordSender() {
+            @Override
+            public void send(String partitionKey, ByteBuffer data) throws InterruptedException {
+                makeRequest(partitionKey, data, null);
+            }
+
             @Override
-            public void run() {
-                refreshDataKey();
+            public void send(String partitionKey, ByteBuffer data, BatchingProducer.Callback completion)
+                    throws InterruptedException {
+                makeRequest(partitionKey, data, completion);
             }
+        }, senderThreads, queueCapacity, aggregateRecords, writeAheadLog);
 
-        }, 0, 60, TimeUnit.SECONDS);
+        registerGauges(pipeline);
+        metrics.registerMBean(METRICS_OBJECT_NAME);
+        if (!metricsSnapshotFile.isEmpty()) {
+            metrics.startSnapshots(new File(metricsSnapshotFile), metricsSnapshotIntervalSeconds, TimeUnit.SECONDS);
+        }
 
+        log.info(String.format("Starting producer pipeline with %d encryption threads and %d sender threads",
+                encryptThreads, senderThreads));
+        pipeline.start();
 
-        ByteBuffer jsonData;
+    }
 
-        // PutRecord Generator
-        while (true) {
 
-            long createTime = System.currentTimeMillis();
+    // Encrypt Data with the current DataKey; called from every encryption thread
+    private static ByteBuffer encryptData(String partitionKey, byte[] data, byte envelopeFlags) {
 
-            if (myKey == null) {
-                jsonData = refreshDataKeyAndEncryptData(true, String.format("testData-%d", createTime).getBytes());
-            } else {
-                jsonData = refreshDataKeyAndEncryptData(false, String.format("testData-%d", createTime).getBytes());
+            long time = System.nanoTime();
+            DataKey key = keyManager.acquire(data.length);
+            time = keyFetchLatency.recordSince(time);
+
+            // Compress first: ciphertext does not compress
+            Codec codec = Codec.NONE;
+            byte[] payload = data;
+            if (compressor != null) {
+                AdaptiveCompressor.Compressed compressed = compressor.compress(data);
+                codec = compressed.getCodec();
+                payload = compressed.getData();
+                compressLatency.recordSince(time);
             }
 
-            // make Kinesis Request
-            makeRequest(createTime, jsonData);
-        }
+            ByteBuffer encrypted;
+            if (subkeys != null) {
+                time = System.nanoTime();
+                SubkeyProvider.Subkey subkey = subkeys.subkeyFor(key, partitionKey);
+                deriveKeyLatency.recordSince(time);
+                encrypted = EncryptDataAsEnvelope(cipherSuite, codec, key, subkey, partitionKey, payload,
+                        envelopeFlags);
+            } else {
+                encrypted = binaryEnvelope
+                        ? EncryptDataAsEnvelope(cipherSuite, codec, key, partitionKey, payload, envelopeFlags)
+                        : EncryptDataAsJson(key, codec, payload);
+            }
 
+            if (recordLog.sample()) {
+                log.info(String.format("Data Size (byte) before encoding/encryption: %d, after %s compression: %d, "
+                                + "after encoding/encryption with %s format: %d", data.length, codec.getName(),
+                        payload.length, binaryEnvelope ? "binary" : "JSON", encrypted.remaining()));
+            }
+            return encrypted;
     }
 
+    // ENCRYPT Data with a fresh nonce and return a binary envelope; the ciphertext is bound to the partition key
+    public static ByteBuffer EncryptDataAsEnvelope(final CipherSuite suite, final DataKey key, final String partitionKey,
+                                                    final byte[] data, final byte flags) {
+        return EncryptDataAsEnvelope(suite, Codec.NONE, key, partitionKey, data, flags);
+    }
 
-    private static DataKey refreshDataKey () {
-        myKey = DataKey.getRandomDataKey(kmsAlias, regionName);
-        return myKey;
+    // ENCRYPT Data already compressed with codec and return a binary envelope
+    public static ByteBuffer EncryptDataAsEnvelope(final CipherSuite suite, final Codec codec, final DataKey key,
+                                                    final String partitionKey, final byte[] data, final byte flags) {
+        return EncryptDataAsEnvelope(suite, codec, key, null, partitionKey, data, flags);
     }
 
-    // Create new DataKey from KMS and Encrypt Data
-    private static ByteBuffer refreshDataKeyAndEncryptData(boolean refreshFlag, byte[] data) {
+    // ENCRYPT Data with a subkey of the DataKey, or the DataKey itself when subkey is null; the
+    // envelope carries the subkey's context so the consumer can derive it again
+    public static ByteBuffer EncryptDataAsEnvelope(final CipherSuite suite, final Codec codec, final DataKey key,
+                                                    final SubkeyProvider.Subkey subkey, final String partitionKey,
+                                                    final byte[] data, final byte flags) {
+        long time = System.nanoTime();
+        byte[] nonce = suite.newNonce();
+        byte[] encryptedData = encrypt(suite, subkey != null ? subkey.getKey() : key.getSecretKey(), nonce,
+                suite.isAuthenticated() ? CipherSuite.aadFor(partitionKey) : null, data);
+        time = encryptLatency.recordSince(time);
+        ByteBuffer envelope = Envelope.encode(flags, suite, codec, key.getEncryptedKey(),
+                subkey != null ? subkey.getContext() : new byte[0], nonce, encryptedData);
+        encodeLatency.recordSince(time);
+        return envelope;
+    }
 
-            if (refreshFlag) {
-                myKey = refreshDataKey();
-            }
+    // ENCRYPT Data and return a JSON object
+    public static ByteBuffer EncryptDataAsJson(final DataKey key, final byte[] data) {
+        return EncryptDataAsJson(key, Codec.NONE, data);
+    }
 
-            Cipher cipher = null;
-            try {
-                cipher = Cipher.getInstance("AES");
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-            } catch (NoSuchPaddingException e) {
-                e.printStackTrace();
-            }
+    // ENCRYPT Data already compressed with codec and return a JSON object
+    public static ByteBuffer EncryptDataAsJson(final DataKey key, final Codec codec, final byte[] data) {
+        ByteBuffer jsonData = null;
+        long time = System.nanoTime();
+        byte[] encryptedData = encrypt(CipherSuite.AES_ECB_PKCS5, key.getSecretKey(), new byte[0], null, data);
+        time = encryptLatency.recordSince(time);
 
-            log.info(String.format("Data Size (byte) before encoding/encryption: %d", data.length));
-            log.info(String.format("Data Size (byte) after encoding: %d", Tool.toBase64(data).getBytes().length));
+        // Encryted Key and Data Key base64 encoded to avoid parsing issues when creating JSON object
+        jsonData = jsonBuilder(Tool.toBase64(key.getEncryptedKey()), Tool.toBase64(encryptedData), codec);
+        encodeLatency.recordSince(time);
 
-            ByteBuffer encryptedJsonData = EncryptDataAsJson(cipher, myKey, data);
-            return encryptedJsonData;
+        return jsonData;
     }
 
-    // ENCRYPT Data and return a JSON object
-    private static ByteBuffer EncryptDataAsJson(final Cipher cipher, final DataKey key, final byte[] data) {
-        ByteBuffer jsonData = null;
+    private static byte[] encrypt(final CipherSuite suite, final SecretKey key, final byte[] nonce,
+                                  final ByteBuffer aad, final byte[] data) {
         byte[] encryptedData = null;
 
-
         try {
-            SecretKey mySymmetricKeyEncoded = new SecretKeySpec(key.getPlaintextKey().array(), "AES");
-            cipher.init(Cipher.ENCRYPT_MODE, mySymmetricKeyEncoded);
-            encryptedData = cipher.doFinal(data);
-
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-            System.exit(1);
-        } catch (BadPaddingException e) {
-            e.printStackTrace();
-        } catch (IllegalBlockSizeException e) {
+            encryptedData = suite.encrypt(key, nonce, aad, data);
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
             System.exit(1);
         }
 
-        // Encryted Key and Data Key base64 encoded to avoid parsing issues when creating JSON object
-        jsonData = jsonBuilder(Tool.toBase64(key.getEncryptedKey()), Tool.toBase64(encryptedData));
-
-        return jsonData;
+        return encryptedData;
     }
 
     // Create JSON object from Encrypted DataKey and Encrypted Data
-    private static ByteBuffer jsonBuilder(String key, String data) {
+    public static ByteBuffer jsonBuilder(String key, String data) {
+        return jsonBuilder(key, data, Codec.NONE);
+    }
+
+    // The codec field is only written for compressed data, which older consumers cannot read
+    @SuppressWarnings("unchecked")
+    public static ByteBuffer jsonBuilder(String key, String data, Codec codec) {
         JSONObject obj = new JSONObject();
 
         obj.put("key", key);
         obj.put("data", data);
-
-        log.info(String.format("Data Size after encryption/encoding:  %d", data.getBytes().length));
-        log.info(String.format("Key Size after encryption/encoding:  %d", key.getBytes().length));
+        if (codec != Codec.NONE) {
+            obj.put("codec", codec.getName());
+        }
 
         return ByteBuffer.wrap(obj.toJSONString().getBytes());
     }
 
-    // Make Kinesis Request
-    private static void makeRequest(long partitionKey, ByteBuffer jsonData) {
-        log.info(String.format("Total Payload (byte) after encoding/encryption with JSON format:  %d\n\n", jsonData.array().length));
+    // Send a file of any size as chunk records in order under one partition key, one frame in memory at a time
+    private static void sendFile(File file) throws IOException, GeneralSecurityException, InterruptedException {
+        final String partitionKey = String.format("object-%d", System.currentTimeMillis());
+        ChunkedEncryptor encryptor = new ChunkedEncryptor(keyManager, cipherSuite, subkeys, chunkBytes);
+        long start = System.nanoTime();
+        InputStream in = new FileInputStream(file);
+        try {
+            final int[] chunks = new int[1];
+            UUID objectId = encryptor.encrypt(partitionKey, in, new ChunkedEncryptor.ChunkSender() {
+                private String previousSequenceNumber;
+
+                @Override
+                public void send(ByteBuffer envelope, int index, boolean last) throws InterruptedException {
+                    previousSequenceNumber = putChunk(partitionKey, envelope, previousSequenceNumber);
+                    chunks[0]++;
+                }
+            });
+            log.info(String.format("Sent %s as object %s in %d chunks under partition key %s in %.1f s", file,
+                    objectId, chunks[0], partitionKey, (System.nanoTime() - start) / 1e9));
+        } finally {
+            in.close();
+        }
+    }
+
+    // Put one chunk after the previous one, retrying while its shard is throttled
+    private static String putChunk(String partitionKey, ByteBuffer envelope, String previousSequenceNumber)
+            throws InterruptedException {
+        String shardId = rateLimiter == null ? null
+                : streamShards.current().shardForPartitionKey(partitionKey).getShardId();
+        while (true) {
+            long start = System.nanoTime();
+            if (rateLimiter != null) {
+                rateLimiter.acquire(shardId, envelope.remaining() + partitionKey.length());
+                start = rateLimitLatency.recordSince(start);
+            }
+            try {
+                PutRecordResult result = kinesis.putRecord(new PutRecordRequest()
+                        .withStreamName(streamName)
+                        .withPartitionKey(partitionKey)
+                        .withSequenceNumberForOrdering(previousSequenceNumber)
+                        .withData(envelope.duplicate()));
+                putLatency.recordSince(start);
+                return result.getSequenceNumber();
+            } catch (ProvisionedThroughputExceededException e) {
+                if (rateLimiter != null) {
+                    rateLimiter.throttled(shardId);
+                }
+                Thread.sleep(CHUNK_BACKOFF_MILLIS);
+            }
+        }
+    }
 
-        PutRecordRequest putRecordRequest = new PutRecordRequest();
-        putRecordRequest.setStreamName(streamName);
-        putRecordRequest.setData(jsonData);
-        putRecordRequest.setPartitionKey(String.format("partitionKey-%d", partitionKey));
-        PutRecordResult putRecordResult = kinesis.putRecord(putRecordRequest);
-        log.info(String.format("Successfully put record, partition key : %s, ShardID : %s, SequenceNumber : %s.",
-                putRecordRequest.getPartitionKey(),
-                putRecordResult.getShardId(),
-                putRecordResult.getSequenceNumber()));
+    // Make Kinesis Request, telling the completion callback, if any, once the record is sent or dropped
+    private static void makeRequest(String partitionKey, ByteBuffer jsonData, BatchingProducer.Callback completion)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        final Partitioner.Partition partition = partitioner == null ? null
+                : partitioner.partition(partitionKey, jsonData.remaining());
+        String explicitHashKey = partition == null ? null : partition.getExplicitHashKey();
+        String shardId = null;
+        // A batched record completes its partition once its batch has been acknowledged
+        boolean batched = false;
+        try {
+            if (rateLimiter != null) {
+                shardId = partition != null ? partition.getShardId()
+                        : streamShards.current().shardForPartitionKey(partitionKey).getShardId();
+                rateLimiter.acquire(shardId, jsonData.remaining() + partitionKey.length());
+                start = rateLimitLatency.recordSince(start);
+            }
+            if (batchingProducer != null) {
+                batched = true;
+                batchingProducer.put(partitionKey, explicitHashKey, jsonData,
+                        batchCallback(partition, shardId, completion));
+                putLatency.recordSince(start);
+                return;
+            }
 
+            PutRecordRequest putRecordRequest = new PutRecordRequest();
+            putRecordRequest.setStreamName(streamName);
+            putRecordRequest.setData(jsonData);
+            putRecordRequest.setPartitionKey(partitionKey);
+            putRecordRequest.setExplicitHashKey(explicitHashKey);
+            PutRecordResult putRecordResult;
+            try {
+                putRecordResult = kinesis.putRecord(putRecordRequest);
+            } catch (ProvisionedThroughputExceededException e) {
+                if (rateLimiter != null) {
+                    rateLimiter.throttled(shardId);
+                }
+                throw e;
+            }
+            putLatency.recordSince(start);
+            if (streamShards != null) {
+                streamShards.reportShard(putRecordResult.getShardId());
+            }
+            if (recordLog.sample()) {
+                log.info(String.format("Successfully put record, partition key : %s, ShardID : %s, SequenceNumber : %s.",
+                        putRecordRequest.getPartitionKey(),
+                        putRecordResult.getShardId(),
+                        putRecordResult.getSequenceNumber()));
+            }
+            if (completion != null) {
+                completion.completed(true);
+            }
+        } finally {
+            if (partition != null && !batched) {
+                partitioner.complete(partition);
+            }
+        }
+
+    }
+
+
+    // Tells the partitioner, the rate limiter and the pipeline what became of a batched record;
+    // null if none of them wants to know
+    private static BatchingProducer.Callback batchCallback(final Partitioner.Partition partition,
+                                                           final String shardId,
+                                                           final BatchingProducer.Callback completion) {
+        if (partition == null && rateLimiter == null && completion == null) {
+            return null;
+        }
+        return new BatchingProducer.Callback() {
+            @Override
+            public void throttled() {
+                if (rateLimiter != null) {
+                    rateLimiter.throttled(shardId);
+                }
+                if (completion != null) {
+                    completion.throttled();
+                }
+            }
+
+            @Override
+            public void completed(boolean sent) {
+                if (partition != null) {
+                    partitioner.complete(partition);
+                }
+                if (completion != null) {
+                    completion.completed(sent);
+                }
+            }
+        };
     }
 
+    // Pipeline and key rotation state, read whenever metrics are reported
+    private static void registerGauges(final ProducerPipeline pipeline) {
+        metrics.gauge("producer.sourceQueueDepth", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return pipeline.getSourceQueueDepth();
+            }
+        });
+        metrics.gauge("producer.sendQueueDepth", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return pipeline.getSendQueueDepth();
+            }
+        });
+        metrics.gauge("producer.recordsCreated", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return pipeline.getRecordsCreated();
+            }
+        });
+        metrics.gauge("producer.recordsSent", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return pipeline.getRecordsSent();
+            }
+        });
+        metrics.gauge("producer.sendsThrottled", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return pipeline.getSendsThrottled();
+            }
+        });
+        metrics.gauge("producer.sendsFailed", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return pipeline.getSendsFailed();
+            }
+        });
+        metrics.gauge("producer.recordsDropped", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return pipeline.getRecordsDropped();
+            }
+        });
+        metrics.gauge("producer.keyRotations", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return keyManager.getRotations();
+            }
+        });
+        if (rateLimiter != null) {
+            metrics.gauge("producer.rateLimitDecreases", new MetricsRegistry.Gauge() {
+                @Override
+                public long value() {
+                    return rateLimiter.getDecreases();
+                }
+            });
+        }
+        if (writeAheadLog != null) {
+            metrics.gauge("producer.walSegments", new MetricsRegistry.Gauge() {
+                @Override
+                public long value() {
+                    return writeAheadLog.getSegments();
+                }
+            });
+            metrics.gauge("producer.walPending", new MetricsRegistry.Gauge() {
+                @Override
+                public long value() {
+                    return writeAheadLog.getPending();
+                }
+            });
+            metrics.gauge("producer.walOverflows", new MetricsRegistry.Gauge() {
+                @Override
+                public long value() {
+                    return writeAheadLog.getOverflows();
+                }
+            });
+            metrics.gauge("producer.recordsReplayed", new MetricsRegistry.Gauge() {
+                @Override
+                public long value() {
+                    return pipeline.getRecordsReplayed();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return per-stage latencies of the producer; encrypt and encode are recorded by every caller of
+     * EncryptDataAsEnvelope and EncryptDataAsJson
+     */
+    public static MetricsRegistry getMetrics() {
+        return metrics;
+    }
 
     private static void waitForStreamToBecomeAvailable(String myStreamName) throws InterruptedException {
         log.info(String.format("Waiting for %s to become ACTIVE...  ", myStreamName));
@@ -0,0 +1,29 @@
+package com.amazonaws.services.kinesis.producer;
+
+/**
+ * Consistent hashing on the partition key: records with the same key always go to the shard
+ * owning the key's MD5 hash, which is where Kinesis itself would send them. Only keys in the
+ * hash range of a split or merged shard move when the stream is resharded.
+ *
+ * The records are sent without an ExplicitHashKey; the shard is resolved locally so that callers
+ * know where each record lands.
+ */
+public class HashPartitioner implements Partitioner {
+
+    private final StreamShards shards;
+
+    public HashPartitioner(StreamShards shards) {
+        this.shards = shards;
+    }
+
+    @Override
+    public Partition partition(String partitionKey, int size) {
+        ShardMap.ShardRange shard = shards.current().shardForPartitionKey(partitionKey);
+        return new Partition(partitionKey, null, shard.getShardId(), size);
+    }
+
+    @Override
+    public void complete(Partition partition) {
+    }
+
+}
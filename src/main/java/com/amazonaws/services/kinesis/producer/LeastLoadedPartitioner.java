@@ -0,0 +1,69 @@
+package com.amazonaws.services.kinesis.producer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends each record to the open shard with the fewest bytes in flight, so a shard that is slow
+ * to accept records, or is being throttled, gets fewer of them.
+ */
+public class LeastLoadedPartitioner implements Partitioner {
+
+    private final StreamShards shards;
+    private final ConcurrentMap<String, AtomicLong> inFlightBytes = new ConcurrentHashMap<String, AtomicLong>();
+
+    // Where the search starts, so shards with equal load take turns
+    private final AtomicInteger offset = new AtomicInteger();
+
+    public LeastLoadedPartitioner(StreamShards shards) {
+        this.shards = shards;
+    }
+
+    @Override
+    public Partition partition(String partitionKey, int size) {
+        ShardMap map = shards.current();
+        int start = (offset.getAndIncrement() & Integer.MAX_VALUE) % map.size();
+        ShardMap.ShardRange best = null;
+        AtomicLong bestLoad = null;
+        long bestBytes = Long.MAX_VALUE;
+        for (int i = 0; i < map.size(); i++) {
+            ShardMap.ShardRange shard = map.get((start + i) % map.size());
+            AtomicLong load = loadOf(shard.getShardId());
+            long bytes = load.get();
+            if (bytes < bestBytes) {
+                best = shard;
+                bestLoad = load;
+                bestBytes = bytes;
+            }
+        }
+        bestLoad.addAndGet(size);
+        return new Partition(partitionKey, best.getExplicitHashKey(), best.getShardId(), size);
+    }
+
+    @Override
+    public void complete(Partition partition) {
+        loadOf(partition.getShardId()).addAndGet(-partition.getSize());
+    }
+
+    /**
+     * @return bytes sent to shardId that have not completed yet
+     */
+    public long getInFlightBytes(String shardId) {
+        return loadOf(shardId).get();
+    }
+
+    private AtomicLong loadOf(String shardId) {
+        AtomicLong load = inFlightBytes.get(shardId);
+        if (load == null) {
+            AtomicLong created = new AtomicLong();
+            load = inFlightBytes.putIfAbsent(shardId, created);
+            if (load == null) {
+                load = created;
+            }
+        }
+        return load;
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.amazonaws.services.kinesis.producer;
+
+/**
+ * Partitioners selectable by name.
+ */
+public enum PartitionStrategy {
+
+    ROUND_ROBIN("round-robin") {
+        @Override
+        public Partitioner create(StreamShards shards) {
+            return new RoundRobinPartitioner(shards);
+        }
+    },
+    HASH("hash") {
+        @Override
+        public Partitioner create(StreamShards shards) {
+            return new HashPartitioner(shards);
+        }
+    },
+    LEAST_LOADED("least-loaded") {
+        @Override
+        public Partitioner create(StreamShards shards) {
+            return new LeastLoadedPartitioner(shards);
+        }
+    };
+
+    private final String name;
+
+    PartitionStrategy(String name) {
+        this.name = name;
+    }
+
+    public abstract Partitioner create(StreamShards shards);
+
+    public String getName() {
+        return name;
+    }
+
+    public static PartitionStrategy fromName(String name) {
+        for (PartitionStrategy strategy : values()) {
+            if (strategy.name.equalsIgnoreCase(name)) {
+                return strategy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown partitioner " + name);
+    }
+
+}
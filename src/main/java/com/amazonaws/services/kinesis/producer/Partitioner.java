@@ -0,0 +1,61 @@
+package com.amazonaws.services.kinesis.producer;
+
+/**
+ * Chooses the shard each record is sent to.
+ *
+ * Implementations must be thread safe; every sender thread calls them.
+ */
+public interface Partitioner {
+
+    /**
+     * @param partitionKey partition key of the record, which stays the record's partition key
+     * @param size record size in bytes
+     * @return where to send the record
+     */
+    Partition partition(String partitionKey, int size);
+
+    /**
+     * Called once the record has been sent, or has finally failed.
+     */
+    void complete(Partition partition);
+
+    /**
+     * Destination of one record.
+     */
+    final class Partition {
+        private final String partitionKey;
+        private final String explicitHashKey;
+        private final String shardId;
+        private final int size;
+
+        public Partition(String partitionKey, String explicitHashKey, String shardId, int size) {
+            this.partitionKey = partitionKey;
+            this.explicitHashKey = explicitHashKey;
+            this.shardId = shardId;
+            this.size = size;
+        }
+
+        public String getPartitionKey() {
+            return partitionKey;
+        }
+
+        /**
+         * @return ExplicitHashKey to put the record with, or null to let Kinesis hash the partition key
+         */
+        public String getExplicitHashKey() {
+            return explicitHashKey;
+        }
+
+        /**
+         * @return shard the record is expected to land on
+         */
+        public String getShardId() {
+            return shardId;
+        }
+
+        public int getSize() {
+            return size;
+        }
+    }
+
+}
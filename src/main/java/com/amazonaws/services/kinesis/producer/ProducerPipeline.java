@@ -0,0 +1,483 @@
+package com.amazonaws.services.kinesis.producer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.kinesis.envelope.Envelope;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Staged producer: one source thread, N encryption threads and M sender threads joined by
+ * bounded queues.
+ *
+ * When Kinesis throttles, senders back off and stop draining their queue, the queues fill and
+ * the encryption and source threads block on them, so the whole pipeline slows to the rate
+ * the stream accepts instead of buffering without bound.
+ *
+ * With a {@link WriteAheadLog}, every encoded record is logged before it is queued for sending and
+ * acknowledged once Kinesis accepts it; records left in the log by a previous run are sent first.
+ */
+public class ProducerPipeline {
+
+    /**
+     * Creates the records to send; called from the source thread only. Returning null ends the
+     * source, after which the other stages send what is queued and stop.
+     */
+    public interface RecordSource {
+        SourceRecord next();
+    }
+
+    /**
+     * Encrypts and encodes a payload; called from every encryption thread at once.
+     */
+    public interface RecordEncoder {
+        ByteBuffer encode(String partitionKey, byte[] data, byte envelopeFlags);
+    }
+
+    /**
+     * Sends one encoded record; called from every sender thread at once. Returns once Kinesis has
+     * accepted the record, and throws ProvisionedThroughputExceededException when the stream
+     * throttles. May wait to pace the records sent to a shard.
+     */
+    public interface RecordSender {
+        void send(String partitionKey, ByteBuffer data) throws InterruptedException;
+    }
+
+    /**
+     * A sender that may buffer records and send them later, such as through a
+     * {@link BatchingProducer}. Either throws as {@link RecordSender#send} does, or calls the
+     * callback exactly once, possibly after returning, when the record has been sent or dropped;
+     * the record is only counted as sent once the callback says so.
+     */
+    public interface BufferingRecordSender extends RecordSender {
+        void send(String partitionKey, ByteBuffer data, BatchingProducer.Callback callback)
+                throws InterruptedException;
+    }
+
+    public static final class SourceRecord {
+        private final String partitionKey;
+        private final byte[] data;
+
+        public SourceRecord(String partitionKey, byte[] data) {
+            this.partitionKey = partitionKey;
+            this.data = data;
+        }
+    }
+
+    private static final class EncodedRecord {
+        private final String partitionKey;
+        private final ByteBuffer data;
+        // Write-ahead log ticket, acknowledged once the record is sent
+        private final long ticket;
+
+        private EncodedRecord(String partitionKey, ByteBuffer data, long ticket) {
+            this.partitionKey = partitionKey;
+            this.data = data;
+            this.ticket = ticket;
+        }
+    }
+
+    // Backoff settings for throttled and failed sends
+    private static final long BACKOFF_TIME_IN_MILLIS = 100L;
+    private static final long MAX_BACKOFF_TIME_IN_MILLIS = 5000L;
+
+    // How long an encryption thread holds a partial aggregate while its queue is empty
+    private static final long AGGREGATE_LINGER_MILLIS = 100L;
+
+    private static final long REPORT_INTERVAL_SECONDS = 10L;
+
+    private static final Logger log = LoggerFactory.getLogger(ProducerPipeline.class);
+
+    private final RecordSource source;
+    private final RecordEncoder encoder;
+    private final RecordSender sender;
+    private final int encryptThreads;
+    private final int senderThreads;
+    private final int aggregateRecords;
+    private final WriteAheadLog writeAheadLog;
+
+    private final BlockingQueue<SourceRecord> sourceQueue;
+    private final BlockingQueue<EncodedRecord> sendQueue;
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final ScheduledExecutorService reporter;
+    private volatile boolean running;
+
+    // Encryption threads may still add to the send queue after the source queue is empty
+    private final AtomicInteger activeEncryptThreads = new AtomicInteger();
+
+    private final AtomicLong recordsCreated = new AtomicLong();
+    private final AtomicLong recordsEncoded = new AtomicLong();
+    private final AtomicLong recordsSent = new AtomicLong();
+    private final AtomicLong sendsThrottled = new AtomicLong();
+    private final AtomicLong sendsFailed = new AtomicLong();
+    private final AtomicLong recordsDropped = new AtomicLong();
+    private final AtomicLong recordsReplayed = new AtomicLong();
+
+    /**
+     * @param encryptThreads number of threads encrypting records
+     * @param senderThreads number of threads sending records to Kinesis
+     * @param queueCapacity capacity of each queue between stages
+     * @param aggregateRecords records packed into each Kinesis record, or 0 to send them one by one
+     */
+    public ProducerPipeline(RecordSource source, RecordEncoder encoder, int encryptThreads,
+                            RecordSender sender, int senderThreads, int queueCapacity, int aggregateRecords) {
+        this(source, encoder, encryptThreads, sender, senderThreads, queueCapacity, aggregateRecords, null);
+    }
+
+    /**
+     * @param encryptThreads number of threads encrypting records
+     * @param senderThreads number of threads sending records to Kinesis
+     * @param queueCapacity capacity of each queue between stages
+     * @param aggregateRecords records packed into each Kinesis record, or 0 to send them one by one
+     * @param writeAheadLog logs records until Kinesis accepts them, or null
+     */
+    public ProducerPipeline(RecordSource source, RecordEncoder encoder, int encryptThreads,
+                            RecordSender sender, int senderThreads, int queueCapacity, int aggregateRecords,
+                            WriteAheadLog writeAheadLog) {
+        if (encryptThreads < 1 || senderThreads < 1) {
+            throw new IllegalArgumentException("Every stage needs at least one thread");
+        }
+        this.source = source;
+        this.encoder = encoder;
+        this.sender = sender;
+        this.encryptThreads = encryptThreads;
+        this.senderThreads = senderThreads;
+        this.aggregateRecords = aggregateRecords;
+        this.writeAheadLog = writeAheadLog;
+        this.sourceQueue = new ArrayBlockingQueue<SourceRecord>(queueCapacity);
+        this.sendQueue = new ArrayBlockingQueue<EncodedRecord>(queueCapacity);
+
+        this.reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "producer-pipeline-report");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start every stage.
+     */
+    public synchronized void start() {
+        running = true;
+        activeEncryptThreads.set(encryptThreads);
+        startThread("producer-source", new Runnable() {
+            @Override
+            public void run() {
+                runSource();
+            }
+        });
+        for (int i = 1; i <= encryptThreads; i++) {
+            startThread("producer-encrypt-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    runEncryption();
+                }
+            });
+        }
+        for (int i = 1; i <= senderThreads; i++) {
+            startThread("producer-send-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    runSender();
+                }
+            });
+        }
+
+        reporter.scheduleAtFixedRate(new Runnable() {
+            private long lastCreated;
+            private long lastEncoded;
+            private long lastSent;
+
+            @Override
+            public void run() {
+                long created = getRecordsCreated();
+                long encoded = getRecordsEncoded();
+                long sent = getRecordsSent();
+                log.info(String.format("Pipeline: source %.1f records/s, encrypt %.1f records/s (queue %d), "
+                                + "send %.1f records/s (queue %d), %d throttled and %d failed sends",
+                        (created - lastCreated) / (double) REPORT_INTERVAL_SECONDS,
+                        (encoded - lastEncoded) / (double) REPORT_INTERVAL_SECONDS, getSourceQueueDepth(),
+                        (sent - lastSent) / (double) REPORT_INTERVAL_SECONDS, getSendQueueDepth(),
+                        getSendsThrottled(), getSendsFailed()));
+                lastCreated = created;
+                lastEncoded = encoded;
+                lastSent = sent;
+            }
+        }, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the source, let the other stages drain their queues, and wait for every thread.
+     */
+    public void shutdown() throws InterruptedException {
+        running = false;
+        awaitTermination();
+    }
+
+    /**
+     * Wait until the source has ended and every record has been handed to the sender.
+     */
+    public void awaitTermination() throws InterruptedException {
+        List<Thread> started;
+        synchronized (this) {
+            started = new ArrayList<Thread>(threads);
+        }
+        for (Thread t : started) {
+            t.join();
+        }
+        reporter.shutdown();
+    }
+
+    private void startThread(String name, Runnable stage) {
+        Thread t = new Thread(stage, name);
+        threads.add(t);
+        t.start();
+    }
+
+    private void runSource() {
+        try {
+            if (writeAheadLog != null) {
+                replay();
+            }
+            while (running) {
+                SourceRecord record = source.next();
+                if (record == null) {
+                    break;
+                }
+                sourceQueue.put(record);
+                recordsCreated.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running = false;
+        }
+    }
+
+    private void runEncryption() {
+        // Each encryption thread packs its own aggregates
+        RecordAggregator aggregator = aggregateRecords > 0 ? new RecordAggregator(aggregateRecords) : null;
+        String aggregatePartitionKey = null;
+        try {
+            while (running || !sourceQueue.isEmpty()) {
+                SourceRecord record = sourceQueue.poll(AGGREGATE_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+                if (record == null) {
+                    if (aggregator != null && !aggregator.isEmpty()) {
+                        sendAggregate(aggregator, aggregatePartitionKey);
+                    }
+                    continue;
+                }
+                recordsEncoded.incrementAndGet();
+
+                if (aggregator == null) {
+                    enqueue(record.partitionKey, encoder.encode(record.partitionKey, record.data, (byte) 0));
+                    continue;
+                }
+                if (!aggregator.fits(record.data)) {
+                    sendAggregate(aggregator, aggregatePartitionKey);
+                }
+                if (aggregator.isEmpty()) {
+                    aggregatePartitionKey = record.partitionKey;
+                }
+                aggregator.add(record.data);
+                if (aggregator.isFull()) {
+                    sendAggregate(aggregator, aggregatePartitionKey);
+                }
+            }
+            if (aggregator != null && !aggregator.isEmpty()) {
+                sendAggregate(aggregator, aggregatePartitionKey);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            activeEncryptThreads.decrementAndGet();
+        }
+    }
+
+    private void sendAggregate(RecordAggregator aggregator, String partitionKey) throws InterruptedException {
+        ByteBuffer envelope = encoder.encode(partitionKey, aggregator.drain(), Envelope.FLAG_AGGREGATED);
+        enqueue(partitionKey, envelope);
+    }
+
+    // Log the record, if there is a write-ahead log, and queue it for sending
+    private void enqueue(String partitionKey, ByteBuffer data) throws InterruptedException {
+        long ticket = WriteAheadLog.NO_TICKET;
+        if (writeAheadLog != null) {
+            try {
+                ticket = writeAheadLog.append(partitionKey, data);
+            } catch (IOException e) {
+                log.error("Couldn't log record to the write-ahead log, sending it anyway", e);
+            }
+        }
+        sendQueue.put(new EncodedRecord(partitionKey, data, ticket));
+    }
+
+    // Queue the records a previous run logged but never had accepted, ahead of new ones
+    private void replay() throws InterruptedException {
+        try {
+            writeAheadLog.replay(new WriteAheadLog.RecordVisitor() {
+                @Override
+                public void visit(String partitionKey, ByteBuffer data, long ticket) throws InterruptedException {
+                    sendQueue.put(new EncodedRecord(partitionKey, data, ticket));
+                    recordsReplayed.incrementAndGet();
+                }
+            });
+        } catch (IOException e) {
+            log.error("Couldn't replay the write-ahead log, its remaining segments are kept", e);
+        }
+    }
+
+    private void runSender() {
+        try {
+            while (running || !sourceQueue.isEmpty() || !sendQueue.isEmpty() || activeEncryptThreads.get() > 0) {
+                EncodedRecord record = sendQueue.poll(AGGREGATE_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    send(record);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Back off and retry while the stream throttles or cannot be reached, holding up this sender
+    // and hence its queue
+    private void send(EncodedRecord record) throws InterruptedException {
+        long backoff = BACKOFF_TIME_IN_MILLIS;
+        while (true) {
+            try {
+                if (sender instanceof BufferingRecordSender) {
+                    ((BufferingRecordSender) sender).send(record.partitionKey, record.data, completion(record));
+                    return;
+                }
+                sender.send(record.partitionKey, record.data);
+                recordsSent.incrementAndGet();
+                acknowledge(record);
+                return;
+            } catch (ProvisionedThroughputExceededException e) {
+                sendsThrottled.incrementAndGet();
+                log.debug("Throttled, backing off " + backoff + " ms", e);
+            } catch (AmazonClientException e) {
+                if (!isRetryable(e)) {
+                    // Sending it again would fail the same way
+                    recordsDropped.incrementAndGet();
+                    log.error("Dropping record with partition key " + record.partitionKey, e);
+                    acknowledge(record);
+                    return;
+                }
+                sendsFailed.incrementAndGet();
+                log.warn("Send failed, backing off " + backoff + " ms", e);
+            }
+            Thread.sleep(backoff);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_TIME_IN_MILLIS);
+        }
+    }
+
+    // Counts a buffered record once the sender reports what became of it
+    private BatchingProducer.Callback completion(final EncodedRecord record) {
+        return new BatchingProducer.Callback() {
+            @Override
+            public void throttled() {
+                sendsThrottled.incrementAndGet();
+            }
+
+            @Override
+            public void completed(boolean sent) {
+                if (sent) {
+                    recordsSent.incrementAndGet();
+                } else {
+                    recordsDropped.incrementAndGet();
+                    log.error("Dropping record with partition key " + record.partitionKey
+                            + ", its batch was not accepted");
+                }
+                acknowledge(record);
+            }
+        };
+    }
+
+    private void acknowledge(EncodedRecord record) {
+        if (writeAheadLog != null) {
+            writeAheadLog.acknowledge(record.ticket);
+        }
+    }
+
+    // Service errors are retried if the service failed, client errors if the request never got there
+    private static boolean isRetryable(AmazonClientException e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException ase = (AmazonServiceException) e;
+            return ase.getStatusCode() >= 500 || ase.getErrorType() == AmazonServiceException.ErrorType.Service;
+        }
+        return e.isRetryable();
+    }
+
+    public int getSourceQueueDepth() {
+        return sourceQueue.size();
+    }
+
+    public int getSendQueueDepth() {
+        return sendQueue.size();
+    }
+
+    public long getRecordsCreated() {
+        return recordsCreated.get();
+    }
+
+    /**
+     * @return user records taken by the encryption stage; with aggregation several make one Kinesis record
+     */
+    public long getRecordsEncoded() {
+        return recordsEncoded.get();
+    }
+
+    /**
+     * @return Kinesis records handed to the sender
+     */
+    public long getRecordsSent() {
+        return recordsSent.get();
+    }
+
+    public long getSendsThrottled() {
+        return sendsThrottled.get();
+    }
+
+    /**
+     * @return sends that failed with a retryable error other than throttling and were retried
+     */
+    public long getSendsFailed() {
+        return sendsFailed.get();
+    }
+
+    /**
+     * @return records dropped after a send failed with an error that retrying cannot fix
+     */
+    public long getRecordsDropped() {
+        return recordsDropped.get();
+    }
+
+    /**
+     * @return records read back from the write-ahead log and queued for sending
+     */
+    public long getRecordsReplayed() {
+        return recordsReplayed.get();
+    }
+
+}
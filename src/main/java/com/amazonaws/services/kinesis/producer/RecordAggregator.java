@@ -0,0 +1,69 @@
+package com.amazonaws.services.kinesis.producer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.envelope.AggregatedPayload;
+
+/**
+ * Collects user records that will be encrypted together and sent as one Kinesis record,
+ * so the encrypted data key is carried once per aggregate instead of once per record.
+ */
+public class RecordAggregator {
+
+    // Leaves room for the envelope header, encrypted key and cipher padding under the 1 MB record limit
+    public static final int MAX_AGGREGATED_BYTES = 900 * 1024;
+
+    private final int maxRecords;
+    private final int maxBytes;
+
+    private List<byte[]> records = new ArrayList<byte[]>();
+    private int packedSize = AggregatedPayload.packedSize(records);
+
+    public RecordAggregator(int maxRecords) {
+        this(maxRecords, MAX_AGGREGATED_BYTES);
+    }
+
+    public RecordAggregator(int maxRecords, int maxBytes) {
+        if (maxRecords < 1) {
+            throw new IllegalArgumentException("maxRecords must be at least 1");
+        }
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return true if the record can be added without exceeding the size limit
+     */
+    public boolean fits(byte[] record) {
+        return records.isEmpty() || packedSize + 4 + record.length <= maxBytes;
+    }
+
+    public void add(byte[] record) {
+        records.add(record);
+        packedSize += 4 + record.length;
+    }
+
+    public boolean isFull() {
+        return records.size() >= maxRecords || packedSize >= maxBytes;
+    }
+
+    public boolean isEmpty() {
+        return records.isEmpty();
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * @return the packed plaintext of every record added since the last drain
+     */
+    public byte[] drain() {
+        byte[] packed = AggregatedPayload.pack(records);
+        records = new ArrayList<byte[]>();
+        packedSize = AggregatedPayload.packedSize(records);
+        return packed;
+    }
+
+}
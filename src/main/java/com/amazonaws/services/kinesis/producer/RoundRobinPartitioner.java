@@ -0,0 +1,29 @@
+package com.amazonaws.services.kinesis.producer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads records evenly over the open shards, whatever their partition keys, by sending each
+ * record with the ExplicitHashKey of the next shard in turn.
+ */
+public class RoundRobinPartitioner implements Partitioner {
+
+    private final StreamShards shards;
+    private final AtomicLong next = new AtomicLong();
+
+    public RoundRobinPartitioner(StreamShards shards) {
+        this.shards = shards;
+    }
+
+    @Override
+    public Partition partition(String partitionKey, int size) {
+        ShardMap map = shards.current();
+        ShardMap.ShardRange shard = map.get((int) ((next.getAndIncrement() & Long.MAX_VALUE) % map.size()));
+        return new Partition(partitionKey, shard.getExplicitHashKey(), shard.getShardId(), size);
+    }
+
+    @Override
+    public void complete(Partition partition) {
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.amazonaws.services.kinesis.producer;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.StreamDescription;
+
+/**
+ * Immutable view of the open shards of a stream and the hash key range each one owns.
+ *
+ * Closed shards, those with an ending sequence number after a split or merge, no longer accept
+ * records and are left out.
+ */
+public final class ShardMap {
+
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * One open shard.
+     */
+    public static final class ShardRange {
+        private final String shardId;
+        private final BigInteger startingHashKey;
+        private final BigInteger endingHashKey;
+        private final String explicitHashKey;
+
+        ShardRange(String shardId, BigInteger startingHashKey, BigInteger endingHashKey) {
+            this.shardId = shardId;
+            this.startingHashKey = startingHashKey;
+            this.endingHashKey = endingHashKey;
+            // The middle of the range stays inside it however the neighbours are split later
+            this.explicitHashKey = startingHashKey.add(endingHashKey).shiftRight(1).toString();
+        }
+
+        public String getShardId() {
+            return shardId;
+        }
+
+        public BigInteger getStartingHashKey() {
+            return startingHashKey;
+        }
+
+        public BigInteger getEndingHashKey() {
+            return endingHashKey;
+        }
+
+        /**
+         * @return an ExplicitHashKey that routes a record to this shard
+         */
+        public String getExplicitHashKey() {
+            return explicitHashKey;
+        }
+    }
+
+    private final List<ShardRange> shards;
+
+    ShardMap(List<ShardRange> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("Stream has no open shards");
+        }
+        List<ShardRange> sorted = new ArrayList<ShardRange>(shards);
+        Collections.sort(sorted, new Comparator<ShardRange>() {
+            @Override
+            public int compare(ShardRange a, ShardRange b) {
+                return a.startingHashKey.compareTo(b.startingHashKey);
+            }
+        });
+        this.shards = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * Read the open shards of a stream with DescribeStream, following every page.
+     */
+    public static ShardMap describe(AmazonKinesis kinesis, String streamName) {
+        List<ShardRange> open = new ArrayList<ShardRange>();
+        String exclusiveStartShardId = null;
+        while (true) {
+            StreamDescription description = kinesis.describeStream(new DescribeStreamRequest()
+                    .withStreamName(streamName)
+                    .withExclusiveStartShardId(exclusiveStartShardId)).getStreamDescription();
+            for (Shard shard : description.getShards()) {
+                if (shard.getSequenceNumberRange() == null
+                        || shard.getSequenceNumberRange().getEndingSequenceNumber() == null) {
+                    open.add(new ShardRange(shard.getShardId(),
+                            new BigInteger(shard.getHashKeyRange().getStartingHashKey()),
+                            new BigInteger(shard.getHashKeyRange().getEndingHashKey())));
+                }
+                exclusiveStartShardId = shard.getShardId();
+            }
+            if (!Boolean.TRUE.equals(description.getHasMoreShards()) || description.getShards().isEmpty()) {
+                return new ShardMap(open);
+            }
+        }
+    }
+
+    /**
+     * @return open shards in hash key order
+     */
+    public List<ShardRange> getShards() {
+        return shards;
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    public ShardRange get(int index) {
+        return shards.get(index);
+    }
+
+    public boolean contains(String shardId) {
+        for (ShardRange shard : shards) {
+            if (shard.shardId.equals(shardId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the open shard owning hashKey
+     */
+    public ShardRange shardFor(BigInteger hashKey) {
+        int low = 0;
+        int high = shards.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (shards.get(mid).startingHashKey.compareTo(hashKey) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return shards.get(low);
+    }
+
+    /**
+     * @return the open shard Kinesis sends partitionKey to, the one owning its MD5 hash
+     */
+    public ShardRange shardForPartitionKey(String partitionKey) {
+        return shardFor(hashKey(partitionKey));
+    }
+
+    public static BigInteger hashKey(String partitionKey) {
+        return new BigInteger(1, MD5.get().digest(partitionKey.getBytes(StandardCharsets.UTF_8)));
+    }
+
+}
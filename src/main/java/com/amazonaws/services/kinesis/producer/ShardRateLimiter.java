@@ -0,0 +1,176 @@
+package com.amazonaws.services.kinesis.producer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Paces the records sent to each shard with a pair of token buckets, one for records and one for
+ * bytes, so sends stay under the shard limits instead of finding them through throttling.
+ *
+ * The rates adapt to ProvisionedThroughputExceeded feedback: a throttled shard has its rates
+ * halved, and every second without throttling adds a fraction of the limit back, up to the limit
+ * (additive increase, multiplicative decrease). A send over the rate waits for its tokens rather
+ * than failing, so a burst is spread out and no record is dropped.
+ */
+public class ShardRateLimiter {
+
+    // Rates never fall below this fraction of the limit
+    private static final double MIN_RATE_FRACTION = 0.01;
+    // Fraction of the limit added back per second without throttling
+    private static final double INCREASE_FRACTION_PER_SECOND = 0.05;
+    // Tokens a bucket may hold, in seconds of its current rate
+    private static final double BURST_SECONDS = 0.1;
+    // Throttles reported this soon after a decrease come from sends already in flight
+    private static final long DECREASE_HOLDOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static final Logger log = LoggerFactory.getLogger(ShardRateLimiter.class);
+
+    private final double maxRecordsPerSecond;
+    private final double maxBytesPerSecond;
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    private final AtomicLong throttles = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * Rates and tokens of one shard. Tokens go negative when a send reserves more than the bucket
+     * holds; the sender then waits until the deficit has been refilled.
+     */
+    private final class Bucket {
+        private double rate = 1.0;
+        private double recordTokens;
+        private double byteTokens;
+        private long refilledNanos = System.nanoTime();
+        private long decreasedNanos = refilledNanos - DECREASE_HOLDOFF_NANOS;
+
+        // Reserve one record of size bytes and return how long to wait for it
+        private synchronized long reserve(int size) {
+            refill();
+            recordTokens -= 1;
+            byteTokens -= size;
+            double deficitSeconds = Math.max(-recordTokens / (rate * maxRecordsPerSecond),
+                    -byteTokens / (rate * maxBytesPerSecond));
+            return deficitSeconds <= 0 ? 0L : (long) (deficitSeconds * 1e9);
+        }
+
+        private synchronized boolean decrease() {
+            long now = System.nanoTime();
+            if (now - decreasedNanos < DECREASE_HOLDOFF_NANOS) {
+                return false;
+            }
+            refill();
+            decreasedNanos = now;
+            rate = Math.max(MIN_RATE_FRACTION, rate / 2);
+            // What is left was sized for the old rate
+            recordTokens = Math.min(recordTokens, 0);
+            byteTokens = Math.min(byteTokens, 0);
+            return true;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            double seconds = (now - refilledNanos) / 1e9;
+            refilledNanos = now;
+            recordTokens = Math.min(recordTokens + seconds * rate * maxRecordsPerSecond,
+                    BURST_SECONDS * rate * maxRecordsPerSecond);
+            byteTokens = Math.min(byteTokens + seconds * rate * maxBytesPerSecond,
+                    BURST_SECONDS * rate * maxBytesPerSecond);
+            rate = Math.min(1.0, rate + seconds * INCREASE_FRACTION_PER_SECOND);
+        }
+    }
+
+    /**
+     * @param maxRecordsPerSecond records per second a shard accepts, 1000 for Kinesis
+     * @param maxBytesPerSecond bytes per second a shard accepts, 1 MB for Kinesis
+     */
+    public ShardRateLimiter(double maxRecordsPerSecond, double maxBytesPerSecond) {
+        if (maxRecordsPerSecond <= 0 || maxBytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Shard rate limits must be positive");
+        }
+        this.maxRecordsPerSecond = maxRecordsPerSecond;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Wait until one record of size bytes may be sent to shardId; called from every sender thread
+     * at once.
+     * @param size bytes the shard counts for the record, its data and partition key
+     */
+    public void acquire(String shardId, int size) throws InterruptedException {
+        long wait = bucketFor(shardId).reserve(size);
+        if (wait > 0) {
+            waitNanos.addAndGet(wait);
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Report that a send to shardId was throttled.
+     */
+    public void throttled(String shardId) {
+        throttles.incrementAndGet();
+        Bucket bucket = bucketFor(shardId);
+        if (bucket.decrease()) {
+            decreases.incrementAndGet();
+            log.debug(String.format("Shard %s throttled, rate lowered to %.0f records/s", shardId,
+                    getRecordsPerSecond(shardId)));
+        }
+    }
+
+    /**
+     * @return records per second currently allowed to shardId
+     */
+    public double getRecordsPerSecond(String shardId) {
+        Bucket bucket = bucketFor(shardId);
+        synchronized (bucket) {
+            return bucket.rate * maxRecordsPerSecond;
+        }
+    }
+
+    private Bucket bucketFor(String shardId) {
+        Bucket bucket = buckets.get(shardId);
+        if (bucket == null) {
+            Bucket created = new Bucket();
+            bucket = buckets.putIfAbsent(shardId, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * @return throttled sends reported
+     */
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    /**
+     * @return times a shard's rates were halved
+     */
+    public long getDecreases() {
+        return decreases.get();
+    }
+
+    /**
+     * @return total time senders waited for tokens
+     */
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d throttles, %d rate decreases, %.1f s waited for tokens", getThrottles(),
+                getDecreases(), getWaitNanos() / 1e9);
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.amazonaws.services.kinesis.producer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the {@link ShardMap} of a stream up to date across resharding.
+ *
+ * The map is read again on a fixed interval, and right away when a put lands on a shard the map
+ * does not know, which happens once a split or merge has opened new shards. Readers always get
+ * a complete map and never wait for a refresh.
+ */
+public class StreamShards {
+
+    // Unknown shards reported while a refresh is running, or just after one, do not start another
+    private static final long MIN_REFRESH_INTERVAL_MILLIS = 1000L;
+
+    private static final Logger log = LoggerFactory.getLogger(StreamShards.class);
+
+    private final AmazonKinesis kinesis;
+    private final String streamName;
+    private final long refreshIntervalMillis;
+
+    private volatile ShardMap current;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile long lastRefreshMillis;
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private final ScheduledExecutorService executor;
+
+    public StreamShards(AmazonKinesis kinesis, String streamName, long refreshInterval, TimeUnit unit) {
+        this.kinesis = kinesis;
+        this.streamName = streamName;
+        this.refreshIntervalMillis = unit.toMillis(refreshInterval);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "stream-shards-refresh");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Read the shards once, synchronously, and schedule the periodic refresh.
+     */
+    public void start() {
+        refresh();
+        if (refreshIntervalMillis > 0) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    refreshQuietly();
+                }
+            }, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the latest shard map; {@link #start()} must have been called
+     */
+    public ShardMap current() {
+        return current;
+    }
+
+    /**
+     * Tell the directory which shard a record was written to; an unknown shard starts a refresh.
+     */
+    public void reportShard(String shardId) {
+        if (shardId == null || current.contains(shardId)) {
+            return;
+        }
+        if (System.currentTimeMillis() - lastRefreshMillis < MIN_REFRESH_INTERVAL_MILLIS
+                || !refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        log.info(String.format("Record written to unknown shard %s, refreshing shards of %s", shardId, streamName));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refreshQuietly();
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    private void refresh() {
+        ShardMap map = ShardMap.describe(kinesis, streamName);
+        ShardMap previous = current;
+        current = map;
+        lastRefreshMillis = System.currentTimeMillis();
+        refreshes.incrementAndGet();
+        if (previous == null || previous.size() != map.size()) {
+            log.info(String.format("Stream %s has %d open shards", streamName, map.size()));
+        }
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (AmazonClientException e) {
+            // Keep routing with the previous map
+            log.warn(String.format("Couldn't refresh the shards of %s", streamName), e);
+        }
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.amazonaws.services.kinesis.producer;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import com.amazonaws.services.kinesis.crypto.KeyDerivation;
+import com.amazonaws.services.kinesis.kms.DataKey;
+
+/**
+ * Picks the subkey each record is encrypted with; called from every encryption thread at once.
+ *
+ * Subkeys are derived from the current data key in memory, so however many there are, the
+ * producer still makes one KMS GenerateDataKey per rotation period.
+ */
+public class SubkeyProvider {
+
+    // Longest context the envelope can carry; longer partition keys are hashed
+    private static final int MAX_CONTEXT_LENGTH = 0xFF;
+    private static final int BATCH_CONTEXT_LENGTH = 16;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Key a record is encrypted with and the context the consumer derives it from.
+     */
+    public static final class Subkey {
+        private final byte[] context;
+        private final SecretKeySpec key;
+
+        private Subkey(byte[] context, SecretKeySpec key) {
+            this.context = context;
+            this.key = key;
+        }
+
+        public byte[] getContext() {
+            return context;
+        }
+
+        public SecretKeySpec getKey() {
+            return key;
+        }
+    }
+
+    // The batch subkey of one encryption thread
+    private static final class Batch {
+        private DataKey dataKey;
+        private Subkey subkey;
+        private int remaining;
+    }
+
+    private final KeyDerivation derivation;
+    private final int batchRecords;
+
+    private final ThreadLocal<Batch> batches = new ThreadLocal<Batch>() {
+        @Override
+        protected Batch initialValue() {
+            return new Batch();
+        }
+    };
+
+    /**
+     * @param derivation how subkeys are chosen; must not be {@link KeyDerivation#NONE}
+     * @param batchRecords records encrypted with each batch subkey
+     */
+    public SubkeyProvider(KeyDerivation derivation, int batchRecords) {
+        if (derivation == KeyDerivation.NONE) {
+            throw new IllegalArgumentException("No subkeys without key derivation");
+        }
+        if (batchRecords < 1) {
+            throw new IllegalArgumentException("batchRecords must be at least 1");
+        }
+        this.derivation = derivation;
+        this.batchRecords = batchRecords;
+    }
+
+    /**
+     * @param dataKey data key the record would otherwise be encrypted with
+     */
+    public Subkey subkeyFor(DataKey dataKey, String partitionKey) {
+        if (derivation == KeyDerivation.PARTITION_KEY) {
+            byte[] context = partitionKey.getBytes(StandardCharsets.UTF_8);
+            if (context.length > MAX_CONTEXT_LENGTH) {
+                context = SHA256.get().digest(context);
+            }
+            return new Subkey(context, dataKey.deriveKey(context));
+        }
+
+        // A new batch starts when the data key rotates too, so no subkey outlives its data key
+        Batch batch = batches.get();
+        if (batch.dataKey != dataKey || batch.remaining == 0) {
+            byte[] context = new byte[BATCH_CONTEXT_LENGTH];
+            RANDOM.nextBytes(context);
+            batch.dataKey = dataKey;
+            batch.subkey = new Subkey(context, dataKey.deriveKey(context));
+            batch.remaining = batchRecords;
+        }
+        batch.remaining--;
+        return batch.subkey;
+    }
+
+    public KeyDerivation getDerivation() {
+        return derivation;
+    }
+
+}
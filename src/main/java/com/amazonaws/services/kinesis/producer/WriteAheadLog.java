@@ -0,0 +1,404 @@
+package com.amazonaws.services.kinesis.producer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.amazonaws.services.kinesis.segment.MappedSegmentWriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk-backed log of the encrypted records the producer has not yet had accepted by Kinesis.
+ *
+ * Records are appended to memory-mapped segments before they are sent; an append is a copy into
+ * the page cache, and a background thread forces the segments to disk every sync interval. Each
+ * append returns a ticket, the index of its segment. Once every record of a segment has been
+ * acknowledged and the log has moved on to the next segment, the segment file is deleted.
+ * Segments left over by a previous run are read back with {@link #replay(RecordVisitor)}.
+ *
+ * <pre>
+ * record: length (4) | CRC32 (4) | partition key length (2) | partition key (UTF-8) | data
+ * </pre>
+ *
+ * length counts the bytes after it and the CRC covers the partition key and data. Replay stops at
+ * a length of 0, the unused end of a segment, or at a record torn by a crash. Delivery is at least
+ * once: a replayed segment is sent in full, even the records acknowledged before the restart.
+ */
+public class WriteAheadLog {
+
+    /**
+     * What an append does when the log already holds its maximum number of segments.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until acknowledgements free a segment, which holds up the encryption stage.
+         */
+        BLOCK("block"),
+        /**
+         * Delete the oldest segment; its records are still sent, but are no longer on disk.
+         */
+        DROP_OLDEST("drop-oldest"),
+        /**
+         * Send the record without logging it.
+         */
+        BYPASS("bypass");
+
+        private final String name;
+
+        OverflowPolicy(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static OverflowPolicy fromName(String name) {
+            for (OverflowPolicy policy : values()) {
+                if (policy.name.equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown WAL overflow policy " + name);
+        }
+    }
+
+    /**
+     * Receives the records of leftover segments.
+     */
+    public interface RecordVisitor {
+        /**
+         * @param ticket pass to {@link #acknowledge(long)} once the record has been accepted
+         */
+        void visit(String partitionKey, ByteBuffer data, long ticket) throws InterruptedException;
+    }
+
+    /**
+     * Ticket of a record that was not logged; acknowledging it does nothing.
+     */
+    public static final long NO_TICKET = -1L;
+
+    private static final String SEGMENT_PREFIX = "wal";
+
+    // length and CRC
+    private static final int HEADER_BYTES = 8;
+
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final class Segment {
+        private final long index;
+        private final File file;
+        // Records not yet acknowledged
+        private final AtomicInteger pending = new AtomicInteger();
+        // Set once no more records are appended to the segment
+        private volatile boolean sealed;
+
+        private Segment(long index, File file) {
+            this.index = index;
+            this.file = file;
+        }
+    }
+
+    private final File directory;
+    private final int maxSegments;
+    private final OverflowPolicy overflowPolicy;
+    private final long syncIntervalMillis;
+
+    // Guarded by this
+    private final MappedSegmentWriter writer;
+    private Segment current;
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+    private final List<File> leftover;
+
+    private final ScheduledExecutorService syncExecutor;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    /**
+     * @param directory created if missing; segments already in it are kept for {@link #replay(RecordVisitor)}
+     * @param segmentBytes size of each segment file
+     * @param maxBytes disk space the segments may take, at least two segments
+     * @param overflowPolicy what an append does once maxBytes is reached
+     * @param syncIntervalMillis how often appended records are forced to disk
+     */
+    public WriteAheadLog(File directory, int segmentBytes, long maxBytes, OverflowPolicy overflowPolicy,
+                         long syncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.maxSegments = (int) Math.max(2L, Math.min(Integer.MAX_VALUE, maxBytes / segmentBytes));
+        this.overflowPolicy = overflowPolicy;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.leftover = MappedSegmentWriter.list(directory, SEGMENT_PREFIX);
+        this.writer = new MappedSegmentWriter(directory, SEGMENT_PREFIX, segmentBytes);
+        for (File file : leftover) {
+            long index = MappedSegmentWriter.indexOf(file, SEGMENT_PREFIX);
+            Segment segment = new Segment(index, file);
+            // Held until replay has read the whole segment
+            segment.pending.set(1);
+            segment.sealed = true;
+            segments.put(index, segment);
+        }
+        if (!leftover.isEmpty()) {
+            log.info(String.format("Found %d write-ahead log segments to replay in %s", leftover.size(), directory));
+        }
+
+        this.syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "write-ahead-log-sync");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        syncExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (RuntimeException e) {
+                    log.error("Write-ahead log sync failed", e);
+                }
+            }
+        }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Log one record; called from every encryption thread at once.
+     * @return the ticket to acknowledge once the record has been accepted, or {@link #NO_TICKET}
+     * if the log was full and the policy is {@link OverflowPolicy#BYPASS}
+     */
+    public long append(String partitionKey, ByteBuffer data) throws IOException, InterruptedException {
+        byte[] key = partitionKey.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(data.duplicate());
+        int length = 4 + 2 + key.length + data.remaining();
+
+        long ticket;
+        synchronized (this) {
+            if (!writer.fits(4 + length) && !makeRoom()) {
+                return NO_TICKET;
+            }
+            MappedByteBuffer out = writer.reserve(4 + length);
+            if (current == null || writer.getSegmentIndex() != current.index) {
+                rolled();
+            }
+            out.putInt(length);
+            out.putInt((int) crc.getValue());
+            out.putShort((short) key.length);
+            out.put(key);
+            out.put(data.duplicate());
+            current.pending.incrementAndGet();
+            ticket = current.index;
+        }
+        appended.incrementAndGet();
+        return ticket;
+    }
+
+    /**
+     * Mark a record as accepted; called from every sender thread at once.
+     */
+    public void acknowledge(long ticket) {
+        if (ticket == NO_TICKET) {
+            return;
+        }
+        Segment segment = segments.get(ticket);
+        // A segment dropped on overflow is gone already
+        if (segment != null && segment.pending.decrementAndGet() == 0 && segment.sealed) {
+            synchronized (this) {
+                delete(segment);
+            }
+        }
+    }
+
+    /**
+     * Read back the records of the segments left over by a previous run, oldest first. Each
+     * segment is deleted once all of its records have been acknowledged.
+     */
+    public void replay(RecordVisitor visitor) throws IOException, InterruptedException {
+        for (File file : leftover) {
+            Segment segment = segments.get(MappedSegmentWriter.indexOf(file, SEGMENT_PREFIX));
+            if (segment == null) {
+                continue;
+            }
+            try {
+                int count = read(file, segment, visitor);
+                log.info(String.format("Replayed %d records from %s", count, file));
+            } finally {
+                acknowledge(segment.index);
+            }
+        }
+    }
+
+    private int read(File file, Segment segment, RecordVisitor visitor) throws IOException, InterruptedException {
+        // Replayed records are sent from slices of this array
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        int count = 0;
+        while (in.remaining() >= HEADER_BYTES) {
+            int length = in.getInt();
+            if (length == 0) {
+                break;
+            }
+            if (length < 6 || length > in.remaining()) {
+                log.warn(String.format("Torn record at offset %d of %s", in.position() - 4, file));
+                break;
+            }
+            int crc = in.getInt();
+            byte[] key = new byte[in.getShort() & 0xFFFF];
+            int dataLength = length - 6 - key.length;
+            if (dataLength < 0) {
+                log.warn(String.format("Torn record at offset %d of %s", in.position() - 10, file));
+                break;
+            }
+            in.get(key);
+            ByteBuffer data = in.slice();
+            data.limit(dataLength);
+            in.position(in.position() + dataLength);
+
+            CRC32 check = new CRC32();
+            check.update(key);
+            check.update(data.duplicate());
+            if ((int) check.getValue() != crc) {
+                log.warn(String.format("Checksum mismatch in %s, skipping the rest of the segment", file));
+                break;
+            }
+            segment.pending.incrementAndGet();
+            replayed.incrementAndGet();
+            count++;
+            visitor.visit(new String(key, StandardCharsets.UTF_8), data, segment.index);
+        }
+        return count;
+    }
+
+    /**
+     * Force every appended record to disk.
+     */
+    public void sync() {
+        List<MappedByteBuffer> dirty;
+        synchronized (this) {
+            dirty = writer.takeUnforced();
+        }
+        // Outside the lock so appends carry on while the pages are written
+        for (MappedByteBuffer buffer : dirty) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Stop the sync timer and force the log. Segments with unacknowledged records are kept for the
+     * next run.
+     */
+    public void close() {
+        syncExecutor.shutdown();
+        synchronized (this) {
+            writer.close();
+            if (current != null) {
+                seal(current);
+                current = null;
+            }
+        }
+        log.info(String.format("Closed write-ahead log in %s, %d segments left", directory, segments.size()));
+    }
+
+    // Called with the lock held when the segment is full; false means skip logging the record
+    private boolean makeRoom() throws InterruptedException {
+        while (segments.size() >= maxSegments) {
+            switch (overflowPolicy) {
+                case BLOCK:
+                    wait(syncIntervalMillis);
+                    break;
+                case DROP_OLDEST:
+                    Segment oldest = segments.firstEntry().getValue();
+                    if (oldest == current) {
+                        return false;
+                    }
+                    overflows.incrementAndGet();
+                    log.warn(String.format("Write-ahead log full, dropping %d unacknowledged records of %s",
+                            oldest.pending.get(), oldest.file));
+                    delete(oldest);
+                    break;
+                default:
+                    overflows.incrementAndGet();
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // Called with the lock held once the writer has started a new segment
+    private void rolled() {
+        Segment previous = current;
+        current = new Segment(writer.getSegmentIndex(), writer.getSegmentFile());
+        segments.put(current.index, current);
+        if (previous != null) {
+            seal(previous);
+        }
+    }
+
+    private void seal(Segment segment) {
+        segment.sealed = true;
+        if (segment.pending.get() == 0) {
+            delete(segment);
+        }
+    }
+
+    private void delete(Segment segment) {
+        if (segments.remove(segment.index, segment)) {
+            if (!segment.file.delete()) {
+                log.warn("Couldn't delete write-ahead log segment " + segment.file);
+            }
+            notifyAll();
+        }
+    }
+
+    public long getAppended() {
+        return appended.get();
+    }
+
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * @return appends that found the log full and dropped a segment or skipped logging
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    /**
+     * @return segment files on disk, including the one being appended to
+     */
+    public int getSegments() {
+        return segments.size();
+    }
+
+    /**
+     * @return records appended or replayed and not yet acknowledged
+     */
+    public long getPending() {
+        long pending = 0;
+        for (Map.Entry<Long, Segment> entry : segments.entrySet()) {
+            pending += entry.getValue().pending.get();
+        }
+        return pending;
+    }
+
+}
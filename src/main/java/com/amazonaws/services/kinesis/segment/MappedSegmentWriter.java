@@ -0,0 +1,171 @@
+package com.amazonaws.services.kinesis.segment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Appends to a directory of fixed-size, memory-mapped segment files.
+ *
+ * An append is a copy into the page cache; nothing is written to disk until {@link #force()}.
+ * When a record does not fit in the current segment, a new segment is started and the old one is
+ * forced by the next {@link #force()}. Segment files are named prefix-NNNNNNNNNNNNNNNNNNNN.seg with
+ * an increasing index, and a writer never appends to segments that existed before it was opened.
+ * The unused tail of a segment is zero-filled.
+ *
+ * Not thread safe.
+ */
+public class MappedSegmentWriter {
+
+    public static final String SUFFIX = ".seg";
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentBytes;
+
+    private long segmentIndex;
+    private File segmentFile;
+    private MappedByteBuffer segment;
+
+    // Rolled segments not yet forced to disk
+    private final List<MappedByteBuffer> unforced = new ArrayList<MappedByteBuffer>();
+
+    /**
+     * @param directory created if missing
+     * @param prefix file name prefix of the segments
+     * @param segmentBytes size of each segment; a record larger than this gets a segment of its own size
+     */
+    public MappedSegmentWriter(File directory, String prefix, int segmentBytes) throws IOException {
+        if (segmentBytes < 1) {
+            throw new IllegalArgumentException("segmentBytes must be at least 1");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create segment directory " + directory);
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentBytes = segmentBytes;
+        List<File> existing = list(directory, prefix);
+        this.segmentIndex = existing.isEmpty() ? 0L : indexOf(existing.get(existing.size() - 1), prefix) + 1;
+    }
+
+    /**
+     * Reserve room for one record. The caller must put exactly length bytes into the returned buffer
+     * before the next call; the buffer must not be kept.
+     * @param length record length in bytes
+     * @return the current segment, positioned where the record goes
+     */
+    public MappedByteBuffer reserve(int length) throws IOException {
+        if (segment == null || segment.remaining() < length) {
+            roll(Math.max(segmentBytes, length));
+        }
+        return segment;
+    }
+
+    /**
+     * Write every record appended so far to disk.
+     */
+    public void force() {
+        for (MappedByteBuffer dirty : takeUnforced()) {
+            dirty.force();
+        }
+    }
+
+    /**
+     * Hand the forcing over to the caller, so it can happen without holding up appends: forcing a
+     * mapping does not touch its position, so it is safe while another thread keeps appending.
+     * @return the rolled segments not yet forced, and the current segment
+     */
+    public List<MappedByteBuffer> takeUnforced() {
+        List<MappedByteBuffer> dirty = new ArrayList<MappedByteBuffer>(unforced);
+        unforced.clear();
+        if (segment != null) {
+            dirty.add(segment);
+        }
+        return dirty;
+    }
+
+    /**
+     * @return true if length more bytes fit in the current segment without rolling
+     */
+    public boolean fits(int length) {
+        return segment != null && segment.remaining() >= length;
+    }
+
+    /**
+     * Force and stop using the current segment; the next append starts a new one.
+     */
+    public void close() {
+        force();
+        if (segment != null) {
+            segment = null;
+            segmentFile = null;
+            segmentIndex++;
+        }
+    }
+
+    /**
+     * @return index of the segment records are appended to, or -1 before the first append
+     */
+    public long getSegmentIndex() {
+        return segment == null ? -1L : segmentIndex;
+    }
+
+    public File getSegmentFile() {
+        return segmentFile;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private void roll(int size) throws IOException {
+        if (segment != null) {
+            unforced.add(segment);
+            segmentIndex++;
+        }
+        segmentFile = fileFor(directory, prefix, segmentIndex);
+        RandomAccessFile file = new RandomAccessFile(segmentFile, "rw");
+        try {
+            // The mapping stays valid after the channel is closed
+            segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return the segment files of prefix in directory, oldest first
+     */
+    public static List<File> list(File directory, String prefix) {
+        List<File> segments = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return segments;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix + "-") && name.endsWith(SUFFIX)) {
+                segments.add(file);
+            }
+        }
+        // Fixed-width indexes sort by name
+        Collections.sort(segments);
+        return segments;
+    }
+
+    public static File fileFor(File directory, String prefix, long index) {
+        return new File(directory, String.format("%s-%020d%s", prefix, index, SUFFIX));
+    }
+
+    public static long indexOf(File segment, String prefix) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(prefix.length() + 1, name.length() - SUFFIX.length()));
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.amazonaws.services.kinesis.utils;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reads the number of heap bytes allocated by the current thread, where the JVM supports it.
+ */
+public final class AllocationCounter {
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = threadMXBean();
+
+    private AllocationCounter() {
+    }
+
+    /**
+     * @return bytes allocated so far by the calling thread, or -1 if not supported
+     */
+    public static long currentThreadAllocatedBytes() {
+        if (THREAD_MX_BEAN == null) {
+            return -1L;
+        }
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+                if (sunBean.isThreadAllocatedMemorySupported()) {
+                    sunBean.setThreadAllocatedMemoryEnabled(true);
+                    return sunBean;
+                }
+            }
+        } catch (LinkageError e) {
+            // Not a HotSpot-compatible JVM
+        } catch (UnsupportedOperationException e) {
+            // Allocation tracking is not available
+        }
+        return null;
+    }
+
+}
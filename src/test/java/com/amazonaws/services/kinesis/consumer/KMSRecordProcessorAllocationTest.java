@@ -0,0 +1,123 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.crypto.CipherSuite;
+import com.amazonaws.services.kinesis.kms.DataKey;
+import com.amazonaws.services.kinesis.kms.DataKeyCache;
+import com.amazonaws.services.kinesis.kms.KMSDecryptionService;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.producer.Generator;
+import com.amazonaws.services.kinesis.utils.AllocationCounter;
+import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.services.kms.model.DecryptResult;
+
+/**
+* Guards the allocation rate of the consumer hot path: a fixed batch of binary envelopes is decrypted
+* and delivered on the calling thread, and the heap bytes that thread allocates per record must
+* stay under a ceiling. A change that adds per-record copies or eager log strings fails here.
+*/
+public class KMSRecordProcessorAllocationTest {
+
+    private static final int BATCH_SIZE = 100;
+    private static final int PAYLOAD_SIZE = 512;
+    private static final int WARMUP_BATCHES = 2000;
+    private static final int MEASURED_BATCHES = 200;
+
+    // What is left after decrypting into the reused plaintext buffer is mostly the cipher's own
+    // buffers, which GCM needs more of; one more copy of the payload goes over either ceiling
+    private static final long MAX_GCM_BYTES_PER_RECORD = 1536L;
+    private static final long MAX_ECB_BYTES_PER_RECORD = 1152L;
+
+    private static final byte[] PLAINTEXT_KEY = new byte[16];
+    private static final byte[] ENCRYPTED_KEY = "allocation-test-encrypted-key".getBytes();
+
+    private ExecutorService checkpointExecutor;
+
+    @Before
+    public void setUp() {
+        checkpointExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        checkpointExecutor.shutdown();
+    }
+
+    @Test
+    public void gcmEnvelopeStaysUnderAllocationCeiling() {
+        assertAllocationCeiling(CipherSuite.AES_GCM, MAX_GCM_BYTES_PER_RECORD);
+    }
+
+    @Test
+    public void ecbEnvelopeStaysUnderAllocationCeiling() {
+        assertAllocationCeiling(CipherSuite.AES_ECB_PKCS5, MAX_ECB_BYTES_PER_RECORD);
+    }
+
+    private void assertAllocationCeiling(CipherSuite suite, long maxBytesPerRecord) {
+        assumeTrue("Per-thread allocation counting is not supported by this JVM",
+                AllocationCounter.currentThreadAllocatedBytes() >= 0);
+
+        KMSRecordProcessor processor = RecordProcessorFixture.processor(
+                new KMSDecryptionService(stubKms(), new DataKeyCache(1000, 1, TimeUnit.HOURS)), checkpointExecutor);
+        List<Record> records = batch(suite);
+
+        // Let the JIT settle, so the measured batches see the steady state
+        for (int i = 0; i < WARMUP_BATCHES; i++) {
+            processor.processRecords(records, RecordProcessorFixture.NO_OP_CHECKPOINTER);
+        }
+
+        long before = AllocationCounter.currentThreadAllocatedBytes();
+        for (int i = 0; i < MEASURED_BATCHES; i++) {
+            processor.processRecords(records, RecordProcessorFixture.NO_OP_CHECKPOINTER);
+        }
+        long perRecord = (AllocationCounter.currentThreadAllocatedBytes() - before)
+                / ((long) MEASURED_BATCHES * BATCH_SIZE);
+
+        assertTrue(suite.getName() + " allocated " + perRecord + " bytes per record, ceiling is " + maxBytesPerRecord,
+                perRecord <= maxBytesPerRecord);
+    }
+
+    private static List<Record> batch(CipherSuite suite) {
+        DataKey key = new DataKey(ByteBuffer.wrap(PLAINTEXT_KEY), ByteBuffer.wrap(ENCRYPTED_KEY));
+        byte[] data = RecordProcessorFixture.payload(PAYLOAD_SIZE);
+
+        List<Record> records = new ArrayList<Record>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            String partitionKey = "partitionKey-" + i;
+            records.add(RecordProcessorFixture.record(i, partitionKey,
+                    Generator.EncryptDataAsEnvelope(suite, key, partitionKey, data, (byte) 0)));
+        }
+        return records;
+    }
+
+    // Answers every Decrypt with the plaintext key, so the test runs offline
+    private static AWSKMS stubKms() {
+        return (AWSKMS) Proxy.newProxyInstance(AWSKMS.class.getClassLoader(), new Class<?>[] {AWSKMS.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (!method.getName().equals("decrypt")) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        return new DecryptResult().withPlaintext(ByteBuffer.wrap(PLAINTEXT_KEY.clone()));
+                    }
+                });
+    }
+
+}
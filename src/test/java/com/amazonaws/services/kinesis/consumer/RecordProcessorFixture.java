@@ -0,0 +1,93 @@
+package com.amazonaws.services.kinesis.consumer;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.kms.KMSDecryptionService;
+import com.amazonaws.services.kinesis.metrics.LogSampler;
+import com.amazonaws.services.kinesis.metrics.MetricsRegistry;
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+* Records and a KMSRecordProcessor for the allocation test and the benchmarks, which decrypt the
+* same batch over and over on the calling thread. Shared with the benchmarks through the test jar.
+*/
+public final class RecordProcessorFixture {
+
+    public static final String SHARD_ID = "shardId-000000000000";
+
+    /**
+* Drops every checkpoint, so a batch can be processed again.
+*/
+    public static final IRecordProcessorCheckpointer NO_OP_CHECKPOINTER = new IRecordProcessorCheckpointer() {
+        @Override
+        public void checkpoint() {
+        }
+
+        @Override
+        public void checkpoint(Record record) {
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber) {
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber, long subSequenceNumber) {
+        }
+    };
+
+    // A record that cannot be decrypted means the fixture is broken, not that the record is
+    private static final DeadLetterSink FAILING_SINK = new DeadLetterSink() {
+        @Override
+        public void accept(String shardId, Record record, Throwable cause) {
+            throw new IllegalStateException("Record " + record.getSequenceNumber() + " failed", cause);
+        }
+    };
+
+    private static final BigInteger FIRST_SEQUENCE_NUMBER =
+            new BigInteger("49590338271490256608559692538361571095921575989136588898");
+
+    private RecordProcessorFixture() {
+    }
+
+    /**
+* @return a processor initialized for {@link #SHARD_ID} that delivers records without retrying,
+* checkpointing or reassembling them, and throws if a record fails
+*/
+    public static KMSRecordProcessor processor(KMSDecryptionService decryptionService,
+                                               ExecutorService checkpointExecutor) {
+        KMSRecordProcessor processor = new KMSRecordProcessor(decryptionService, null,
+                new RetryPolicy(1, 0L, 0L), FAILING_SINK, null,
+                new CheckpointPolicy(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE), checkpointExecutor,
+                new MetricsRegistry(), new LogSampler(0.0), null, new ReassemblyPolicy(Long.MAX_VALUE, 0L), null);
+        processor.initialize(SHARD_ID);
+        return processor;
+    }
+
+    /**
+* @return the index-th record of a batch, with sequence numbers in shard order
+*/
+    public static Record record(int index, String partitionKey, ByteBuffer data) {
+        return new Record()
+                .withSequenceNumber(FIRST_SEQUENCE_NUMBER.add(BigInteger.valueOf(index)).toString())
+                .withPartitionKey(partitionKey)
+                .withData(data);
+    }
+
+    /**
+* @return printable ASCII of the given size, like the telemetry the producer sends
+*/
+    public static byte[] payload(int size) {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (' ' + random.nextInt(95));
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,274 @@
+package com.amazonaws.services.kinesis.local;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.DescribeStreamResult;
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.SequenceNumberRange;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.StreamDescription;
+
+/**
+ * In-process stand-in for a Kinesis stream supporting PutRecord, PutRecords and DescribeStream.
+ *
+ * The hash key range is split evenly between the shards and records are routed by the MD5 of
+ * their partition key, or by their explicit hash key, like the real service. Each shard hands
+ * out increasing sequence numbers and keeps its records in a queue that {@link InMemoryWorker}
+ * reads from.
+ */
+public class InMemoryKinesisStream {
+
+    private static final BigInteger HASH_KEY_SPACE = BigInteger.ONE.shiftLeft(128);
+
+    private final String streamName;
+    private final ShardState[] shards;
+    private final int maxRecordsPerShardPerSecond;
+
+    public InMemoryKinesisStream(String streamName, int shardCount) {
+        this(streamName, shardCount, 0);
+    }
+
+    /**
+     * @param maxRecordsPerShardPerSecond records a shard accepts per second before failing puts with
+     * ProvisionedThroughputExceeded, or 0 for no limit
+     */
+    public InMemoryKinesisStream(String streamName, int shardCount, int maxRecordsPerShardPerSecond) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be at least 1");
+        }
+        this.streamName = streamName;
+        this.maxRecordsPerShardPerSecond = maxRecordsPerShardPerSecond;
+        this.shards = new ShardState[shardCount];
+        BigInteger count = BigInteger.valueOf(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            BigInteger start = HASH_KEY_SPACE.multiply(BigInteger.valueOf(i)).divide(count);
+            BigInteger end = HASH_KEY_SPACE.multiply(BigInteger.valueOf(i + 1)).divide(count).subtract(BigInteger.ONE);
+            shards[i] = new ShardState(i, start, end);
+        }
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public String getShardId(int shardIndex) {
+        return shards[shardIndex].shardId;
+    }
+
+    public PutRecordResult putRecord(PutRecordRequest request) {
+        ShardState shard = route(request.getPartitionKey(), request.getExplicitHashKey());
+        String sequenceNumber = shard.append(request.getPartitionKey(), request.getData());
+        if (sequenceNumber == null) {
+            throw new ProvisionedThroughputExceededException("Rate exceeded for shard " + shard.shardId);
+        }
+        return new PutRecordResult().withShardId(shard.shardId).withSequenceNumber(sequenceNumber);
+    }
+
+    public PutRecordsResult putRecords(PutRecordsRequest request) {
+        List<PutRecordsResultEntry> results = new ArrayList<PutRecordsResultEntry>(request.getRecords().size());
+        int failed = 0;
+        for (PutRecordsRequestEntry entry : request.getRecords()) {
+            ShardState shard = route(entry.getPartitionKey(), entry.getExplicitHashKey());
+            String sequenceNumber = shard.append(entry.getPartitionKey(), entry.getData());
+            if (sequenceNumber == null) {
+                failed++;
+                results.add(new PutRecordsResultEntry()
+                        .withErrorCode("ProvisionedThroughputExceededException")
+                        .withErrorMessage("Rate exceeded for shard " + shard.shardId));
+            } else {
+                results.add(new PutRecordsResultEntry().withShardId(shard.shardId).withSequenceNumber(sequenceNumber));
+            }
+        }
+        return new PutRecordsResult().withFailedRecordCount(failed).withRecords(results);
+    }
+
+    public DescribeStreamResult describeStream() {
+        List<Shard> shardList = new ArrayList<Shard>(shards.length);
+        for (ShardState shard : shards) {
+            shardList.add(new Shard()
+                    .withShardId(shard.shardId)
+                    .withHashKeyRange(new HashKeyRange()
+                            .withStartingHashKey(shard.startingHashKey.toString())
+                            .withEndingHashKey(shard.endingHashKey.toString()))
+                    .withSequenceNumberRange(new SequenceNumberRange()
+                            .withStartingSequenceNumber(shard.sequenceNumber(0L))));
+        }
+        return new DescribeStreamResult().withStreamDescription(new StreamDescription()
+                .withStreamName(streamName)
+                .withStreamARN("arn:aws:kinesis:local:000000000000:stream/" + streamName)
+                .withStreamStatus("ACTIVE")
+                .withHasMoreShards(false)
+                .withShards(shardList));
+    }
+
+    /**
+     * Take up to maxRecords records from a shard, waiting up to timeout for the first one.
+     * @return the records in sequence number order, empty if none arrived in time
+     */
+    public List<Record> poll(int shardIndex, int maxRecords, long timeout, TimeUnit unit) throws InterruptedException {
+        LinkedBlockingQueue<Record> queue = shards[shardIndex].records;
+        List<Record> batch = new ArrayList<Record>();
+        Record first = queue.poll(timeout, unit);
+        if (first != null) {
+            batch.add(first);
+            queue.drainTo(batch, maxRecords - 1);
+        }
+        return batch;
+    }
+
+    /**
+     * @return how long the oldest record not yet polled from a shard has waited, 0 if there is none,
+     * like the MillisBehindLatest of GetRecords
+     */
+    public long getMillisBehindLatest(int shardIndex) {
+        Record oldest = shards[shardIndex].records.peek();
+        return oldest == null ? 0L
+                : Math.max(0L, System.currentTimeMillis() - oldest.getApproximateArrivalTimestamp().getTime());
+    }
+
+    /**
+     * @return records accepted by a shard since the stream was created
+     */
+    public long getRecordsPut(int shardIndex) {
+        ShardState shard = shards[shardIndex];
+        synchronized (shard) {
+            return shard.nextSequence;
+        }
+    }
+
+    /**
+     * @return records put to a shard but not yet polled
+     */
+    public int getPendingRecords(int shardIndex) {
+        return shards[shardIndex].records.size();
+    }
+
+    /**
+     * @return an AmazonKinesis client backed by this stream; operations other than PutRecord,
+     * PutRecords and DescribeStream throw UnsupportedOperationException
+     */
+    public AmazonKinesis client() {
+        return (AmazonKinesis) Proxy.newProxyInstance(AmazonKinesis.class.getClassLoader(),
+                new Class<?>[] {AmazonKinesis.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return InMemoryKms.objectMethod(proxy, method, args, "InMemoryKinesisStream");
+                        }
+                        Class<?>[] types = method.getParameterTypes();
+                        if (method.getName().equals("putRecord") && types.length == 1) {
+                            return putRecord((PutRecordRequest) args[0]);
+                        }
+                        if (method.getName().equals("putRecords")) {
+                            return putRecords((PutRecordsRequest) args[0]);
+                        }
+                        if (method.getName().equals("describeStream")) {
+                            return describeStream();
+                        }
+                        if (method.getName().equals("shutdown") || method.getName().startsWith("set")) {
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private ShardState route(String partitionKey, String explicitHashKey) {
+        BigInteger hashKey = explicitHashKey != null ? new BigInteger(explicitHashKey) : hashKey(partitionKey);
+        if (hashKey.signum() < 0 || hashKey.compareTo(HASH_KEY_SPACE) >= 0) {
+            throw new IllegalArgumentException("Hash key out of range: " + hashKey);
+        }
+        int index = hashKey.multiply(BigInteger.valueOf(shards.length)).divide(HASH_KEY_SPACE).intValue();
+        // Integer division can land one shard early at a range boundary
+        while (index + 1 < shards.length && hashKey.compareTo(shards[index + 1].startingHashKey) >= 0) {
+            index++;
+        }
+        return shards[index];
+    }
+
+    private static BigInteger hashKey(String partitionKey) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return new BigInteger(1, md5.digest(partitionKey.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final class ShardState {
+        private final int index;
+        private final String shardId;
+        private final BigInteger startingHashKey;
+        private final BigInteger endingHashKey;
+        private final LinkedBlockingQueue<Record> records = new LinkedBlockingQueue<Record>();
+
+        private long nextSequence;
+        private long windowStartMillis;
+        private int windowCount;
+
+        private ShardState(int index, BigInteger startingHashKey, BigInteger endingHashKey) {
+            this.index = index;
+            this.shardId = String.format("shardId-%012d", index);
+            this.startingHashKey = startingHashKey;
+            this.endingHashKey = endingHashKey;
+        }
+
+        // Returns the sequence number, or null if the shard is over its rate limit
+        private synchronized String append(String partitionKey, ByteBuffer data) {
+            if (maxRecordsPerShardPerSecond > 0) {
+                long now = System.currentTimeMillis();
+                if (now - windowStartMillis >= 1000L) {
+                    windowStartMillis = now;
+                    windowCount = 0;
+                }
+                if (windowCount >= maxRecordsPerShardPerSecond) {
+                    return null;
+                }
+                windowCount++;
+            }
+
+            String sequenceNumber = sequenceNumber(nextSequence++);
+            // Consumers must not see later changes to the producer's buffer
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+            copy.put(data.duplicate());
+            copy.flip();
+            records.add(new Record()
+                    .withPartitionKey(partitionKey)
+                    .withSequenceNumber(sequenceNumber)
+                    .withApproximateArrivalTimestamp(new Date())
+                    .withData(copy));
+            return sequenceNumber;
+        }
+
+        // Sequence numbers increase within a shard and never collide across shards
+        private String sequenceNumber(long sequence) {
+            return BigInteger.valueOf(index + 1).shiftLeft(64).add(BigInteger.valueOf(sequence)).toString();
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.amazonaws.services.kinesis.local;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.services.kms.model.DecryptRequest;
+import com.amazonaws.services.kms.model.DecryptResult;
+import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyResult;
+import com.amazonaws.services.kms.model.InvalidCiphertextException;
+
+/**
+ * In-process stand-in for KMS supporting GenerateDataKey and Decrypt, with configurable latency
+ * and throttling, for offline end-to-end runs and benchmarks.
+ *
+ * Encrypted keys are random blobs of a realistic size mapped to their plaintext, so they can
+ * only be decrypted by the instance that generated them.
+ */
+public class InMemoryKms {
+
+    // Roughly the size of a real KMS ciphertext blob for an AES_128 data key
+    private static final int CIPHERTEXT_BLOB_LENGTH = 151;
+
+    private final long latencyMillis;
+    private final double throttleRate;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<ByteBuffer, byte[]> keys = new ConcurrentHashMap<ByteBuffer, byte[]>();
+
+    private final AtomicLong generateDataKeyCalls = new AtomicLong();
+    private final AtomicLong decryptCalls = new AtomicLong();
+    private final AtomicLong throttledCalls = new AtomicLong();
+
+    public InMemoryKms() {
+        this(0L, 0.0);
+    }
+
+    /**
+     * @param latencyMillis time every call takes
+     * @param throttleRate fraction of calls, between 0 and 1, that fail with a ThrottlingException
+     */
+    public InMemoryKms(long latencyMillis, double throttleRate) {
+        this.latencyMillis = latencyMillis;
+        this.throttleRate = throttleRate;
+    }
+
+    public GenerateDataKeyResult generateDataKey(GenerateDataKeyRequest request) {
+        generateDataKeyCalls.incrementAndGet();
+        simulateCall();
+
+        int length = 16;
+        if (request.getNumberOfBytes() != null) {
+            length = request.getNumberOfBytes();
+        } else if ("AES_256".equals(request.getKeySpec())) {
+            length = 32;
+        }
+
+        byte[] plaintext = new byte[length];
+        byte[] blob = new byte[CIPHERTEXT_BLOB_LENGTH];
+        random.nextBytes(plaintext);
+        random.nextBytes(blob);
+        keys.put(ByteBuffer.wrap(blob), plaintext);
+        return new GenerateDataKeyResult()
+                .withKeyId(request.getKeyId())
+                .withPlaintext(ByteBuffer.wrap(plaintext.clone()))
+                .withCiphertextBlob(ByteBuffer.wrap(blob.clone()));
+    }
+
+    public DecryptResult decrypt(DecryptRequest request) {
+        decryptCalls.incrementAndGet();
+        simulateCall();
+
+        byte[] plaintext = keys.get(request.getCiphertextBlob());
+        if (plaintext == null) {
+            throw new InvalidCiphertextException("Unknown ciphertext blob");
+        }
+        return new DecryptResult().withPlaintext(ByteBuffer.wrap(plaintext.clone()));
+    }
+
+    /**
+     * @return an AWSKMS client served by this stand-in; operations other than GenerateDataKey
+     * and Decrypt throw UnsupportedOperationException
+     */
+    public AWSKMS client() {
+        return (AWSKMS) Proxy.newProxyInstance(AWSKMS.class.getClassLoader(), new Class<?>[] {AWSKMS.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return objectMethod(proxy, method, args, "InMemoryKms");
+                        }
+                        if (method.getName().equals("decrypt")) {
+                            return decrypt((DecryptRequest) args[0]);
+                        }
+                        if (method.getName().equals("generateDataKey")) {
+                            return generateDataKey((GenerateDataKeyRequest) args[0]);
+                        }
+                        if (method.getName().equals("shutdown") || method.getName().startsWith("set")) {
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private void simulateCall() {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate) {
+            throttledCalls.incrementAndGet();
+            AmazonServiceException e = new AmazonServiceException("Rate exceeded");
+            e.setErrorCode("ThrottlingException");
+            e.setStatusCode(400);
+            e.setServiceName("AWSKMS");
+            throw e;
+        }
+    }
+
+    // equals, hashCode and toString of a client proxy
+    static Object objectMethod(Object proxy, Method method, Object[] args, String name) {
+        if (method.getName().equals("equals")) {
+            return proxy == args[0];
+        }
+        if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        return name;
+    }
+
+    public long getGenerateDataKeyCalls() {
+        return generateDataKeyCalls.get();
+    }
+
+    public long getDecryptCalls() {
+        return decryptCalls.get();
+    }
+
+    public long getThrottledCalls() {
+        return throttledCalls.get();
+    }
+
+}
@@ -0,0 +1,188 @@
+package com.amazonaws.services.kinesis.local;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
+import com.amazonaws.services.kinesis.consumer.FetchTuner;
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Drives record processors over an {@link InMemoryKinesisStream} the way the KCL worker does:
+ * one processor and one thread per shard, calling processRecords even for empty batches, with
+ * checkpoints kept in memory. With a {@link FetchTuner}, each shard's polls are limited and spaced
+ * as AdaptiveKinesisClient does for the KCL.
+ */
+public class InMemoryWorker {
+
+    private static final Log LOG = LogFactory.getLog(InMemoryWorker.class);
+
+    /**
+     * Notified on the shard's thread after each batch has been processed.
+     */
+    public interface BatchListener {
+        void onBatch(String shardId, List<Record> records);
+    }
+
+    private final InMemoryKinesisStream stream;
+    private final IRecordProcessorFactory processorFactory;
+    private final int maxRecords;
+    private final long idleTimeBetweenReadsMillis;
+    private final BatchListener listener;
+    private final FetchTuner fetchTuner;
+
+    private final Map<String, String> checkpoints = new ConcurrentHashMap<String, String>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    private volatile boolean running;
+    private volatile ShutdownReason shutdownReason = ShutdownReason.ZOMBIE;
+
+    /**
+     * @param maxRecords most records handed to processRecords at once
+     * @param idleTimeBetweenReadsMillis longest wait for records before processRecords is called with none
+     * @param listener notified after each batch, or null
+     */
+    public InMemoryWorker(InMemoryKinesisStream stream, IRecordProcessorFactory processorFactory, int maxRecords,
+                          long idleTimeBetweenReadsMillis, BatchListener listener) {
+        this(stream, processorFactory, maxRecords, idleTimeBetweenReadsMillis, listener, null);
+    }
+
+    /**
+     * @param idleTimeBetweenReadsMillis with a tuner, the wait after an empty batch
+     * @param fetchTuner decides the limit and spacing of each shard's polls, or null
+     */
+    public InMemoryWorker(InMemoryKinesisStream stream, IRecordProcessorFactory processorFactory, int maxRecords,
+                          long idleTimeBetweenReadsMillis, BatchListener listener, FetchTuner fetchTuner) {
+        this.stream = stream;
+        this.processorFactory = processorFactory;
+        this.maxRecords = maxRecords;
+        this.idleTimeBetweenReadsMillis = idleTimeBetweenReadsMillis;
+        this.listener = listener;
+        this.fetchTuner = fetchTuner;
+    }
+
+    /**
+     * Start one processing thread per shard.
+     */
+    public synchronized void start() {
+        running = true;
+        for (int i = 0; i < stream.getShardCount(); i++) {
+            final int shardIndex = i;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    processShard(shardIndex);
+                }
+            }, "in-memory-worker-" + stream.getShardId(i));
+            threads.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * Stop every shard thread once its current batch is done and shut its processor down.
+     * @param reason TERMINATE to have processors finish their outstanding work as at the end of a shard
+     */
+    public void shutdown(ShutdownReason reason) throws InterruptedException {
+        List<Thread> started;
+        synchronized (this) {
+            shutdownReason = reason;
+            running = false;
+            started = new ArrayList<Thread>(threads);
+            threads.clear();
+        }
+        for (Thread t : started) {
+            t.join();
+        }
+    }
+
+    /**
+     * @return the last sequence number checkpointed for a shard, or null
+     */
+    public String getCheckpoint(String shardId) {
+        return checkpoints.get(shardId);
+    }
+
+    private void processShard(int shardIndex) {
+        String shardId = stream.getShardId(shardIndex);
+        IRecordProcessor processor = processorFactory.createProcessor();
+        InMemoryCheckpointer checkpointer = new InMemoryCheckpointer(shardId);
+        processor.initialize(shardId);
+
+        try {
+            while (running) {
+                List<Record> records = fetchTuner != null ? pollTuned(shardIndex, shardId)
+                        : stream.poll(shardIndex, maxRecords, idleTimeBetweenReadsMillis, TimeUnit.MILLISECONDS);
+                if (!records.isEmpty()) {
+                    checkpointer.lastSequenceNumber = records.get(records.size() - 1).getSequenceNumber();
+                }
+                processor.processRecords(records, checkpointer);
+                if (listener != null && !records.isEmpty()) {
+                    listener.onBatch(shardId, records);
+                }
+                if (fetchTuner != null && records.isEmpty()) {
+                    // As the KCL does after an empty GetRecords
+                    Thread.sleep(idleTimeBetweenReadsMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while reading " + shardId);
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.error("Record processor for " + shardId + " failed", e);
+        } finally {
+            processor.shutdown(checkpointer, shutdownReason);
+        }
+    }
+
+    // No records until the shard's poll interval has passed, then what the tuned limit allows
+    private List<Record> pollTuned(int shardIndex, String shardId) throws InterruptedException {
+        if (!fetchTuner.tryPoll(shardId)) {
+            return new ArrayList<Record>();
+        }
+        List<Record> records = stream.poll(shardIndex, fetchTuner.getMaxRecords(shardId), 0L, TimeUnit.MILLISECONDS);
+        fetchTuner.fetched(shardId, stream.getMillisBehindLatest(shardIndex));
+        return records;
+    }
+
+    private final class InMemoryCheckpointer implements IRecordProcessorCheckpointer {
+        private final String shardId;
+        private volatile String lastSequenceNumber;
+
+        private InMemoryCheckpointer(String shardId) {
+            this.shardId = shardId;
+        }
+
+        @Override
+        public void checkpoint() {
+            if (lastSequenceNumber != null) {
+                checkpoints.put(shardId, lastSequenceNumber);
+            }
+        }
+
+        @Override
+        public void checkpoint(Record record) {
+            checkpoints.put(shardId, record.getSequenceNumber());
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber) {
+            checkpoints.put(shardId, sequenceNumber);
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber, long subSequenceNumber) {
+            checkpoints.put(shardId, sequenceNumber);
+        }
+    }
+
+}
@@ -0,0 +1,576 @@
+package com.amazonaws.services.kinesis.local;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
+import com.amazonaws.services.kinesis.consumer.CheckpointPolicy;
+import com.amazonaws.services.kinesis.consumer.DeadLetterSink;
+import com.amazonaws.services.kinesis.consumer.FetchPolicy;
+import com.amazonaws.services.kinesis.consumer.FetchTuner;
+import com.amazonaws.services.kinesis.consumer.KMSKinesisApplication;
+import com.amazonaws.services.kinesis.consumer.KMSRecordProcessorFactory;
+import com.amazonaws.services.kinesis.consumer.MappedSegmentRecordSink;
+import com.amazonaws.services.kinesis.consumer.ObjectSink;
+import com.amazonaws.services.kinesis.consumer.ReassemblyPolicy;
+import com.amazonaws.services.kinesis.consumer.RetryPolicy;
+import com.amazonaws.services.kinesis.compression.AdaptiveCompressor;
+import com.amazonaws.services.kinesis.compression.Codec;
+import com.amazonaws.services.kinesis.crypto.CipherSuite;
+import com.amazonaws.services.kinesis.crypto.KeyDerivation;
+import com.amazonaws.services.kinesis.kms.DataKey;
+import com.amazonaws.services.kinesis.kms.DataKeyCache;
+import com.amazonaws.services.kinesis.kms.DataKeyManager;
+import com.amazonaws.services.kinesis.kms.KMSDecryptionService;
+import com.amazonaws.services.kinesis.metrics.LatencyHistogram;
+import com.amazonaws.services.kinesis.metrics.LogSampler;
+import com.amazonaws.services.kinesis.metrics.MetricsRegistry;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.producer.BatchingProducer;
+import com.amazonaws.services.kinesis.producer.ChunkedEncryptor;
+import com.amazonaws.services.kinesis.producer.Generator;
+import com.amazonaws.services.kinesis.producer.PartitionStrategy;
+import com.amazonaws.services.kinesis.producer.Partitioner;
+import com.amazonaws.services.kinesis.producer.ProducerPipeline;
+import com.amazonaws.services.kinesis.producer.ShardRateLimiter;
+import com.amazonaws.services.kinesis.producer.StreamShards;
+import com.amazonaws.services.kinesis.producer.SubkeyProvider;
+import com.amazonaws.services.kinesis.producer.WriteAheadLog;
+import com.amazonaws.services.kms.AWSKMS;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Offline end-to-end load test: a ProducerPipeline encrypts records with data keys from
+ * {@link InMemoryKms} and puts them to an {@link InMemoryKinesisStream}, and an
+ * {@link InMemoryWorker} feeds them to KMSRecordProcessor, which decrypts them.
+ *
+ * Reports records/s, MB/s and produce-to-consume latency percentiles. Latency is measured from
+ * just before a record is encrypted until processRecords returns for its batch; a record whose
+ * decryption is being retried, or whose data key is still being decrypted, counts as consumed at
+ * that point too. Objects sent as chunk records alongside the records are checked against their
+ * CRC once reassembled.
+ */
+public class LoadTest {
+
+    private static final String RECORDS_PARAM = "records";
+    private static final String SHARDS_PARAM = "shards";
+    private static final String ENCRYPT_THREADS_PARAM = "encrypt-threads";
+    private static final String SENDER_THREADS_PARAM = "sender-threads";
+    private static final String PAYLOAD_BYTES_PARAM = "payload-bytes";
+    private static final String KMS_LATENCY_PARAM = "kms-latency-ms";
+    private static final String KMS_THROTTLE_PARAM = "kms-throttle-rate";
+    private static final String SHARD_LIMIT_PARAM = "shard-records-per-second";
+    private static final String ENVELOPE_PARAM = "envelope-format";
+    private static final String CIPHER_SUITE_PARAM = "cipher-suite";
+    private static final String BATCH_LINGER_PARAM = "batch-linger-ms";
+    private static final String DECRYPT_THREADS_PARAM = "decrypt-threads";
+    private static final String COMPRESSION_PARAM = "compression";
+    private static final String METRICS_PARAM = "metrics";
+    private static final String SINK_DIRECTORY_PARAM = "sink-directory";
+    private static final String PARTITIONER_PARAM = "partitioner";
+    private static final String WAL_DIRECTORY_PARAM = "wal-directory";
+    private static final String RATE_LIMIT_PARAM = "shard-max-records-per-second";
+    private static final String KEY_DERIVATION_PARAM = "key-derivation";
+    private static final String ASYNC_KEY_DECRYPTION_PARAM = "async-key-decryption";
+    private static final String OBJECTS_PARAM = "objects";
+    private static final String OBJECT_BYTES_PARAM = "object-bytes";
+    private static final String CHUNK_BYTES_PARAM = "chunk-bytes";
+    private static final String ADAPTIVE_FETCH_PARAM = "adaptive-fetch";
+
+    private static final String STREAM_NAME = "load-test";
+    private static final String PARTITION_KEY_PREFIX = "partitionKey-";
+    private static final String KMS_ALIAS = "load-test";
+
+    // The data key is rotated after this many records or this long, whichever comes first
+    private static final int KEY_ROTATION_RECORDS = 10000;
+    private static final long KEY_ROTATION_SECONDS = 60L;
+
+    private static final int QUEUE_CAPACITY = 10000;
+
+    private static final int KEY_DERIVATION_BATCH_RECORDS = 1000;
+
+    private static final int WAL_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final long WAL_MAX_BYTES = 1024L * 1024 * 1024;
+    private static final long WAL_SYNC_MILLIS = 100L;
+
+    // Same read settings as the KCL defaults
+    private static final int MAX_RECORDS = 10000;
+    private static final long IDLE_TIME_BETWEEN_READS_MILLIS = 1000L;
+
+    private static final long BACKOFF_TIME_IN_MILLIS = 100L;
+    private static final long CONSUME_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Log LOG = LogFactory.getLog(LoadTest.class);
+
+    public static void main(String[] args) throws Exception {
+        // Generator and BatchingProducer log every record and batch at INFO
+        if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null) {
+            System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        }
+
+        final int records = Integer.getInteger(RECORDS_PARAM, 100000);
+        int shards = Integer.getInteger(SHARDS_PARAM, 4);
+        int encryptThreads = Integer.getInteger(ENCRYPT_THREADS_PARAM, 4);
+        int senderThreads = Integer.getInteger(SENDER_THREADS_PARAM, 4);
+        final int payloadBytes = Integer.getInteger(PAYLOAD_BYTES_PARAM, 512);
+        long kmsLatencyMillis = Long.getLong(KMS_LATENCY_PARAM, 0L);
+        double kmsThrottleRate = Double.parseDouble(System.getProperty(KMS_THROTTLE_PARAM, "0"));
+        int shardLimit = Integer.getInteger(SHARD_LIMIT_PARAM, 0);
+        final boolean binaryEnvelope = !"json".equalsIgnoreCase(System.getProperty(ENVELOPE_PARAM));
+        final CipherSuite cipherSuite = CipherSuite.fromName(System.getProperty(CIPHER_SUITE_PARAM, "aes-gcm"));
+        int decryptThreads = Integer.getInteger(DECRYPT_THREADS_PARAM, 0);
+        Codec codec = Codec.fromName(System.getProperty(COMPRESSION_PARAM, "none"));
+        final AdaptiveCompressor compressor = codec == Codec.NONE ? null : new AdaptiveCompressor(codec);
+        final KeyDerivation derivation = KeyDerivation.fromName(System.getProperty(KEY_DERIVATION_PARAM, "none"));
+        final SubkeyProvider subkeys = derivation == KeyDerivation.NONE ? null
+                : new SubkeyProvider(derivation, KEY_DERIVATION_BATCH_RECORDS);
+        final int objects = Integer.getInteger(OBJECTS_PARAM, 0);
+        final byte[] object = payload(Integer.getInteger(OBJECT_BYTES_PARAM, 4 * 1024 * 1024));
+        int chunkBytes = Integer.getInteger(CHUNK_BYTES_PARAM, 256 * 1024);
+        if (objects > 0 && !binaryEnvelope) {
+            throw new IllegalArgumentException(OBJECTS_PARAM + " needs the binary envelope");
+        }
+
+        InMemoryKms kms = new InMemoryKms(kmsLatencyMillis, kmsThrottleRate);
+        InMemoryKinesisStream stream = new InMemoryKinesisStream(STREAM_NAME, shards, shardLimit);
+
+        final BatchingProducer batchingProducer = System.getProperty(BATCH_LINGER_PARAM) == null ? null
+                : new BatchingProducer(stream.client(), STREAM_NAME, Long.getLong(BATCH_LINGER_PARAM));
+
+        // Consumer
+        final AtomicLong deadLettered = new AtomicLong();
+        DeadLetterSink deadLetterSink = new DeadLetterSink() {
+            @Override
+            public void accept(String shardId, Record record, Throwable cause) {
+                deadLettered.incrementAndGet();
+            }
+        };
+        DataKeyCache keyCache = new DataKeyCache(KMSKinesisApplication.getKeyCacheMaxEntries(),
+                KMSKinesisApplication.getKeyCacheTtlSeconds(), TimeUnit.SECONDS);
+        boolean asyncKeyDecryption = Boolean.getBoolean(ASYNC_KEY_DECRYPTION_PARAM);
+        KMSDecryptionService decryptionService = asyncKeyDecryption
+                ? new KMSDecryptionService(kms.client(), keyCache, KMSKinesisApplication.getKmsMaxConcurrentRequests(),
+                        KMSKinesisApplication.isKmsVirtualThreads())
+                : new KMSDecryptionService(kms.client(), keyCache);
+        ExecutorService decryptExecutor = decryptThreads > 0 ? Executors.newFixedThreadPool(decryptThreads) : null;
+        ExecutorService checkpointExecutor = Executors.newFixedThreadPool(2);
+        MetricsRegistry consumerMetrics = new MetricsRegistry();
+        FetchTuner fetchTuner = !Boolean.getBoolean(ADAPTIVE_FETCH_PARAM) ? null
+                : new FetchTuner(new FetchPolicy(KMSKinesisApplication.getFetchMinRecords(), MAX_RECORDS,
+                        KMSKinesisApplication.getIdleTimeBetweenReadsInMillis(),
+                        KMSKinesisApplication.getMaxIdleTimeBetweenReadsInMillis(),
+                        KMSKinesisApplication.getLagThresholdMillis(), KMSKinesisApplication.getTargetBatchMillis()));
+        final long objectCrc = crcOf(object);
+        final AtomicInteger objectsIntact = new AtomicInteger();
+        final AtomicInteger objectsCorrupt = new AtomicInteger();
+        ObjectSink objectSink = new ObjectSink() {
+            private final ConcurrentMap<UUID, CRC32> crcs = new ConcurrentHashMap<UUID, CRC32>();
+
+            @Override
+            public void begin(String shardId, UUID objectId, String partitionKey) {
+                crcs.put(objectId, new CRC32());
+            }
+
+            @Override
+            public void write(String shardId, UUID objectId, ByteBuffer data) {
+                crcs.get(objectId).update(data.duplicate());
+            }
+
+            @Override
+            public void complete(String shardId, UUID objectId) {
+                if (crcs.remove(objectId).getValue() == objectCrc) {
+                    objectsIntact.incrementAndGet();
+                } else {
+                    objectsCorrupt.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void abort(String shardId, UUID objectId) {
+                crcs.remove(objectId);
+            }
+        };
+        KMSRecordProcessorFactory processorFactory = new KMSRecordProcessorFactory(decryptionService, decryptExecutor,
+                new RetryPolicy(KMSKinesisApplication.getRetryMaxAttempts(),
+                        KMSKinesisApplication.getRetryBaseBackoffMillis(),
+                        KMSKinesisApplication.getRetryMaxBackoffMillis(),
+                        KMSKinesisApplication.getRetryMaxOutstandingRecords()),
+                deadLetterSink,
+                System.getProperty(SINK_DIRECTORY_PARAM) == null ? null
+                        : new MappedSegmentRecordSink(new File(System.getProperty(SINK_DIRECTORY_PARAM)),
+                                KMSKinesisApplication.getRecordSinkSegmentBytes()),
+                new CheckpointPolicy(KMSKinesisApplication.getCheckpointMaxRecords(),
+                        KMSKinesisApplication.getCheckpointMaxBytes(),
+                        KMSKinesisApplication.getCheckpointIntervalMillis()),
+                checkpointExecutor, consumerMetrics, new LogSampler(0.0), objectSink,
+                new ReassemblyPolicy(KMSKinesisApplication.getChunkTimeoutMillis(),
+                        KMSKinesisApplication.getChunkBufferBytes()),
+                fetchTuner);
+
+        final long[] latencies = new long[records];
+        final AtomicInteger consumed = new AtomicInteger();
+        final AtomicLong consumedBytes = new AtomicLong();
+        final AtomicLong lastConsumedNanos = new AtomicLong();
+        InMemoryWorker worker = new InMemoryWorker(stream, processorFactory, MAX_RECORDS,
+                fetchTuner != null ? KMSKinesisApplication.getIdleTimeBetweenReadsInMillis()
+                        : IDLE_TIME_BETWEEN_READS_MILLIS, new InMemoryWorker.BatchListener() {
+                    @Override
+                    public void onBatch(String shardId, List<Record> batch) {
+                        long now = System.nanoTime();
+                        for (Record record : batch) {
+                            int i = consumed.getAndIncrement();
+                            if (i < latencies.length) {
+                                latencies[i] = now - createNanos(record.getPartitionKey());
+                            }
+                            consumedBytes.addAndGet(record.getData().remaining());
+                        }
+                        lastConsumedNanos.set(now);
+                    }
+                }, fetchTuner);
+        worker.start();
+
+        // Producer
+        final AWSKMS kmsClient = kms.client();
+        final AmazonKinesis kinesisClient = stream.client();
+        String partitionerName = System.getProperty(PARTITIONER_PARAM, "none");
+        int shardMaxRecordsPerSecond = Integer.getInteger(RATE_LIMIT_PARAM, 0);
+        final StreamShards streamShards = "none".equalsIgnoreCase(partitionerName) && shardMaxRecordsPerSecond == 0
+                ? null : new StreamShards(kinesisClient, STREAM_NAME, 0L, TimeUnit.SECONDS);
+        if (streamShards != null) {
+            streamShards.start();
+        }
+        final Partitioner partitioner = "none".equalsIgnoreCase(partitionerName) ? null
+                : PartitionStrategy.fromName(partitionerName).create(streamShards);
+        // The in-memory stream only limits records, so bytes are left unlimited
+        final ShardRateLimiter rateLimiter = shardMaxRecordsPerSecond > 0
+                ? new ShardRateLimiter(shardMaxRecordsPerSecond, Double.MAX_VALUE) : null;
+        WriteAheadLog writeAheadLog = null;
+        if (System.getProperty(WAL_DIRECTORY_PARAM) != null) {
+            if (batchingProducer != null) {
+                throw new IllegalArgumentException(WAL_DIRECTORY_PARAM + " cannot be combined with "
+                        + BATCH_LINGER_PARAM);
+            }
+            writeAheadLog = new WriteAheadLog(new File(System.getProperty(WAL_DIRECTORY_PARAM)), WAL_SEGMENT_BYTES,
+                    WAL_MAX_BYTES, WriteAheadLog.OverflowPolicy.BLOCK, WAL_SYNC_MILLIS);
+        }
+        final byte[] data = payload(payloadBytes);
+        final DataKeyManager keyManager = new DataKeyManager(kmsClient, KMS_ALIAS, KEY_ROTATION_SECONDS,
+                TimeUnit.SECONDS, 0L, KEY_ROTATION_RECORDS);
+        startKeyManager(keyManager);
+        // Same stage names as the producer, which records encrypt and encode itself
+        final LatencyHistogram keyFetchLatency = Generator.getMetrics().histogram("producer.keyFetch");
+        final LatencyHistogram compressLatency = Generator.getMetrics().histogram("producer.compress");
+        final LatencyHistogram putLatency = Generator.getMetrics().histogram("producer.put");
+        final LatencyHistogram deriveKeyLatency = Generator.getMetrics().histogram("producer.deriveKey");
+        ProducerPipeline pipeline = new ProducerPipeline(new ProducerPipeline.RecordSource() {
+            private int created;
+
+            @Override
+            public ProducerPipeline.SourceRecord next() {
+                if (created == records) {
+                    return null;
+                }
+                created++;
+                // The creation time rides in the partition key so the consumer can measure latency
+                return new ProducerPipeline.SourceRecord(PARTITION_KEY_PREFIX + System.nanoTime(), data);
+            }
+        }, new ProducerPipeline.RecordEncoder() {
+            private SubkeyProvider.Subkey subkeyFor(DataKey key, String partitionKey) {
+                if (subkeys == null) {
+                    return null;
+                }
+                long time = System.nanoTime();
+                SubkeyProvider.Subkey subkey = subkeys.subkeyFor(key, partitionKey);
+                deriveKeyLatency.recordSince(time);
+                return subkey;
+            }
+
+            @Override
+            public ByteBuffer encode(String partitionKey, byte[] record, byte envelopeFlags) {
+                long time = System.nanoTime();
+                Codec recordCodec = Codec.NONE;
+                if (compressor != null) {
+                    AdaptiveCompressor.Compressed compressed = compressor.compress(record);
+                    recordCodec = compressed.getCodec();
+                    record = compressed.getData();
+                    time = compressLatency.recordSince(time);
+                }
+                DataKey key = keyManager.acquire(record.length);
+                keyFetchLatency.recordSince(time);
+                return binaryEnvelope
+                        ? Generator.EncryptDataAsEnvelope(cipherSuite, recordCodec, key, subkeyFor(key, partitionKey),
+                                partitionKey, record, envelopeFlags)
+                        : Generator.EncryptDataAsJson(key, recordCodec, record);
+            }
+        }, encryptThreads, new ProducerPipeline.BufferingRecordSender() {
+            @Override
+            public void send(String partitionKey, ByteBuffer record) throws InterruptedException {
+                send(partitionKey, record, null);
+            }
+
+            @Override
+            public void send(String partitionKey, ByteBuffer record, final BatchingProducer.Callback completion)
+                    throws InterruptedException {
+                long start = System.nanoTime();
+                final Partitioner.Partition partition = partitioner == null ? null
+                        : partitioner.partition(partitionKey, record.remaining());
+                String explicitHashKey = partition == null ? null : partition.getExplicitHashKey();
+                String shardId = null;
+                boolean batched = false;
+                try {
+                    if (rateLimiter != null) {
+                        shardId = partition != null ? partition.getShardId()
+                                : streamShards.current().shardForPartitionKey(partitionKey).getShardId();
+                        rateLimiter.acquire(shardId, record.remaining() + partitionKey.length());
+                    }
+                    if (batchingProducer != null) {
+                        batched = true;
+                        final String batchShardId = shardId;
+                        batchingProducer.put(partitionKey, explicitHashKey, record,
+                                new BatchingProducer.Callback() {
+                                    @Override
+                                    public void throttled() {
+                                        if (rateLimiter != null) {
+                                            rateLimiter.throttled(batchShardId);
+                                        }
+                                        if (completion != null) {
+                                            completion.throttled();
+                                        }
+                                    }
+
+                                    @Override
+                                    public void completed(boolean sent) {
+                                        if (partition != null) {
+                                            partitioner.complete(partition);
+                                        }
+                                        if (completion != null) {
+                                            completion.completed(sent);
+                                        }
+                                    }
+                                });
+                    } else {
+                        kinesisClient.putRecord(new PutRecordRequest()
+                                .withStreamName(STREAM_NAME)
+                                .withPartitionKey(partitionKey)
+                                .withExplicitHashKey(explicitHashKey)
+                                .withData(record));
+                        if (completion != null) {
+                            completion.completed(true);
+                        }
+                    }
+                } catch (ProvisionedThroughputExceededException e) {
+                    if (rateLimiter != null) {
+                        rateLimiter.throttled(shardId);
+                    }
+                    throw e;
+                } finally {
+                    if (partition != null && !batched) {
+                        partitioner.complete(partition);
+                    }
+                }
+                putLatency.recordSince(start);
+            }
+        }, senderThreads, QUEUE_CAPACITY, 0, writeAheadLog);
+
+        // Objects go out from one thread, each in order under its own partition key
+        final ChunkedEncryptor chunkedEncryptor = new ChunkedEncryptor(keyManager, cipherSuite, subkeys, chunkBytes);
+        // Fails the run once the consumer has been shut down
+        final AtomicReference<Exception> objectSendFailure = new AtomicReference<Exception>();
+        Thread objectSender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < objects; i++) {
+                        sendObject(chunkedEncryptor, kinesisClient, PARTITION_KEY_PREFIX + System.nanoTime(), object);
+                    }
+                } catch (Exception e) {
+                    LOG.error("Sending objects failed", e);
+                    objectSendFailure.set(e);
+                }
+            }
+        }, "object-sender");
+
+        final long startNanos = System.nanoTime();
+        pipeline.start();
+        objectSender.start();
+        pipeline.awaitTermination();
+        objectSender.join();
+        keyManager.shutdown();
+        if (streamShards != null) {
+            streamShards.shutdown();
+        }
+        if (batchingProducer != null) {
+            batchingProducer.close();
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.close();
+        }
+        long producedNanos = System.nanoTime() - startNanos;
+
+        long expected = records - (batchingProducer != null ? batchingProducer.getRecordsFailed() : 0L)
+                + (long) objects * Math.max(1, (object.length + chunkBytes - 1) / chunkBytes);
+        // Objects that were never sent would only be waited for until the timeout
+        long deadline = objectSendFailure.get() != null ? 0L : System.currentTimeMillis() + CONSUME_TIMEOUT_MILLIS;
+        while (consumed.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        worker.shutdown(ShutdownReason.TERMINATE);
+        checkpointExecutor.shutdown();
+        if (decryptExecutor != null) {
+            decryptExecutor.shutdown();
+        }
+        decryptionService.shutdown();
+        if (objectSendFailure.get() != null) {
+            throw new IllegalStateException("Object sender failed", objectSendFailure.get());
+        }
+
+        int done = Math.min(consumed.get(), records);
+        double seconds = Math.max(1L, lastConsumedNanos.get() - startNanos) / 1e9;
+        long[] sorted = Arrays.copyOf(latencies, done);
+        Arrays.sort(sorted);
+
+        System.out.printf("Load test: %d records of %d bytes, %d shards, %d encrypt and %d sender threads, "
+                        + "%s envelope, %s compression, %s key derivation, %s, %d decrypt threads, %s key decryption%n",
+                records, payloadBytes, shards, encryptThreads, senderThreads,
+                binaryEnvelope ? "binary " + cipherSuite.getName() : "JSON", codec.getName(), derivation.getName(),
+                batchingProducer != null ? "PutRecords" : "PutRecord", decryptThreads,
+                asyncKeyDecryption ? "asynchronous" : "blocking");
+        if (compressor != null) {
+            System.out.println(compressor);
+        }
+        System.out.printf("Produced in %.2f s, consumed %d records in %.2f s: %.0f records/s, %.2f MB/s%n",
+                producedNanos / 1e9, done, seconds, done / seconds, consumedBytes.get() / seconds / 1024 / 1024);
+        System.out.printf("Latency ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n",
+                percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                percentile(sorted, 1.0));
+        System.out.printf("KMS: %d GenerateDataKey, %d Decrypt, %d throttled; %s; %s%n",
+                kms.getGenerateDataKeyCalls(), kms.getDecryptCalls(), kms.getThrottledCalls(), keyManager,
+                decryptionService);
+        StringBuilder perShard = new StringBuilder();
+        for (int i = 0; i < shards; i++) {
+            perShard.append(i == 0 ? "" : ", ").append(stream.getRecordsPut(i));
+        }
+        System.out.printf("Records per shard (%s partitioner): %s%n", partitionerName, perShard);
+        System.out.printf("Throttled sends: %d%s%n", pipeline.getSendsThrottled(),
+                rateLimiter != null ? "; rate limiter: " + rateLimiter : "");
+        if (fetchTuner != null) {
+            System.out.printf("Adaptive fetch: %s; %s%n", fetchTuner.getPolicy(), fetchTuner);
+        }
+        if (writeAheadLog != null) {
+            System.out.printf("Write-ahead log: %d records appended, %d replayed, %d segments left%n",
+                    writeAheadLog.getAppended(), writeAheadLog.getReplayed(), writeAheadLog.getSegments());
+        }
+        if (objects > 0) {
+            System.out.printf("Objects: %d of %d bytes in %d byte chunks, %d intact, %d corrupt, %d aborted%n",
+                    objects, object.length, chunkBytes, objectsIntact.get(), objectsCorrupt.get(),
+                    consumerMetrics.counter("consumer.objectsAborted").sum());
+        }
+        System.out.printf("Dead-lettered %d records%s%n", deadLettered.get(),
+                batchingProducer != null ? String.format(", producer dropped %d", batchingProducer.getRecordsFailed())
+                        : "");
+        if (Boolean.getBoolean(METRICS_PARAM)) {
+            System.out.print(Generator.getMetrics().report());
+            System.out.print(consumerMetrics.report());
+        }
+    }
+
+    // Telemetry-like JSON lines, so compression behaves as it would on real device data
+    private static byte[] payload(int size) {
+        StringBuilder sb = new StringBuilder(size + 128);
+        Random random = new Random(size);
+        while (sb.length() < size) {
+            sb.append(String.format("{\"device\":\"sensor-%03d\",\"ts\":%d,\"temp\":%.2f,\"humidity\":%.1f,"
+                            + "\"status\":\"%s\"}%n",
+                    random.nextInt(1000), 1500000000000L + random.nextInt(1000000000),
+                    15 + random.nextDouble() * 20, random.nextDouble() * 100, random.nextBoolean() ? "ok" : "warn"));
+        }
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    // Chunks of one object are put in order, each after the previous one was accepted
+    private static void sendObject(ChunkedEncryptor encryptor, final AmazonKinesis kinesisClient,
+                                   final String partitionKey, byte[] object) throws Exception {
+        encryptor.encrypt(partitionKey, new ByteArrayInputStream(object), new ChunkedEncryptor.ChunkSender() {
+            private String previousSequenceNumber;
+
+            @Override
+            public void send(ByteBuffer envelope, int index, boolean last) {
+                while (true) {
+                    try {
+                        previousSequenceNumber = kinesisClient.putRecord(new PutRecordRequest()
+                                .withStreamName(STREAM_NAME)
+                                .withPartitionKey(partitionKey)
+                                .withSequenceNumberForOrdering(previousSequenceNumber)
+                                .withData(envelope)).getSequenceNumber();
+                        return;
+                    } catch (ProvisionedThroughputExceededException e) {
+                        sleep(BACKOFF_TIME_IN_MILLIS);
+                    }
+                }
+            }
+        });
+    }
+
+    private static long crcOf(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    // The first key is fetched synchronously, so retry it while the in-memory KMS throttles
+    private static void startKeyManager(DataKeyManager keyManager) {
+        while (true) {
+            try {
+                keyManager.start();
+                return;
+            } catch (AmazonServiceException e) {
+                if (!"ThrottlingException".equals(e.getErrorCode())) {
+                    throw e;
+                }
+                sleep(BACKOFF_TIME_IN_MILLIS);
+            }
+        }
+    }
+
+    private static long createNanos(String partitionKey) {
+        return Long.parseLong(partitionKey.substring(PARTITION_KEY_PREFIX.length()));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}